@@ -0,0 +1,55 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import com.codahale.metrics.MetricRegistry;
+import no.scienta.alchemy.metricbuddy.Batch;
+import no.scienta.alchemy.metricbuddy.MetricsCollectors;
+import no.scienta.alchemy.metricbuddy.MetricsCollectorsImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording a request's worth of updates, 16 updates to four metrics, straight to the shared metrics or
+ * through a batch.  Pass {@code -t} to see how they compare as threads contend for the same metrics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    private MetricsCollectors collectors;
+
+    private BenchmarkMetrics metrics;
+
+    @Setup
+    public void setup() {
+        collectors = new MetricsCollectorsImpl(new MetricRegistry());
+        metrics = collectors.metricsCollector(BatchBenchmark.class, BenchmarkMetrics.class);
+    }
+
+    @Benchmark
+    public void direct() {
+        request(metrics);
+    }
+
+    @Benchmark
+    public void batched() {
+        try (Batch<BenchmarkMetrics> batch = collectors.batch(BatchBenchmark.class, BenchmarkMetrics.class)) {
+            request(batch.metrics());
+        }
+    }
+
+    private static void request(BenchmarkMetrics metrics) {
+        for (int i = 0; i < 10; i++) {
+            metrics.inc();
+        }
+        for (int i = 0; i < 4; i++) {
+            metrics.mark();
+        }
+        metrics.update(42L);
+        metrics.stop(System.nanoTime());
+    }
+}
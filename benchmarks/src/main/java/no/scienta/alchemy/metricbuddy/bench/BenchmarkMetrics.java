@@ -0,0 +1,30 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import no.scienta.alchemy.metricbuddy.*;
+
+/**
+ * The collector interface under benchmark, with one method per metric type.
+ */
+@MetricsCollector
+public interface BenchmarkMetrics {
+
+    @Inc
+    void inc();
+
+    @Meter
+    void mark();
+
+    @Histo
+    void update(long value);
+
+    @Time
+    MetricsCollectors.Timer time();
+
+    @Time
+    @OverrideName("time")
+    long start();
+
+    @Time
+    @OverrideName("time")
+    void stop(long startTime);
+}
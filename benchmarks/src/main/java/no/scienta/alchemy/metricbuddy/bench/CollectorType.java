@@ -0,0 +1,182 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import com.codahale.metrics.*;
+import no.scienta.alchemy.metricbuddy.MetricStore;
+import no.scienta.alchemy.metricbuddy.MetricsCollectors;
+import no.scienta.alchemy.metricbuddy.MetricsCollectorsImpl;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The collector implementations compared by the benchmarks.
+ */
+public enum CollectorType {
+
+    /**
+     * Generated from {@link BenchmarkMetrics}.
+     */
+    generated {
+        @Override
+        BenchmarkMetrics create(MetricRegistry registry) {
+            return new MetricsCollectorsImpl(registry).metricsCollector(CollectorType.class, BenchmarkMetrics.class);
+        }
+    },
+
+    /**
+     * Generated from {@link BenchmarkMetrics}, with buffered recording.
+     */
+    buffered {
+        @Override
+        BenchmarkMetrics create(MetricRegistry registry) {
+            return new MetricsCollectorsImpl(registry).withBufferedRecording(Duration.ofSeconds(1))
+                    .metricsCollector(CollectorType.class, BenchmarkMetrics.class);
+        }
+    },
+
+    /**
+     * Generated from {@link BenchmarkMetrics}, with HdrHistogram reservoirs.
+     */
+    hdr {
+        @Override
+        BenchmarkMetrics create(MetricRegistry registry) {
+            return new MetricsCollectorsImpl(registry).withHdrHistograms(3)
+                    .metricsCollector(CollectorType.class, BenchmarkMetrics.class);
+        }
+    },
+
+    /**
+     * Generated from {@link BenchmarkMetrics}, with sliding window reservoirs.
+     */
+    window {
+        @Override
+        BenchmarkMetrics create(MetricRegistry registry) {
+            return new MetricsCollectorsImpl(registry).withSlidingWindows(Duration.ofSeconds(60))
+                    .metricsCollector(CollectorType.class, BenchmarkMetrics.class);
+        }
+    },
+
+    /**
+     * Generated from {@link BenchmarkMetrics}, with counters and meters in a metric store.
+     */
+    store {
+        @Override
+        BenchmarkMetrics create(MetricRegistry registry) {
+            MetricStore store = new MetricStore();
+            store.registerIn(registry);
+            return new MetricsCollectorsImpl(registry).withMetricStore(store)
+                    .metricsCollector(CollectorType.class, BenchmarkMetrics.class);
+        }
+    },
+
+    /**
+     * Generated from {@link BenchmarkMetrics}, recording through the event ring.
+     */
+    async {
+        @Override
+        BenchmarkMetrics create(MetricRegistry registry) {
+            return new MetricsCollectorsImpl(registry)
+                    .withAsyncRecording(1 << 16, MetricsCollectors.Backpressure.DROP)
+                    .metricsCollector(CollectorType.class, BenchmarkMetrics.class);
+        }
+    },
+
+    /**
+     * The {@link HandWrittenMetrics} subclass.
+     */
+    handWritten {
+        @Override
+        BenchmarkMetrics create(MetricRegistry registry) {
+            return new MetricsCollectorsImpl(registry).metricsCollector(CollectorType.class, HandWrittenMetrics.class);
+        }
+    },
+
+    /**
+     * Looks up each metric in the registry on every call.
+     */
+    registry {
+        @Override
+        BenchmarkMetrics create(MetricRegistry registry) {
+            return new BenchmarkMetrics() {
+
+                @Override
+                public void inc() {
+                    registry.counter(MetricRegistry.name(CollectorType.class, "inc")).inc();
+                }
+
+                @Override
+                public void mark() {
+                    registry.meter(MetricRegistry.name(CollectorType.class, "mark")).mark();
+                }
+
+                @Override
+                public void update(long value) {
+                    registry.histogram(MetricRegistry.name(CollectorType.class, "update")).update(value);
+                }
+
+                @Override
+                public MetricsCollectors.Timer time() {
+                    return registry.timer(MetricRegistry.name(CollectorType.class, "time")).time()::stop;
+                }
+
+                @Override
+                public long start() {
+                    return System.nanoTime();
+                }
+
+                @Override
+                public void stop(long startTime) {
+                    registry.timer(MetricRegistry.name(CollectorType.class, "time"))
+                            .update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                }
+            };
+        }
+    },
+
+    /**
+     * Holds the Dropwizard metrics directly, the baseline for what a collector call could cost.
+     */
+    dropwizard {
+        @Override
+        BenchmarkMetrics create(MetricRegistry registry) {
+            Counter counter = registry.counter(MetricRegistry.name(CollectorType.class, "inc"));
+            com.codahale.metrics.Meter meter = registry.meter(MetricRegistry.name(CollectorType.class, "mark"));
+            Histogram histogram = registry.histogram(MetricRegistry.name(CollectorType.class, "update"));
+            Timer timer = registry.timer(MetricRegistry.name(CollectorType.class, "time"));
+            return new BenchmarkMetrics() {
+
+                @Override
+                public void inc() {
+                    counter.inc();
+                }
+
+                @Override
+                public void mark() {
+                    meter.mark();
+                }
+
+                @Override
+                public void update(long value) {
+                    histogram.update(value);
+                }
+
+                @Override
+                public MetricsCollectors.Timer time() {
+                    return timer.time()::stop;
+                }
+
+                @Override
+                public long start() {
+                    return System.nanoTime();
+                }
+
+                @Override
+                public void stop(long startTime) {
+                    timer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                }
+            };
+        }
+    };
+
+    abstract BenchmarkMetrics create(MetricRegistry registry);
+}
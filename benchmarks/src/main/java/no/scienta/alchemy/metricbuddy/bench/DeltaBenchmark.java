@@ -0,0 +1,92 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import com.codahale.metrics.Counting;
+import no.scienta.alchemy.metricbuddy.DeltaSnapshot;
+import no.scienta.alchemy.metricbuddy.Inc;
+import no.scienta.alchemy.metricbuddy.MetricStore;
+import no.scienta.alchemy.metricbuddy.MetricsCollector;
+import no.scienta.alchemy.metricbuddy.MetricsCollectorsImpl;
+import no.scienta.alchemy.metricbuddy.Tag;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of an export tick of a {@link MetricStore} where ten metrics changed, by number of metrics: walking all of
+ * them, against a {@link DeltaSnapshot} of the changed ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeltaBenchmark {
+
+    private static final int ACTIVE = 10;
+
+    @MetricsCollector
+    public interface ManyMetrics {
+
+        @Inc
+        void hit(@Tag(value = "id", cardinality = 10000) String id);
+    }
+
+    @Param({"100", "1000", "10000"})
+    public int metrics;
+
+    private MetricStore store;
+
+    private MetricStore.Cursor cursor;
+
+    private ManyMetrics many;
+
+    private final String[] active = new String[ACTIVE];
+
+    @Setup
+    public void setup() {
+        store = new MetricStore();
+        many = new MetricsCollectorsImpl().withMetricStore(store)
+                .metricsCollector(DeltaBenchmark.class, ManyMetrics.class);
+        for (int i = 0; i < metrics; i++) {
+            many.hit(Integer.toString(i));
+        }
+        for (int i = 0; i < ACTIVE; i++) {
+            active[i] = Integer.toString(i);
+        }
+        cursor = store.cursor();
+        cursor.next();
+    }
+
+    @TearDown
+    public void tearDown() {
+        cursor.close();
+    }
+
+    @Benchmark
+    public long walk() {
+        touch();
+        long sum = 0L;
+        for (Counting metric : store.metrics().values()) {
+            sum += metric.getCount();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long delta() {
+        touch();
+        DeltaSnapshot snapshot = cursor.next();
+        long sum = 0L;
+        for (int i = 0; i < snapshot.size(); i++) {
+            sum += snapshot.delta(i);
+        }
+        return sum;
+    }
+
+    private void touch() {
+        for (String id : active) {
+            many.hit(id);
+        }
+    }
+}
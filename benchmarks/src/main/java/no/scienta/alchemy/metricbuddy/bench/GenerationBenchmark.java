@@ -0,0 +1,39 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import no.scienta.alchemy.metricbuddy.MetricsCollectorsImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First-call cost of a collector interface, in a fresh JVM per measurement, against a second instance reusing the
+ * generated class.  The split between validation and class generation is in the
+ * {@code metricsbuddy.classes.validation} and {@code metricsbuddy.classes.generation} timers of the registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class GenerationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Generated {
+
+        @Setup
+        public void setup() {
+            new MetricsCollectorsImpl().metricsCollector(GenerationBenchmark.class, BenchmarkMetrics.class);
+        }
+    }
+
+    @Benchmark
+    public BenchmarkMetrics firstCall() {
+        return new MetricsCollectorsImpl().metricsCollector(GenerationBenchmark.class, BenchmarkMetrics.class);
+    }
+
+    @Benchmark
+    public BenchmarkMetrics reusedClass(Generated generated) {
+        return new MetricsCollectorsImpl().metricsCollector(GenerationBenchmark.class, BenchmarkMetrics.class);
+    }
+}
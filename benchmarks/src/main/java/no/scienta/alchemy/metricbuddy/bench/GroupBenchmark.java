@@ -0,0 +1,57 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import no.scienta.alchemy.metricbuddy.Histo;
+import no.scienta.alchemy.metricbuddy.MetricsCollector;
+import no.scienta.alchemy.metricbuddy.MetricsCollectors;
+import no.scienta.alchemy.metricbuddy.MetricsCollectorsImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a histogram update in a disabled group, against an empty method and an update which always records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupBenchmark {
+
+    @MetricsCollector
+    public interface GroupMetrics {
+
+        @Histo(group = "bench.debug")
+        void debug(long value);
+
+        @Histo
+        void always(long value);
+    }
+
+    private GroupMetrics metrics;
+
+    private long value;
+
+    @Setup
+    public void setup() {
+        MetricsCollectors collectors = new MetricsCollectorsImpl();
+        collectors.disableGroup("bench.debug");
+        metrics = collectors.metricsCollector(GroupBenchmark.class, GroupMetrics.class);
+    }
+
+    @Benchmark
+    public void baseline() {
+        value++;
+    }
+
+    @Benchmark
+    public void disabled() {
+        metrics.debug(value++);
+    }
+
+    @Benchmark
+    public void always() {
+        metrics.always(value++);
+    }
+}
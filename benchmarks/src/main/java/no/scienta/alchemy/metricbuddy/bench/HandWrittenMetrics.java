@@ -0,0 +1,40 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import no.scienta.alchemy.metricbuddy.AbstractMetricsCollector;
+import no.scienta.alchemy.metricbuddy.MetricsCollectors;
+
+/**
+ * A hand-written collector, going through the name-based helpers of {@link AbstractMetricsCollector}.
+ */
+public class HandWrittenMetrics extends AbstractMetricsCollector implements BenchmarkMetrics {
+
+    @Override
+    public void inc() {
+        inc("inc");
+    }
+
+    @Override
+    public void mark() {
+        meter("mark");
+    }
+
+    @Override
+    public void update(long value) {
+        update("update", value);
+    }
+
+    @Override
+    public MetricsCollectors.Timer time() {
+        return timer("time");
+    }
+
+    @Override
+    public long start() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void stop(long startTime) {
+        stopTimer("time", startTime);
+    }
+}
@@ -0,0 +1,40 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import no.scienta.alchemy.metricbuddy.MetricsCollectors;
+import no.scienta.alchemy.metricbuddy.MetricsCollectorsImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of looking up the collector on every call, as in {@code metricsCollector(this, BenchmarkMetrics.class).inc()},
+ * compared with holding on to it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    private MetricsCollectors metricsCollectors;
+
+    private BenchmarkMetrics metrics;
+
+    @Setup
+    public void setup() {
+        metricsCollectors = new MetricsCollectorsImpl();
+        metrics = metricsCollectors.metricsCollector(this, BenchmarkMetrics.class);
+    }
+
+    @Benchmark
+    public void held() {
+        metrics.inc();
+    }
+
+    @Benchmark
+    public void lookedUp() {
+        metricsCollectors.metricsCollector(this, BenchmarkMetrics.class).inc();
+    }
+}
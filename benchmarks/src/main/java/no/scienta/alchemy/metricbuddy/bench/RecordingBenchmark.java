@@ -0,0 +1,56 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded cost of one recording, per metric type and collector implementation.  Run with {@code -prof gc} to
+ * see the allocation per operation ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordingBenchmark {
+
+    @Param
+    private CollectorType collector;
+
+    private BenchmarkMetrics metrics;
+
+    private long value;
+
+    @Setup
+    public void setup() {
+        metrics = collector.create(new MetricRegistry());
+    }
+
+    @Benchmark
+    public void inc() {
+        metrics.inc();
+    }
+
+    @Benchmark
+    public void mark() {
+        metrics.mark();
+    }
+
+    @Benchmark
+    public void update() {
+        metrics.update(value++ & 0xFFFF);
+    }
+
+    @Benchmark
+    public void time() {
+        metrics.time().done();
+    }
+
+    @Benchmark
+    public void startStop() {
+        metrics.stop(metrics.start());
+    }
+}
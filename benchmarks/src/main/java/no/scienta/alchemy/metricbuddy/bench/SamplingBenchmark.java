@@ -0,0 +1,54 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import no.scienta.alchemy.metricbuddy.MetricsCollector;
+import no.scienta.alchemy.metricbuddy.MetricsCollectorsImpl;
+import no.scienta.alchemy.metricbuddy.OverrideName;
+import no.scienta.alchemy.metricbuddy.Time;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of timing a very short call, with every call timed and with one in 64 sampled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplingBenchmark {
+
+    @MetricsCollector
+    public interface SamplingMetrics {
+
+        @Time @OverrideName("exact")
+        long startExact();
+
+        @Time @OverrideName("exact")
+        void stopExact(long startTime);
+
+        @Time(sampleEvery = 64) @OverrideName("sampled")
+        long startSampled();
+
+        @Time(sampleEvery = 64) @OverrideName("sampled")
+        void stopSampled(long startTime);
+    }
+
+    private SamplingMetrics metrics;
+
+    @Setup
+    public void setup() {
+        metrics = new MetricsCollectorsImpl().metricsCollector(SamplingBenchmark.class, SamplingMetrics.class);
+    }
+
+    @Benchmark
+    public void exact() {
+        metrics.stopExact(metrics.startExact());
+    }
+
+    @Benchmark
+    public void sampled() {
+        metrics.stopSampled(metrics.startSampled());
+    }
+}
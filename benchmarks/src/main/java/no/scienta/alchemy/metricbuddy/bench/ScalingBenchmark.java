@@ -0,0 +1,84 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of one collector shared by all benchmark threads.  Run {@link #main(String[])} to step through 1, 2, 4
+ * ... threads up to the number of available processors, or pass {@code -t} to the JMH runner for a single count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScalingBenchmark {
+
+    @Param({"generated", "buffered", "hdr", "window", "store", "async", "dropwizard"})
+    private CollectorType collector;
+
+    private BenchmarkMetrics metrics;
+
+    @Setup
+    public void setup() {
+        metrics = collector.create(new MetricRegistry());
+    }
+
+    @Benchmark
+    public void inc() {
+        metrics.inc();
+    }
+
+    @Benchmark
+    public void mark() {
+        metrics.mark();
+    }
+
+    @Benchmark
+    public void update(ThreadValue value) {
+        metrics.update(value.next());
+    }
+
+    @Benchmark
+    public void time() {
+        metrics.time().done();
+    }
+
+    @Benchmark
+    public void startStop() {
+        metrics.stop(metrics.start());
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadValue {
+
+        private long value;
+
+        long next() {
+            return value++ & 0xFFFF;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, processors)) {
+            new Runner(new OptionsBuilder()
+                    .parent(options)
+                    .include(ScalingBenchmark.class.getName())
+                    .threads(threads)
+                    .build()).run();
+            if (threads == processors) {
+                return;
+            }
+        }
+    }
+}
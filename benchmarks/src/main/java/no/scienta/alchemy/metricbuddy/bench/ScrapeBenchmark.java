@@ -0,0 +1,59 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import com.codahale.metrics.MetricRegistry;
+import no.scienta.alchemy.metricbuddy.MetricsCollectorsImpl;
+import no.scienta.alchemy.metricbuddy.PrometheusExporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a Prometheus scrape of counters and meters, by number of metrics.  Run with {@code -prof gc} to verify
+ * that the allocation per scrape does not grow with the number of metrics.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScrapeBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int metrics;
+
+    private PrometheusExporter exporter;
+
+    private final OutputStream discard = new OutputStream() {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < metrics; i++) {
+            registry.counter(MetricRegistry.name(ScrapeBenchmark.class, "counter", Integer.toString(i))).inc(i);
+            registry.meter(MetricRegistry.name(ScrapeBenchmark.class, "meter", Integer.toString(i))).mark(i);
+        }
+        exporter = new MetricsCollectorsImpl(registry).prometheusExporter();
+    }
+
+    @TearDown
+    public void tearDown() {
+        exporter.close();
+    }
+
+    @Benchmark
+    public void scrape() throws IOException {
+        exporter.writeTo(discard);
+    }
+}
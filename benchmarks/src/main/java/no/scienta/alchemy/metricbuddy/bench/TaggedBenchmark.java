@@ -0,0 +1,59 @@
+package no.scienta.alchemy.metricbuddy.bench;
+
+import no.scienta.alchemy.metricbuddy.Inc;
+import no.scienta.alchemy.metricbuddy.MetricsCollector;
+import no.scienta.alchemy.metricbuddy.MetricsCollectorsImpl;
+import no.scienta.alchemy.metricbuddy.Tag;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording to tagged metrics, including the lookup by tag value.  Run with {@code -prof gc} to verify that
+ * the lookup does not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaggedBenchmark {
+
+    public enum Outcome {
+        OK, FAILED, TIMEOUT
+    }
+
+    @MetricsCollector
+    public interface TaggedMetrics {
+
+        @Inc
+        void requests(@Tag("outcome") Outcome outcome);
+
+        @Inc
+        void clients(@Tag("client") String client);
+    }
+
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    private static final String[] CLIENTS = {"alpha", "beta", "gamma", "delta"};
+
+    private TaggedMetrics metrics;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        metrics = new MetricsCollectorsImpl().metricsCollector(TaggedBenchmark.class, TaggedMetrics.class);
+    }
+
+    @Benchmark
+    public void enumTag() {
+        metrics.requests(OUTCOMES[index++ % OUTCOMES.length]);
+    }
+
+    @Benchmark
+    public void stringTag() {
+        metrics.clients(CLIENTS[index++ % CLIENTS.length]);
+    }
+}
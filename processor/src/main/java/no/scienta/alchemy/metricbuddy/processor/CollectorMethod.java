@@ -0,0 +1,97 @@
+package no.scienta.alchemy.metricbuddy.processor;
+
+import no.scienta.alchemy.metricbuddy.Histo;
+import no.scienta.alchemy.metricbuddy.Inc;
+import no.scienta.alchemy.metricbuddy.Meter;
+import no.scienta.alchemy.metricbuddy.Time;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A vetted method of a collector interface.
+ */
+final class CollectorMethod {
+
+    private final ExecutableElement method;
+
+    private final MetricKind kind;
+
+    private final int tag;
+
+    CollectorMethod(ExecutableElement method, MetricKind kind, int tag) {
+        this.method = method;
+        this.kind = kind;
+        this.tag = tag;
+    }
+
+    ExecutableElement method() {
+        return method;
+    }
+
+    MetricKind kind() {
+        return kind;
+    }
+
+    boolean isTagged() {
+        return tag >= 0;
+    }
+
+    VariableElement tagParameter() {
+        return method.getParameters().get(tag);
+    }
+
+    /**
+     * @return The parameters which are not the tag
+     */
+    List<VariableElement> valueParameters() {
+        List<? extends VariableElement> parameters = method.getParameters();
+        return IntStream.range(0, parameters.size())
+                .filter(i -> i != tag)
+                .mapToObj(parameters::get)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return True if the method times a {@link java.util.function.Supplier} or {@link Runnable} it is passed
+     */
+    boolean isTimedExecution() {
+        List<VariableElement> values = valueParameters();
+        return kind == MetricKind.TIMER && values.size() == 1 &&
+                (Vetting.isRunnable(values.get(0).asType()) || Vetting.isSupplier(values.get(0).asType()));
+    }
+
+    /**
+     * @return Name of the counter of failed timed executions, or empty
+     */
+    String failures() {
+        Time time = method.getAnnotation(Time.class);
+        return time == null ? "" : time.failures();
+    }
+
+    /**
+     * @return Group of the metric, or empty if it always records
+     */
+    String group() {
+        Inc inc = method.getAnnotation(Inc.class);
+        Meter meter = method.getAnnotation(Meter.class);
+        Histo histo = method.getAnnotation(Histo.class);
+        Time time = method.getAnnotation(Time.class);
+        return inc != null ? inc.group()
+                : meter != null ? meter.group()
+                : histo != null ? histo.group()
+                : time != null ? time.group()
+                : "";
+    }
+
+    /**
+     * @return True if the method starts timing, returning the start time
+     */
+    boolean isTimerStart() {
+        return kind == MetricKind.TIMER && method.getReturnType().getKind() == TypeKind.LONG;
+    }
+}
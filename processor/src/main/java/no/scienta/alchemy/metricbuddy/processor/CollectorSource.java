@@ -0,0 +1,210 @@
+package no.scienta.alchemy.metricbuddy.processor;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Source of a collector generated for an interface.  Each metric is resolved when the collector is bound, so that
+ * recording goes straight to the metric, like the collectors generated at runtime.
+ * <p>
+ * The collector is named after the interface, with nested names joined by underscores: {@code Outer_Inner_Metrics}.
+ * This is where {@code MetricsCollectorsImpl} looks for it.
+ */
+final class CollectorSource {
+
+    private static final String SUFFIX = "_Metrics";
+
+    private static final String BASE = "no.scienta.alchemy.metricbuddy.AbstractMetricsCollector";
+
+    private final TypeElement type;
+
+    private final List<CollectorMethod> methods;
+
+    private final String packageName;
+
+    private final String simpleName;
+
+    CollectorSource(TypeElement type, List<CollectorMethod> methods, Elements elements) {
+        this.type = type;
+        this.methods = methods;
+        this.packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        this.simpleName = simpleName(type);
+    }
+
+    TypeElement type() {
+        return type;
+    }
+
+    String qualifiedName() {
+        return packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n")
+                .append(" * Generated from {@link ").append(type.getQualifiedName()).append("}, do not edit.\n")
+                .append(" */\n")
+                .append("final class ").append(simpleName)
+                .append(" extends ").append(BASE)
+                .append(" implements ").append(type.getQualifiedName()).append(" {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            appendFields(source, i, methods.get(i));
+        }
+        source.append("\n    @Override\n    protected void bindMetrics() {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            appendBinding(source, i, methods.get(i));
+        }
+        source.append("    }\n");
+        for (int i = 0; i < methods.size(); i++) {
+            appendMethod(source, i, methods.get(i));
+        }
+        return source.append("}\n").toString();
+    }
+
+    private void appendFields(StringBuilder source, int index, CollectorMethod method) {
+        ExecutableElement element = method.method();
+        source.append("\n    private static final java.lang.reflect.Method method").append(index)
+                .append(" =\n            collectorMethod(").append(type.getQualifiedName()).append(".class, \"")
+                .append(element.getSimpleName()).append("\"");
+        for (VariableElement parameter : element.getParameters()) {
+            source.append(", ").append(erasure(parameter.asType())).append(".class");
+        }
+        source.append(");\n\n    private ").append(fieldType(method)).append(" metric").append(index).append(";\n");
+        if (!method.group().isEmpty()) {
+            source.append("\n    private static final java.lang.invoke.MethodHandle guard").append(index)
+                    .append(" = groupGuard(\"").append(method.group()).append("\");\n");
+        }
+        if (!method.failures().isEmpty()) {
+            source.append("\n    private ").append(MetricKind.COUNTER.metricType())
+                    .append(" failures").append(index).append(";\n");
+        }
+    }
+
+    private static void appendBinding(StringBuilder source, int index, CollectorMethod method) {
+        MetricKind kind = method.kind();
+        source.append("        this.metric").append(index).append(" = ")
+                .append(method.isTagged() ? kind.taggedResolver() : kind.resolver())
+                .append("(metricName(method").append(index).append("), method").append(index).append(");\n");
+        if (!method.failures().isEmpty()) {
+            source.append("        this.failures").append(index).append(" = ")
+                    .append(MetricKind.COUNTER.resolver()).append("(\"").append(method.failures())
+                    .append("\", method").append(index).append(");\n");
+        }
+    }
+
+    private static void appendMethod(StringBuilder source, int index, CollectorMethod method) {
+        ExecutableElement element = method.method();
+        source.append("\n    @Override\n    public ");
+        if (!element.getTypeParameters().isEmpty()) {
+            source.append(element.getTypeParameters().stream()
+                    .map(CollectorSource::typeParameter)
+                    .collect(Collectors.joining(", ", "<", "> ")));
+        }
+        source.append(element.getReturnType()).append(" ")
+                .append(element.getSimpleName()).append("(")
+                .append(element.getParameters().stream()
+                        .map(parameter -> parameter.asType() + " " + parameter.getSimpleName())
+                        .collect(Collectors.joining(", ")))
+                .append(") {\n        ");
+        if (!method.group().isEmpty()) {
+            source.append("if (!enabled(guard").append(index).append(")) {\n            ")
+                    .append(disabled(method))
+                    .append(";\n        }\n        ");
+        }
+        source.append(recording(index, method))
+                .append(";\n    }\n");
+    }
+
+    /**
+     * @return What a method of a disabled group does: return, except that timed executions still run their work
+     */
+    private static String disabled(CollectorMethod method) {
+        TypeKind returnKind = method.method().getReturnType().getKind();
+        if (method.isTimedExecution()) {
+            String work = method.valueParameters().get(0).getSimpleName().toString();
+            return returnKind == TypeKind.VOID ? work + ".run();\n            return" : "return " + work + ".get()";
+        }
+        if (method.isTimerStart()) {
+            return "return UNSAMPLED";
+        }
+        return returnKind == TypeKind.VOID ? "return" : "return DISABLED";
+    }
+
+    private static String recording(int index, CollectorMethod method) {
+        String metric = method.isTagged()
+                ? "this.metric" + index + ".get(" + method.tagParameter().getSimpleName() + ")"
+                : "this.metric" + index;
+        if (method.isTimedExecution()) {
+            return (method.method().getReturnType().getKind() == TypeKind.VOID ? "" : "return ") +
+                    BASE + ".timed(" + metric +
+                    (method.failures().isEmpty() ? "" : ", this.failures" + index) + ", " +
+                    method.valueParameters().get(0).getSimpleName() + ")";
+        }
+        if (method.isTimerStart()) {
+            return "return " + BASE + ".startTiming(" + metric + ")";
+        }
+        List<String> values = method.valueParameters().stream()
+                .map(parameter -> parameter.getSimpleName().toString())
+                .collect(Collectors.toList());
+        switch (method.kind()) {
+            case COUNTER:
+                return metric + ".inc(" + String.join(", ", values) + ")";
+            case METER:
+                return metric + ".mark(" + String.join(", ", values) + ")";
+            case HISTOGRAM:
+                return Vetting.isLongArray(method.valueParameters().get(0).asType())
+                        ? BASE + ".updateAll(" + metric + ", " + values.get(0) + ")"
+                        : metric + ".update(" + values.get(0) + ")";
+            case GAUGE:
+                return metric + ".supply(" + values.get(0) + ")";
+            case TIMER:
+                return values.isEmpty()
+                        ? "return " + BASE + ".timing(" + metric + ")"
+                        : BASE + ".stopTiming(" + metric + ", " + values.get(0) + ")";
+            default:
+                throw new IllegalStateException("Unknown metric kind: " + method.kind());
+        }
+    }
+
+    private static String fieldType(CollectorMethod method) {
+        String metricType = method.kind().metricType();
+        return method.isTagged() ? "no.scienta.alchemy.metricbuddy.Tagged<" + metricType + ">" : metricType;
+    }
+
+    private static String typeParameter(TypeParameterElement parameter) {
+        List<String> bounds = parameter.getBounds().stream()
+                .map(TypeMirror::toString)
+                .filter(bound -> !bound.equals(Object.class.getName()))
+                .collect(Collectors.toList());
+        return bounds.isEmpty() ? parameter.toString() : parameter + " extends " + String.join(" & ", bounds);
+    }
+
+    private static String erasure(TypeMirror type) {
+        String name = type.toString();
+        int generics = name.indexOf('<');
+        return generics < 0 ? name : name.substring(0, generics);
+    }
+
+    private static String simpleName(TypeElement type) {
+        List<String> names = new ArrayList<>();
+        for (Element element = type; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            names.add(element.getSimpleName().toString());
+        }
+        Collections.reverse(names);
+        return String.join("_", names) + SUFFIX;
+    }
+}
@@ -0,0 +1,65 @@
+package no.scienta.alchemy.metricbuddy.processor;
+
+import no.scienta.alchemy.metricbuddy.Gauge;
+import no.scienta.alchemy.metricbuddy.Histo;
+import no.scienta.alchemy.metricbuddy.Inc;
+import no.scienta.alchemy.metricbuddy.Meter;
+import no.scienta.alchemy.metricbuddy.Time;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * The metric kinds of collector methods, with the metric type and resolvers the generated source uses.
+ */
+enum MetricKind {
+
+    COUNTER(Inc.class, "com.codahale.metrics.Counter", "counterNamed", "taggedCounters"),
+
+    METER(Meter.class, "com.codahale.metrics.Meter", "meterNamed", "taggedMeters"),
+
+    HISTOGRAM(Histo.class, "com.codahale.metrics.Histogram", "histogramNamed", "taggedHistograms"),
+
+    TIMER(Time.class, "com.codahale.metrics.Timer", "timerNamed", "taggedTimers"),
+
+    GAUGE(Gauge.class, "no.scienta.alchemy.metricbuddy.SuppliedGauge", "gaugeNamed", "taggedGauges");
+
+    private final Class<? extends Annotation> annotation;
+
+    private final String metricType;
+
+    private final String resolver;
+
+    private final String taggedResolver;
+
+    MetricKind(Class<? extends Annotation> annotation, String metricType, String resolver, String taggedResolver) {
+        this.annotation = annotation;
+        this.metricType = metricType;
+        this.resolver = resolver;
+        this.taggedResolver = taggedResolver;
+    }
+
+    Class<? extends Annotation> annotation() {
+        return annotation;
+    }
+
+    String metricType() {
+        return metricType;
+    }
+
+    String resolver() {
+        return resolver;
+    }
+
+    String taggedResolver() {
+        return taggedResolver;
+    }
+
+    static MetricKind of(String annotationName) {
+        for (MetricKind kind : values()) {
+            if (kind.annotation.getCanonicalName().equals(annotationName)) {
+                return kind;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+package no.scienta.alchemy.metricbuddy.processor;
+
+import no.scienta.alchemy.metricbuddy.MetricsCollector;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates collectors for {@link MetricsCollector} interfaces at compile time, so they need not be generated at
+ * runtime.  Collector methods which would fail validation at runtime are reported as compile errors.
+ */
+@SupportedAnnotationTypes("no.scienta.alchemy.metricbuddy.MetricsCollector")
+public final class MetricsCollectorProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(MetricsCollector.class)) {
+            TypeElement type = (TypeElement) element;
+            List<CollectorMethod> methods = vetted(type);
+            if (methods != null) {
+                write(new CollectorSource(type, methods, processingEnv.getElementUtils()));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The vetted methods, or null if any were reported as errors
+     */
+    private List<CollectorMethod> vetted(TypeElement type) {
+        try {
+            Vetting.validateType(type);
+        } catch (Vetting.Invalid e) {
+            error(e);
+            return null;
+        }
+        List<CollectorMethod> methods = new ArrayList<>();
+        boolean valid = true;
+        for (ExecutableElement method : Vetting.abstractMethods(type)) {
+            try {
+                methods.add(Vetting.vetted(method));
+            } catch (Vetting.Invalid e) {
+                error(e);
+                valid = false;
+            }
+        }
+        return valid ? methods : null;
+    }
+
+    private void write(CollectorSource source) {
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(source.qualifiedName(), source.type());
+            try (Writer writer = file.openWriter()) {
+                writer.write(source.toString());
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to write " + source.qualifiedName() + ": " + e, source.type());
+        }
+    }
+
+    private void error(Vetting.Invalid invalid) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, invalid.getMessage(), invalid.element());
+    }
+}
@@ -0,0 +1,315 @@
+package no.scienta.alchemy.metricbuddy.processor;
+
+import no.scienta.alchemy.metricbuddy.Gauge;
+import no.scienta.alchemy.metricbuddy.Histo;
+import no.scienta.alchemy.metricbuddy.MetricsCollector;
+import no.scienta.alchemy.metricbuddy.MetricsCollectors;
+import no.scienta.alchemy.metricbuddy.Tag;
+import no.scienta.alchemy.metricbuddy.Time;
+
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The checks of the runtime validation, applied to collector interfaces at compile time.
+ */
+final class Vetting {
+
+    private static final String TIMER = MetricsCollectors.Timer.class.getCanonicalName();
+
+    /**
+     * @param method Collector interface method
+     * @return The vetted method
+     * @throws Invalid If the method can't be a collector method
+     */
+    static CollectorMethod vetted(ExecutableElement method) {
+        MetricKind kind = metricKind(method);
+        int tag = validateTag(method);
+        CollectorMethod collectorMethod = new CollectorMethod(method, kind, tag);
+        if (!collectorMethod.group().isEmpty() && collectorMethod.group().trim().isEmpty()) {
+            throw new Invalid(method, "Group name should not be blank: " + method);
+        }
+        switch (kind) {
+            case COUNTER:
+                validateCountingMethod(collectorMethod, "Counter");
+                break;
+            case METER:
+                validateCountingMethod(collectorMethod, "Meter");
+                break;
+            case HISTOGRAM:
+                validateHistogram(collectorMethod);
+                break;
+            case TIMER:
+                validateTimer(collectorMethod);
+                break;
+            case GAUGE:
+                validateGauge(collectorMethod);
+                break;
+            default:
+                throw new IllegalStateException("Unknown metric kind: " + kind);
+        }
+        return collectorMethod;
+    }
+
+    /**
+     * @param type Type annotated as a collector
+     * @throws Invalid If the type can't be implemented by a generated collector
+     */
+    static void validateType(TypeElement type) {
+        if (type.getKind() != ElementKind.INTERFACE) {
+            throw new Invalid(type, "Must be an interface: " + type);
+        }
+        for (Element element = type; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            if (element.getModifiers().contains(Modifier.PRIVATE)) {
+                throw new Invalid(type, "Collector interface should not be private: " + type);
+            }
+        }
+        if (!type.getTypeParameters().isEmpty()) {
+            throw new Invalid(type, "Collector interface should not be generic: " + type);
+        }
+        if (!type.getInterfaces().isEmpty()) {
+            throw new Invalid(type, "Collector interface should declare all its methods itself: " + type);
+        }
+    }
+
+    /**
+     * @param type Collector interface
+     * @return The methods to implement
+     */
+    static List<ExecutableElement> abstractMethods(TypeElement type) {
+        return ElementFilter.methodsIn(type.getEnclosedElements()).stream()
+                .filter(method -> method.getModifiers().contains(Modifier.ABSTRACT))
+                .collect(Collectors.toList());
+    }
+
+    private static int validateTag(ExecutableElement method) {
+        List<? extends VariableElement> parameters = method.getParameters();
+        int[] tags = IntStream.range(0, parameters.size())
+                .filter(i -> parameters.get(i).getAnnotation(Tag.class) != null)
+                .toArray();
+        if (tags.length > 1) {
+            throw new Invalid(method, "Method should have at most one tag parameter: " + method);
+        }
+        if (tags.length == 0) {
+            return -1;
+        }
+        VariableElement parameter = parameters.get(tags[0]);
+        if (!isString(parameter.asType()) && !isEnum(parameter.asType())) {
+            throw new Invalid(method, "Tag parameter should be an enum or a String: " + method);
+        }
+        if (parameter.getAnnotation(Tag.class).cardinality() < 1) {
+            throw new Invalid(method, "Tag cardinality should be positive: " + method);
+        }
+        return tags[0];
+    }
+
+    private static void validateCountingMethod(CollectorMethod method, String metric) {
+        if (method.method().getReturnType().getKind() != TypeKind.VOID) {
+            throw new Invalid(method.method(), metric + " method should return void: " + method.method());
+        }
+        List<VariableElement> values = method.valueParameters();
+        if (values.size() == 1 && !isLong(values.get(0).asType()) || values.size() > 1) {
+            throw new Invalid(method.method(),
+                    metric + " method should take no parameters or one long parameter: " + method.method());
+        }
+    }
+
+    private static void validateHdr(ExecutableElement method, int precision, long highest) {
+        if (precision < 0 || precision > 5) {
+            throw new Invalid(method, "Precision should be from 1 to 5 significant digits: " + method);
+        }
+        if (highest != 0L && highest < 2L) {
+            throw new Invalid(method, "Highest trackable value should be at least 2: " + method);
+        }
+    }
+
+    private static void validateSampling(ExecutableElement method, int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new Invalid(method, "Sample interval should be positive: " + method);
+        }
+    }
+
+    private static void validateWindow(ExecutableElement method, int windowSeconds) {
+        if (windowSeconds < 0) {
+            throw new Invalid(method, "Window should not be negative: " + method);
+        }
+    }
+
+    private static void validateHistogram(CollectorMethod method) {
+        Histo histo = method.method().getAnnotation(Histo.class);
+        if (histo != null) {
+            validateHdr(method.method(), histo.precision(), histo.highest());
+            validateSampling(method.method(), histo.sampleEvery());
+            validateWindow(method.method(), histo.windowSeconds());
+        }
+        if (method.method().getReturnType().getKind() != TypeKind.VOID) {
+            throw new Invalid(method.method(), "Histogram method should return void: " + method.method());
+        }
+        List<VariableElement> values = method.valueParameters();
+        if (values.size() != 1 || !isLong(values.get(0).asType()) && !isLongArray(values.get(0).asType())) {
+            throw new Invalid(method.method(),
+                    "Histogram method should take one long parameter, or a long[] of values: " + method.method());
+        }
+    }
+
+    private static void validateGauge(CollectorMethod method) {
+        ExecutableElement element = method.method();
+        if (element.getAnnotation(Gauge.class).refreshMillis() < 0L) {
+            throw new Invalid(element, "Refresh interval should not be negative: " + element);
+        }
+        if (element.getReturnType().getKind() != TypeKind.VOID) {
+            throw new Invalid(element, "Gauge method should return void: " + element);
+        }
+        List<VariableElement> values = method.valueParameters();
+        if (values.size() != 1 || !isGaugeSupplier(values.get(0).asType())) {
+            throw new Invalid(element, "Gauge method should take one LongSupplier or DoubleSupplier parameter: " + element);
+        }
+    }
+
+    private static void validateTimer(CollectorMethod method) {
+        ExecutableElement element = method.method();
+        Time time = element.getAnnotation(Time.class);
+        if (time != null) {
+            validateHdr(element, time.precision(), time.highest());
+            validateSampling(element, time.sampleEvery());
+            validateWindow(element, time.windowSeconds());
+        }
+        if (method.isTimedExecution()) {
+            validateTimedExecution(method);
+            return;
+        }
+        if (time != null && !time.failures().isEmpty()) {
+            throw new Invalid(element, "Failure counter is for timed execution only: " + element);
+        }
+        TypeKind returnKind = element.getReturnType().getKind();
+        if (returnKind == TypeKind.LONG || returnKind == TypeKind.VOID) {
+            validateStartStopTimer(method);
+            return;
+        }
+        if (!isTimer(element.getReturnType())) {
+            throw new Invalid(element, "Timer method should return " + TIMER + ", or long start time: " + element);
+        }
+        if (!method.valueParameters().isEmpty()) {
+            throw new Invalid(element, "Timer method should take no parameters: " + element);
+        }
+    }
+
+    private static void validateTimedExecution(CollectorMethod method) {
+        ExecutableElement element = method.method();
+        TypeKind returnKind = element.getReturnType().getKind();
+        if (isRunnable(method.valueParameters().get(0).asType()) && returnKind != TypeKind.VOID) {
+            throw new Invalid(element, "Timed execution of a Runnable should return void: " + element);
+        }
+        if (isSupplier(method.valueParameters().get(0).asType()) && returnKind.isPrimitive()) {
+            throw new Invalid(element, "Timed execution of a Supplier should return its result: " + element);
+        }
+    }
+
+    private static void validateStartStopTimer(CollectorMethod method) {
+        ExecutableElement element = method.method();
+        if (element.getReturnType().getKind() == TypeKind.LONG && !element.getParameters().isEmpty()) {
+            throw new Invalid(element, "Timer start method should take no parameters: " + element);
+        }
+        List<VariableElement> values = method.valueParameters();
+        if (element.getReturnType().getKind() == TypeKind.VOID &&
+                (values.size() != 1 || !isLong(values.get(0).asType()))) {
+            throw new Invalid(element, "Timer stop method should take one long start time: " + element);
+        }
+    }
+
+    private static MetricKind metricKind(ExecutableElement method) {
+        List<MetricKind> kinds = Stream.of(MetricKind.values())
+                .filter(kind -> method.getAnnotation(kind.annotation()) != null)
+                .collect(Collectors.toList());
+        if (kinds.size() > 1) {
+            throw new Invalid(method, "Found method with multiple annotations " + kinds + ": " + method);
+        }
+        if (kinds.size() == 1) {
+            return kinds.get(0);
+        }
+        if (isTimer(method.getReturnType())) {
+            return MetricKind.TIMER;
+        }
+        TypeMirror defaultMetric = defaultMetric(method.getEnclosingElement().getAnnotation(MetricsCollector.class));
+        MetricKind kind = MetricKind.of(defaultMetric.toString());
+        if (kind == null) {
+            throw new Invalid(method, "No valid annotation type: " + defaultMetric);
+        }
+        return kind;
+    }
+
+    /**
+     * The annotation's class value is not loaded at compile time, so it is read off the exception.
+     */
+    private static TypeMirror defaultMetric(MetricsCollector collector) {
+        try {
+            collector.defaultMetric();
+        } catch (MirroredTypeException e) {
+            return e.getTypeMirror();
+        }
+        throw new IllegalStateException("Expected a mirrored default metric: " + collector);
+    }
+
+    private static boolean isLong(TypeMirror type) {
+        return type.getKind() == TypeKind.LONG;
+    }
+
+    static boolean isLongArray(TypeMirror type) {
+        return type.getKind() == TypeKind.ARRAY && isLong(((ArrayType) type).getComponentType());
+    }
+
+    private static boolean isString(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && type.toString().equals(String.class.getName());
+    }
+
+    private static boolean isEnum(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && ((DeclaredType) type).asElement().getKind() == ElementKind.ENUM;
+    }
+
+    static boolean isRunnable(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && type.toString().equals(Runnable.class.getName());
+    }
+
+    static boolean isSupplier(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED &&
+                ((DeclaredType) type).asElement().toString().equals(Supplier.class.getName());
+    }
+
+    private static boolean isGaugeSupplier(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && (type.toString().equals(LongSupplier.class.getName()) ||
+                type.toString().equals(DoubleSupplier.class.getName()));
+    }
+
+    private static boolean isTimer(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && type.toString().equals(TIMER);
+    }
+
+    static final class Invalid extends RuntimeException {
+
+        private final Element element;
+
+        private Invalid(Element element, String message) {
+            super(message);
+            this.element = element;
+        }
+
+        Element element() {
+            return element;
+        }
+    }
+
+    private Vetting() {
+    }
+}
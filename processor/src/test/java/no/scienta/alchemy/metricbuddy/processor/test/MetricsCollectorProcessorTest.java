@@ -0,0 +1,237 @@
+package no.scienta.alchemy.metricbuddy.processor.test;
+
+import com.codahale.metrics.MetricRegistry;
+import no.scienta.alchemy.metricbuddy.*;
+import no.scienta.alchemy.metricbuddy.processor.MetricsCollectorProcessor;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsCollectorProcessorTest {
+
+    private MetricRegistry registry;
+
+    private MetricsCollectors metricsCollectors;
+
+    @Before
+    public void setup() {
+        registry = new MetricRegistry();
+        metricsCollectors = new MetricsCollectorsImpl(registry).withSnakeCaseNaming();
+    }
+
+    public enum Outcome {
+        OK, FAILED
+    }
+
+    /**
+     * Compiled by the processor along with the tests.
+     */
+    @MetricsCollector(defaultMetric = Inc.class)
+    public interface CompiledMetrics {
+
+        void testRun();
+
+        void testSteps(long steps);
+
+        @Meter
+        void testMeter(long meter);
+
+        @Histo @OverrideName("bigness")
+        void testSize(long size);
+
+        @Histo
+        void testSizes(long[] sizes);
+
+        MetricsCollectors.Timer testTimer();
+
+        @Time
+        long testTimed();
+
+        @Time
+        void testTimed(long startTime);
+
+        void requests(@Tag("outcome") Outcome outcome);
+
+        @Meter
+        void bytes(@Tag(value = "client", cardinality = 1) String client, long bytes);
+
+        @Time
+        <T extends Number> T work(Supplier<T> work);
+
+        @Time(failures = "run_failures")
+        void run(Runnable work);
+
+        @Gauge(refreshMillis = 60_000L)
+        void queueDepth(LongSupplier depth);
+
+        @Inc(group = "debug")
+        void debugRun();
+
+        @Time(group = "debug")
+        <T> T debugWork(Supplier<T> work);
+
+        default void testRuns(int runs) {
+            for (int i = 0; i < runs; i++) {
+                testRun();
+            }
+        }
+    }
+
+    @Test
+    public void testPrecompiledCollector() {
+        CompiledMetrics metrics = metricsCollectors.metricsCollector(this, CompiledMetrics.class);
+        assertThat(metrics.getClass().getName(), is(getClass().getName() + "_CompiledMetrics_Metrics"));
+    }
+
+    @Test
+    public void testPrecompiledRecording() {
+        CompiledMetrics metrics = metricsCollectors.metricsCollector(this, CompiledMetrics.class);
+        metrics.testRuns(2);
+        metrics.testSteps(5L);
+        metrics.testMeter(3L);
+        metrics.testSize(10L);
+        metrics.testSizes(new long[]{20L, 30L});
+        metrics.testTimer().done();
+        metrics.testTimed(metrics.testTimed());
+
+        assertThat(counter("test_run"), is(2L));
+        assertThat(counter("test_steps"), is(5L));
+        assertThat(registry.meter(name("test_meter")).getCount(), is(3L));
+        assertThat(registry.histogram(name("bigness")).getCount(), is(1L));
+        assertThat(registry.histogram(name("test_sizes")).getCount(), is(2L));
+        assertThat(registry.timer(name("test_timer")).getCount(), is(1L));
+        assertThat(registry.timer(name("test_timed")).getCount(), is(1L));
+    }
+
+    @Test
+    public void testPrecompiledTimedExecution() {
+        CompiledMetrics metrics = metricsCollectors.metricsCollector(this, CompiledMetrics.class);
+        assertThat(metrics.work(() -> 42), is(42));
+        metrics.run(() -> {
+        });
+        try {
+            metrics.run(() -> {
+                throw new IllegalStateException();
+            });
+        } catch (IllegalStateException expected) {
+            // counted
+        }
+
+        assertThat(registry.timer(name("work")).getCount(), is(1L));
+        assertThat(registry.timer(name("run")).getCount(), is(2L));
+        assertThat(counter("run_failures"), is(1L));
+    }
+
+    @Test
+    public void testPrecompiledGauge() throws InterruptedException {
+        metricsCollectors.metricsCollector(this, CompiledMetrics.class).queueDepth(() -> 7L);
+        com.codahale.metrics.Gauge<?> gauge = registry.getGauges().get(name("queue_depth"));
+        while (gauge.getValue() == null) {
+            Thread.sleep(10L);
+        }
+        assertThat(gauge.getValue(), is(7L));
+    }
+
+    @Test
+    public void testPrecompiledTags() {
+        CompiledMetrics metrics = metricsCollectors.metricsCollector(this, CompiledMetrics.class);
+        metrics.requests(Outcome.OK);
+        metrics.requests(null);
+        metrics.bytes("foo", 10L);
+        metrics.bytes("bar", 20L);
+
+        assertThat(counter("requests.outcome.OK"), is(1L));
+        assertThat(counter("requests.outcome.other"), is(1L));
+        assertThat(registry.meter(name("bytes.client.foo")).getCount(), is(10L));
+        assertThat(registry.meter(name("bytes.client.other")).getCount(), is(20L));
+    }
+
+    @Test
+    public void testPrecompiledGroups() {
+        CompiledMetrics metrics = metricsCollectors.metricsCollector(this, CompiledMetrics.class);
+        metrics.debugRun();
+        assertThat(metrics.debugWork(() -> 42), is(42));
+        assertThat(counter("debug_run"), is(0L));
+        assertThat(registry.timer(name("debug_work")).getCount(), is(0L));
+
+        metricsCollectors.enableGroup("debug");
+        try {
+            metrics.debugRun();
+            assertThat(metrics.debugWork(() -> 42), is(42));
+        } finally {
+            metricsCollectors.disableGroup("debug");
+        }
+        assertThat(counter("debug_run"), is(1L));
+        assertThat(registry.timer(name("debug_work")).getCount(), is(1L));
+    }
+
+    @Test
+    public void testInvalidCollectorFailsCompilation() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile("BadMetrics",
+                "@no.scienta.alchemy.metricbuddy.MetricsCollector\n" +
+                        "public interface BadMetrics {\n" +
+                        "    @no.scienta.alchemy.metricbuddy.Histo\n" +
+                        "    void size();\n" +
+                        "    @no.scienta.alchemy.metricbuddy.Inc\n" +
+                        "    long count();\n" +
+                        "}\n");
+        assertThat(errors.size(), is(2));
+        assertThat(errors.get(0).getMessage(null), containsString("Histogram method should take one long parameter"));
+        assertThat(errors.get(1).getMessage(null), containsString("Counter method should return void"));
+    }
+
+    @Test
+    public void testCollectorMustBeInterface() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile("BadMetrics",
+                "@no.scienta.alchemy.metricbuddy.MetricsCollector\n" +
+                        "public abstract class BadMetrics {\n" +
+                        "}\n");
+        assertThat(errors.size(), is(1));
+        assertThat(errors.get(0).getMessage(null), containsString("Must be an interface"));
+    }
+
+    private long counter(String name) {
+        return registry.counter(name(name)).getCount();
+    }
+
+    private String name(String name) {
+        return MetricRegistry.name(getClass(), name);
+    }
+
+    private static List<Diagnostic<? extends JavaFileObject>> compile(String name, String source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        File output = Files.createTempDirectory("processor-test").toFile();
+        JavaFileObject file = new SimpleJavaFileObject(
+                URI.create("string:///" + name + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+                java.util.Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                        "-d", output.getPath(), "-s", output.getPath()),
+                null, Collections.singletonList(file));
+        task.setProcessors(Collections.singletonList(new MetricsCollectorProcessor()));
+        assertTrue(!task.call());
+        return diagnostics.getDiagnostics().stream()
+                .filter(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                .collect(Collectors.toList());
+    }
+}
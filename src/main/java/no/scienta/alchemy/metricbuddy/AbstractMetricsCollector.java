@@ -1,8 +1,16 @@
 package no.scienta.alchemy.metricbuddy;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Superclass for metrics collectors.  A {@link MetricsCollectors} instance creates instances of this class, either
@@ -11,14 +19,26 @@ import java.util.concurrent.Callable;
 @SuppressWarnings({"WeakerAccess", "SameParameterValue"})
 public abstract class AbstractMetricsCollector extends ManagedBase {
 
+    /**
+     * Start time of calls which a sampled timer skips.
+     */
+    protected static final long UNSAMPLED = Long.MIN_VALUE;
+
+    /**
+     * Returned by timer methods of a disabled {@link MetricGroups group}.
+     */
+    protected static final MetricsCollectors.Timer DISABLED = () -> {
+    };
+
     protected <T> T time(String name, Callable<T> callable) {
-        MetricsCollectors.Timer timer = timer(name);
+        Timer timer = timerNamed(name);
+        long startTime = System.nanoTime();
         try {
             return callable.call();
         } catch (Exception e) {
             throw new IllegalArgumentException("Timing of '" + name + "' " + callable + " failed", e);
         } finally {
-            timer.done();
+            stopTiming(timer, startTime);
         }
     }
 
@@ -29,7 +49,17 @@ public abstract class AbstractMetricsCollector extends ManagedBase {
      * @return Timer
      */
     protected MetricsCollectors.Timer timer(String name) {
-        return getMetricRegistry().timer(MetricRegistry.name(getMeteredClass(), name)).time()::stop;
+        return timing(timerNamed(name));
+    }
+
+    /**
+     * Stop the named timer, without allocating.
+     *
+     * @param name Timer name
+     * @param startTime Start time, from {@link System#nanoTime()}
+     */
+    protected void stopTimer(String name, long startTime) {
+        stopTiming(timerNamed(name), startTime);
     }
 
     /**
@@ -39,7 +69,7 @@ public abstract class AbstractMetricsCollector extends ManagedBase {
      * @param i Value
      */
     protected void update(String name, long i) {
-        getMetricRegistry().histogram(MetricRegistry.name(getMeteredClass(), name)).update(i);
+        histogramNamed(name).update(i);
     }
 
     /**
@@ -58,7 +88,7 @@ public abstract class AbstractMetricsCollector extends ManagedBase {
      * @param i Increment
      */
     protected void inc(String name, long i) {
-        getMetricRegistry().counter(MetricRegistry.name(getMeteredClass(), name)).inc(i);
+        counterNamed(name).inc(i);
     }
 
     /**
@@ -77,7 +107,7 @@ public abstract class AbstractMetricsCollector extends ManagedBase {
      * @param i Decrement
      */
     protected void dec(String name, long i) {
-        getMetricRegistry().counter(MetricRegistry.name(getMeteredClass(), name)).dec(i);
+        counterNamed(name).dec(i);
     }
 
     /**
@@ -95,6 +125,372 @@ public abstract class AbstractMetricsCollector extends ManagedBase {
      * @param i Increment
      */
     protected void meter(String name, long i) {
-        getMetricRegistry().meter(MetricRegistry.name(getMeteredClass(), name)).mark(i);
+        meterNamed(name).mark(i);
+    }
+
+    /**
+     * Resolve the named counter in the registry.
+     *
+     * @param name Counter name
+     * @return Counter
+     */
+    protected Counter counterNamed(String name) {
+        return counterNamed(name, null);
+    }
+
+    /**
+     * Resolve the named counter in the registry.
+     *
+     * @param name Counter name
+     * @param method Collector method declaring the counter, or null
+     * @return Counter
+     */
+    protected Counter counterNamed(String name, Method method) {
+        return getRecording().counter(getMetricRegistry(), MetricRegistry.name(getMeteredClass(), name), method);
+    }
+
+    /**
+     * Resolve the named meter in the registry.
+     *
+     * @param name Meter name
+     * @return Meter
+     */
+    protected Meter meterNamed(String name) {
+        return meterNamed(name, null);
+    }
+
+    /**
+     * Resolve the named meter in the registry.
+     *
+     * @param name Meter name
+     * @param method Collector method declaring the meter, or null
+     * @return Meter
+     */
+    protected Meter meterNamed(String name, Method method) {
+        return getRecording().meter(getMetricRegistry(), MetricRegistry.name(getMeteredClass(), name), method);
+    }
+
+    /**
+     * Resolve the named histogram in the registry.
+     *
+     * @param name Histogram name
+     * @return Histogram
+     */
+    protected Histogram histogramNamed(String name) {
+        return histogramNamed(name, null);
+    }
+
+    /**
+     * Resolve the named histogram in the registry.
+     *
+     * @param name Histogram name
+     * @param method Collector method declaring the histogram, or null
+     * @return Histogram
+     */
+    protected Histogram histogramNamed(String name, Method method) {
+        return getRecording().histogram(getMetricRegistry(), MetricRegistry.name(getMeteredClass(), name), method);
+    }
+
+    /**
+     * Resolve the named timer in the registry.
+     *
+     * @param name Timer name
+     * @return Timer
+     */
+    protected Timer timerNamed(String name) {
+        return timerNamed(name, null);
+    }
+
+    /**
+     * Resolve the named timer in the registry.
+     *
+     * @param name Timer name
+     * @param method Collector method declaring the timer, or null
+     * @return Timer
+     */
+    protected Timer timerNamed(String name, Method method) {
+        return getRecording().timer(getMetricRegistry(), MetricRegistry.name(getMeteredClass(), name), method);
+    }
+
+    /**
+     * Resolve the named gauge in the registry.
+     *
+     * @param name Gauge name
+     * @param method Collector method declaring the gauge, or null
+     * @return Gauge
+     */
+    protected SuppliedGauge gaugeNamed(String name, Method method) {
+        return getRecording().gauge(getMetricRegistry(), MetricRegistry.name(getMeteredClass(), name), method);
+    }
+
+    /**
+     * Resolve the id of the named counter in the {@link MetricsCollectors#withMetricStore(MetricStore) store}.
+     *
+     * @param name Counter name
+     * @param method Collector method declaring the counter, or null
+     * @return Counter id
+     */
+    protected int counterId(String name, Method method) {
+        return getRecording().metricStore().counterId(MetricRegistry.name(getMeteredClass(), name));
+    }
+
+    /**
+     * Resolve the id of the named meter in the {@link MetricsCollectors#withMetricStore(MetricStore) store}.
+     *
+     * @param name Meter name
+     * @param method Collector method declaring the meter, or null
+     * @return Meter id
+     */
+    protected int meterId(String name, Method method) {
+        return getRecording().metricStore().meterId(MetricRegistry.name(getMeteredClass(), name));
+    }
+
+    /**
+     * Count once, for a counter or meter in the store.
+     *
+     * @param id Metric id
+     */
+    protected final void storeAdd(int id) {
+        getRecording().metricStore().add(id, 1L);
+    }
+
+    /**
+     * Count, for a counter or meter in the store.
+     *
+     * @param id Metric id
+     * @param n Count
+     */
+    protected final void storeAdd(int id, long n) {
+        getRecording().metricStore().add(id, n);
+    }
+
+    /**
+     * Resolve the counters of a tagged metric.
+     *
+     * @param name Counter name
+     * @param method Collector method with a {@link Tag} parameter
+     * @return Counters
+     */
+    protected Tagged<Counter> taggedCounters(String name, Method method) {
+        return new Tagged<>(value -> counterNamed(value, method), name, method);
+    }
+
+    /**
+     * Resolve the meters of a tagged metric.
+     *
+     * @param name Meter name
+     * @param method Collector method with a {@link Tag} parameter
+     * @return Meters
+     */
+    protected Tagged<Meter> taggedMeters(String name, Method method) {
+        return new Tagged<>(value -> meterNamed(value, method), name, method);
+    }
+
+    /**
+     * Resolve the histograms of a tagged metric.
+     *
+     * @param name Histogram name
+     * @param method Collector method with a {@link Tag} parameter
+     * @return Histograms
+     */
+    protected Tagged<Histogram> taggedHistograms(String name, Method method) {
+        return new Tagged<>(value -> histogramNamed(value, method), name, method);
+    }
+
+    /**
+     * Resolve the timers of a tagged metric.
+     *
+     * @param name Timer name
+     * @param method Collector method with a {@link Tag} parameter
+     * @return Timers
+     */
+    protected Tagged<Timer> taggedTimers(String name, Method method) {
+        return new Tagged<>(value -> timerNamed(value, method), name, method);
+    }
+
+    /**
+     * Resolve the gauges of a tagged metric.
+     *
+     * @param name Gauge name
+     * @param method Collector method with a {@link Tag} parameter
+     * @return Gauges
+     */
+    protected Tagged<SuppliedGauge> taggedGauges(String name, Method method) {
+        return new Tagged<>(value -> gaugeNamed(value, method), name, method);
+    }
+
+    /**
+     * Name the metric of a collector method, honoring {@link OverrideName} and the name strategy in effect.
+     *
+     * @param method Collector method
+     * @return Metric name
+     */
+    protected String metricName(Method method) {
+        return metricName(getMetricNameStrategy(), method);
+    }
+
+    /**
+     * Look up a method of a collector interface.  Used by collectors generated at compile time.
+     *
+     * @param type Collector interface
+     * @param name Method name
+     * @param parameterTypes Parameter types
+     * @return Method
+     */
+    protected static Method collectorMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getDeclaredMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Generated collector is out of date with " + type, e);
+        }
+    }
+
+    /**
+     * Update a resolved histogram with each of the values.
+     *
+     * @param histogram Histogram
+     * @param values Values
+     */
+    protected static void updateAll(Histogram histogram, long[] values) {
+        for (long value : values) {
+            histogram.update(value);
+        }
+    }
+
+    /**
+     * Get the guard of a metric group, for a static final field.  Used by generated collectors.
+     *
+     * @param group Group name
+     * @return Guard, for {@link #enabled(MethodHandle)}
+     */
+    protected static MethodHandle groupGuard(String group) {
+        return MetricGroups.guard(group);
+    }
+
+    /**
+     * @param guard Guard of a metric group, from a static final field
+     * @return True if the group is enabled
+     */
+    protected static boolean enabled(MethodHandle guard) {
+        try {
+            return (boolean) guard.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to check " + guard, e);
+        }
+    }
+
+    /**
+     * Start timing with a resolved timer.  Calls which a sampled timer skips are only counted, when done.
+     *
+     * @param timer Timer
+     * @return Timer
+     */
+    protected static MetricsCollectors.Timer timing(Timer timer) {
+        if (timer instanceof SampledTimer && !((SampledTimer) timer).sample()) {
+            return ((SampledTimer) timer).skipped;
+        }
+        return timer.time()::stop;
+    }
+
+    /**
+     * Start timing with a resolved timer, without allocating.
+     *
+     * @param timer Timer
+     * @return Start time, from {@link System#nanoTime()}, or {@link #UNSAMPLED} if a sampled timer skips this call
+     */
+    protected static long startTiming(Timer timer) {
+        if (timer instanceof SampledTimer && !((SampledTimer) timer).sample()) {
+            return UNSAMPLED;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Stop timing with a resolved timer, without allocating.
+     *
+     * @param timer Timer
+     * @param startTime Start time, from {@link #startTiming(Timer)} or {@link System#nanoTime()}.  {@link #UNSAMPLED}
+     * is only counted by sampled timers.
+     */
+    protected static void stopTiming(Timer timer, long startTime) {
+        if (startTime != UNSAMPLED) {
+            timer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        } else if (timer instanceof SampledTimer) {
+            ((SampledTimer) timer).skip();
+        }
+    }
+
+    /**
+     * Time some work with a resolved timer, without allocating.  Exceptions propagate unchanged.
+     *
+     * @param timer Timer
+     * @param work Work
+     * @param <T> Result type
+     * @return Result of the work
+     */
+    protected static <T> T timed(Timer timer, Supplier<T> work) {
+        long startTime = startTiming(timer);
+        try {
+            return work.get();
+        } finally {
+            stopTiming(timer, startTime);
+        }
+    }
+
+    /**
+     * Time some work with a resolved timer, without allocating.  Exceptions propagate unchanged.
+     *
+     * @param timer Timer
+     * @param work Work
+     */
+    protected static void timed(Timer timer, Runnable work) {
+        long startTime = startTiming(timer);
+        try {
+            work.run();
+        } finally {
+            stopTiming(timer, startTime);
+        }
+    }
+
+    /**
+     * Time some work with a resolved timer, without allocating, and count it if it fails.  Exceptions propagate
+     * unchanged.
+     *
+     * @param timer Timer
+     * @param failures Counter of failed work
+     * @param work Work
+     * @param <T> Result type
+     * @return Result of the work
+     */
+    protected static <T> T timed(Timer timer, Counter failures, Supplier<T> work) {
+        long startTime = startTiming(timer);
+        try {
+            return work.get();
+        } catch (Throwable e) {
+            failures.inc();
+            throw e;
+        } finally {
+            stopTiming(timer, startTime);
+        }
+    }
+
+    /**
+     * Time some work with a resolved timer, without allocating, and count it if it fails.  Exceptions propagate
+     * unchanged.
+     *
+     * @param timer Timer
+     * @param failures Counter of failed work
+     * @param work Work
+     */
+    protected static void timed(Timer timer, Counter failures, Runnable work) {
+        long startTime = startTiming(timer);
+        try {
+            work.run();
+        } catch (Throwable e) {
+            failures.inc();
+            throw e;
+        } finally {
+            stopTiming(timer, startTime);
+        }
     }
 }
@@ -23,6 +23,17 @@ public class AbstractSeparatorNamer implements MetricsCollectors.MetricNameStrat
         return cache.computeIfAbsent(method.getName(), this::casedName);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o != null && o.getClass() == getClass() &&
+                separator == ((AbstractSeparatorNamer) o).separator;
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode() * 31 + separator;
+    }
+
     private String casedName(String name) {
         return name.chars()
                 .mapToObj(i -> (char) i)
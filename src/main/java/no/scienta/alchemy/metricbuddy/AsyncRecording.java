@@ -0,0 +1,270 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+/**
+ * Records through an {@link EventRing}, so that recording threads only publish an event.  Each metric gets an id when
+ * it is created, and a daemon thread applies the events to the underlying metrics in batches.  Metrics show the
+ * events once they are consumed, {@link #flush()} waits for that.  The consumer backs off while the ring is empty,
+ * and stops when the recording is {@link #close() closed}, after which metrics are updated directly.
+ * <p>
+ * The occupancy of the ring, the number of dropped events and the number of events the metrics failed to apply are
+ * exported as {@value #OCCUPANCY}, {@value #DROPPED} and {@value #FAILURES}, summed over the recordings of the
+ * registry.
+ */
+final class AsyncRecording {
+
+    static final String OCCUPANCY = "metricsbuddy.async.occupancy";
+
+    static final String DROPPED = "metricsbuddy.async.dropped";
+
+    static final String FAILURES = "metricsbuddy.async.failures";
+
+    private static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final EventRing ring;
+
+    private final MetricsCollectors.Backpressure backpressure;
+
+    private final Counter dropped;
+
+    private final Counter failures;
+
+    private final Occupancy occupancy;
+
+    private final Thread consumer;
+
+    private volatile LongConsumer[] sinks = new LongConsumer[0];
+
+    private volatile boolean closed;
+
+    AsyncRecording(MetricRegistry registry, int capacity, MetricsCollectors.Backpressure backpressure) {
+        this.ring = new EventRing(capacity);
+        this.backpressure = backpressure;
+        this.dropped = registry.counter(DROPPED);
+        this.failures = registry.counter(FAILURES);
+        Gauge<?> gauge = registry.gauge(OCCUPANCY, Occupancy::new);
+        if (!(gauge instanceof Occupancy)) {
+            throw new IllegalArgumentException("Registry has another gauge named " + OCCUPANCY + ": " + gauge);
+        }
+        this.occupancy = (Occupancy) gauge;
+        this.occupancy.rings.add(ring);
+        this.consumer = new Thread(this::consume, "metrics-consumer");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    Counter newCounter() {
+        return new AsyncCounter(this);
+    }
+
+    Meter newMeter() {
+        return new AsyncMeter(this);
+    }
+
+    Histogram newHistogram(Reservoir reservoir) {
+        return new AsyncHistogram(this, reservoir);
+    }
+
+    Timer newTimer(Reservoir reservoir) {
+        return new AsyncTimer(this, reservoir);
+    }
+
+    /**
+     * Wait until all events published so far are applied.
+     */
+    void flush() {
+        long published = ring.tail();
+        while (ring.head() < published && consumer.isAlive()) {
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * Apply the events published so far, and stop the consumer.  Later updates go straight to the metrics, and
+     * updates racing with the close may be lost.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(consumer);
+        boolean interrupted = false;
+        while (consumer.isAlive()) {
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        occupancy.rings.remove(ring);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized int id(LongConsumer sink) {
+        LongConsumer[] sinks = Arrays.copyOf(this.sinks, this.sinks.length + 1);
+        sinks[this.sinks.length] = sink;
+        this.sinks = sinks;
+        return sinks.length - 1;
+    }
+
+    private void publish(int id, long value) {
+        if (closed) {
+            apply(id, value);
+            return;
+        }
+        if (ring.offer(id, value)) {
+            return;
+        }
+        if (backpressure == MetricsCollectors.Backpressure.DROP) {
+            dropped.inc();
+            return;
+        }
+        do {
+            if (closed) {
+                apply(id, value);
+                return;
+            }
+            LockSupport.parkNanos(IDLE_NANOS);
+        } while (!ring.offer(id, value));
+    }
+
+    /**
+     * Drain the ring until it is empty and closed, parking longer the longer it stays empty.
+     */
+    private void consume() {
+        EventRing.EventConsumer apply = this::apply;
+        long idleNanos = IDLE_NANOS;
+        while (true) {
+            if (ring.drain(apply) > 0) {
+                idleNanos = IDLE_NANOS;
+            } else if (closed) {
+                return;
+            } else {
+                LockSupport.parkNanos(idleNanos);
+                idleNanos = Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Counts the events a metric fails to apply, so that a failing metric doesn't stop the consumer.
+     */
+    private void apply(int id, long value) {
+        try {
+            sinks[id].accept(value);
+        } catch (Throwable e) {
+            failures.inc();
+        }
+    }
+
+    /**
+     * Sums the occupancy of the recordings sharing a registry.
+     */
+    private static final class Occupancy implements Gauge<Integer> {
+
+        private final Collection<EventRing> rings = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Integer getValue() {
+            int occupancy = 0;
+            for (EventRing ring : rings) {
+                occupancy += ring.occupancy();
+            }
+            return occupancy;
+        }
+    }
+
+    private static final class AsyncCounter extends Counter {
+
+        private final AsyncRecording recording;
+
+        private final int id;
+
+        private AsyncCounter(AsyncRecording recording) {
+            this.recording = recording;
+            this.id = recording.id(super::inc);
+        }
+
+        @Override
+        public void inc(long n) {
+            recording.publish(id, n);
+        }
+
+        @Override
+        public void dec(long n) {
+            recording.publish(id, -n);
+        }
+    }
+
+    private static final class AsyncMeter extends Meter {
+
+        private final AsyncRecording recording;
+
+        private final int id;
+
+        private AsyncMeter(AsyncRecording recording) {
+            this.recording = recording;
+            this.id = recording.id(super::mark);
+        }
+
+        @Override
+        public void mark(long n) {
+            recording.publish(id, n);
+        }
+    }
+
+    private static final class AsyncHistogram extends Histogram {
+
+        private final AsyncRecording recording;
+
+        private final int id;
+
+        private AsyncHistogram(AsyncRecording recording, Reservoir reservoir) {
+            super(reservoir);
+            this.recording = recording;
+            this.id = recording.id(super::update);
+        }
+
+        @Override
+        public void update(long value) {
+            recording.publish(id, value);
+        }
+    }
+
+    private static final class AsyncTimer extends Timer {
+
+        private final AsyncRecording recording;
+
+        private final int id;
+
+        private AsyncTimer(AsyncRecording recording, Reservoir reservoir) {
+            super(reservoir);
+            this.recording = recording;
+            this.id = recording.id(nanos -> super.update(nanos, TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public void update(long duration, TimeUnit unit) {
+            recording.publish(id, unit.toNanos(duration));
+        }
+    }
+}
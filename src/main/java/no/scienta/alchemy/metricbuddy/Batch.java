@@ -0,0 +1,53 @@
+package no.scienta.alchemy.metricbuddy;
+
+/**
+ * A scope of collector updates, applied to the metrics in one pass when it closes.  Repeated counts to a counter or
+ * meter are summed into one update.  Get batches from {@link MetricsCollectors#batch(Object, Class)}, and close
+ * them in the thread that opened them:
+ * <pre>
+ * try (Batch&lt;MyMetrics&gt; batch = collectors.batch(this, MyMetrics.class)) {
+ *     batch.metrics().hits();
+ *     batch.metrics().sizes(sizes);
+ * }
+ * </pre>
+ * Batches are reused per thread, and nested batches are applied when the outermost closes.  Threads keep their batches
+ * in the collector types, so they don't keep the classes of sources and collectors loaded.
+ *
+ * @param <T> Collector interface type
+ */
+public final class Batch<T> implements AutoCloseable {
+
+    private final T metrics;
+
+    private final BatchBuffer buffer;
+
+    Batch(T metrics, BatchBuffer buffer) {
+        this.metrics = metrics;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return Collector recording to this thread's batch.  Only to be used by the thread.
+     */
+    public T metrics() {
+        return metrics;
+    }
+
+    /**
+     * Apply the updates of the batch, unless it is nested in another.
+     */
+    @Override
+    public void close() {
+        buffer.close();
+    }
+
+    Batch<T> opened() {
+        buffer.open();
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + metrics + "]";
+    }
+}
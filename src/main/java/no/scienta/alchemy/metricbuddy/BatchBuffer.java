@@ -0,0 +1,352 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the updates of a thread's open {@link Batch batches} until the outermost one closes.  Collectors in a batch
+ * record to stand-ins for their metrics, each with a slot in the buffer.  Counts to the same slot are summed, and
+ * histogram and timer values are kept in order, up to {@value #CAPACITY} of them.  Closing applies the sums and
+ * values to the metrics in one pass, and clears the buffer for the next batch.  Outside of a batch, the stand-ins
+ * record straight to their metrics.
+ * <p>
+ * Buffers and their stand-ins are confined to their thread.
+ */
+final class BatchBuffer {
+
+    private static final int CAPACITY = 256;
+
+    private final Map<Metric, Metric> standIns = new IdentityHashMap<>();
+
+    private Sink[] sinks = new Sink[16];
+
+    private int slots;
+
+    private long[] counts = new long[16];
+
+    private boolean[] counted = new boolean[16];
+
+    private int[] touched = new int[16];
+
+    private int touchedCount;
+
+    private final int[] valueSlots = new int[CAPACITY];
+
+    private final long[] values = new long[CAPACITY];
+
+    private int valueCount;
+
+    private int depth;
+
+    void open() {
+        depth++;
+    }
+
+    /**
+     * Close a batch, applying the buffered updates if it is the outermost.
+     */
+    void close() {
+        if (depth == 0) {
+            throw new IllegalStateException("Batch is not open");
+        }
+        if (--depth == 0) {
+            apply();
+        }
+    }
+
+    Counter counter(Counter counter) {
+        return standIn(counter, BatchedCounter::new);
+    }
+
+    Meter meter(Meter meter) {
+        return standIn(meter, BatchedMeter::new);
+    }
+
+    Histogram histogram(Histogram histogram) {
+        return standIn(histogram, BatchedHistogram::new);
+    }
+
+    Timer timer(Timer timer) {
+        return standIn(timer, BatchedTimer::new);
+    }
+
+    private void count(int slot, long n) {
+        if (depth == 0) {
+            sinks[slot].apply(n);
+            return;
+        }
+        if (!counted[slot]) {
+            counted[slot] = true;
+            touched[touchedCount++] = slot;
+        }
+        counts[slot] += n;
+    }
+
+    private void value(int slot, long value) {
+        if (depth == 0) {
+            sinks[slot].apply(value);
+            return;
+        }
+        if (valueCount == CAPACITY) {
+            applyValues();
+        }
+        valueSlots[valueCount] = slot;
+        values[valueCount++] = value;
+    }
+
+    private void apply() {
+        for (int i = 0; i < touchedCount; i++) {
+            int slot = touched[i];
+            sinks[slot].apply(counts[slot]);
+            counts[slot] = 0L;
+            counted[slot] = false;
+        }
+        touchedCount = 0;
+        applyValues();
+    }
+
+    private void applyValues() {
+        for (int i = 0; i < valueCount; i++) {
+            sinks[valueSlots[i]].apply(values[i]);
+        }
+        valueCount = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <M extends Metric> M standIn(M metric, StandInFactory<M> factory) {
+        Metric existing = standIns.get(metric);
+        if (existing != null) {
+            return (M) existing;
+        }
+        if (slots == sinks.length) {
+            sinks = Arrays.copyOf(sinks, slots * 2);
+            counts = Arrays.copyOf(counts, slots * 2);
+            counted = Arrays.copyOf(counted, slots * 2);
+            touched = Arrays.copyOf(touched, slots * 2);
+        }
+        M standIn = factory.create(this, slots, metric);
+        sinks[slots++] = (Sink) standIn;
+        standIns.put(metric, standIn);
+        return standIn;
+    }
+
+    private interface StandInFactory<M extends Metric> {
+
+        M create(BatchBuffer buffer, int slot, M metric);
+    }
+
+    /**
+     * Applies buffered updates to the metric of a slot.
+     */
+    private interface Sink {
+
+        void apply(long value);
+    }
+
+    private static final class BatchedCounter extends Counter implements Sink {
+
+        private final BatchBuffer buffer;
+
+        private final int slot;
+
+        private final Counter counter;
+
+        private BatchedCounter(BatchBuffer buffer, int slot, Counter counter) {
+            this.buffer = buffer;
+            this.slot = slot;
+            this.counter = counter;
+        }
+
+        @Override
+        public void inc(long n) {
+            buffer.count(slot, n);
+        }
+
+        @Override
+        public void dec(long n) {
+            buffer.count(slot, -n);
+        }
+
+        @Override
+        public long getCount() {
+            return counter.getCount();
+        }
+
+        @Override
+        public void apply(long value) {
+            counter.inc(value);
+        }
+    }
+
+    private static final class BatchedMeter extends Meter implements Sink {
+
+        private final BatchBuffer buffer;
+
+        private final int slot;
+
+        private final Meter meter;
+
+        private BatchedMeter(BatchBuffer buffer, int slot, Meter meter) {
+            this.buffer = buffer;
+            this.slot = slot;
+            this.meter = meter;
+        }
+
+        @Override
+        public void mark(long n) {
+            buffer.count(slot, n);
+        }
+
+        @Override
+        public long getCount() {
+            return meter.getCount();
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return meter.getFifteenMinuteRate();
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return meter.getFiveMinuteRate();
+        }
+
+        @Override
+        public double getMeanRate() {
+            return meter.getMeanRate();
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return meter.getOneMinuteRate();
+        }
+
+        @Override
+        public void apply(long value) {
+            meter.mark(value);
+        }
+    }
+
+    /**
+     * Reads come from the histogram, so the reservoir of the stand-in stays empty.
+     */
+    private static final class BatchedHistogram extends Histogram implements Sink {
+
+        private final BatchBuffer buffer;
+
+        private final int slot;
+
+        private final Histogram histogram;
+
+        private BatchedHistogram(BatchBuffer buffer, int slot, Histogram histogram) {
+            super(new UniformReservoir(1));
+            this.buffer = buffer;
+            this.slot = slot;
+            this.histogram = histogram;
+        }
+
+        @Override
+        public void update(long value) {
+            buffer.value(slot, value);
+        }
+
+        @Override
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return histogram.getSnapshot();
+        }
+
+        @Override
+        public void apply(long value) {
+            histogram.update(value);
+        }
+    }
+
+    /**
+     * Reads come from the timer, so the reservoir of the stand-in stays empty.  A sampled stand-in, so that collectors
+     * sample through the timer, which samples every call unless it is sampled itself.  Skipped calls are counted
+     * straight away.
+     */
+    private static final class BatchedTimer extends SampledTimer implements Sink {
+
+        private final BatchBuffer buffer;
+
+        private final int slot;
+
+        private final Timer timer;
+
+        private BatchedTimer(BatchBuffer buffer, int slot, Timer timer) {
+            super(new UniformReservoir(1), Sampler.every(1));
+            this.buffer = buffer;
+            this.slot = slot;
+            this.timer = timer;
+        }
+
+        @Override
+        boolean sample() {
+            return !(timer instanceof SampledTimer) || ((SampledTimer) timer).sample();
+        }
+
+        @Override
+        void skip() {
+            if (timer instanceof SampledTimer) {
+                ((SampledTimer) timer).skip();
+            }
+        }
+
+        @Override
+        public void update(long duration, TimeUnit unit) {
+            buffer.value(slot, unit.toNanos(duration));
+        }
+
+        @Override
+        public long getCount() {
+            return timer.getCount();
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return timer.getSnapshot();
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return timer.getFifteenMinuteRate();
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return timer.getFiveMinuteRate();
+        }
+
+        @Override
+        public double getMeanRate() {
+            return timer.getMeanRate();
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return timer.getOneMinuteRate();
+        }
+
+        @Override
+        public void apply(long value) {
+            timer.update(value, TimeUnit.NANOSECONDS);
+        }
+    }
+}
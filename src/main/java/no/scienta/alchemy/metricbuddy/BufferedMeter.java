@@ -0,0 +1,60 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Meter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A meter which only adds marks to striped cells, leaving the shared count and rates of the underlying meter to be
+ * updated on {@link #flush()}.  Reads flush first, so the registry never sees stale values.
+ */
+final class BufferedMeter extends Meter {
+
+    private final LongAdder marks = new LongAdder();
+
+    private long flushed;
+
+    @Override
+    public void mark(long n) {
+        marks.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        flush();
+        return super.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        flush();
+        return super.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        flush();
+        return super.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        flush();
+        return super.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        flush();
+        return super.getOneMinuteRate();
+    }
+
+    synchronized void flush() {
+        long total = marks.sum();
+        long delta = total - flushed;
+        if (delta != 0) {
+            flushed = total;
+            super.mark(delta);
+        }
+    }
+}
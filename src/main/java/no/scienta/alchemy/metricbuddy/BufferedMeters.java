@@ -0,0 +1,85 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Meter;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates {@link BufferedMeter buffered meters}, and flushes them into their rates periodically.  All instances are
+ * flushed by one shared background thread, and stop being flushed when they become unreachable.  Meters are held
+ * weakly, so meters which are no longer used, like those of evicted or dropped metrics, are released.
+ */
+final class BufferedMeters {
+
+    private final Collection<WeakReference<BufferedMeter>> meters = new ConcurrentLinkedQueue<>();
+
+    BufferedMeters(Duration flushInterval) {
+        if (flushInterval.isNegative() || flushInterval.isZero()) {
+            throw new IllegalArgumentException("Expected positive flush interval: " + flushInterval);
+        }
+        long nanos = flushInterval.toNanos();
+        Flush flush = new Flush(this);
+        flush.future = Flusher.SCHEDULER.scheduleAtFixedRate(flush, nanos, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    Meter newMeter() {
+        BufferedMeter meter = new BufferedMeter();
+        meters.add(new WeakReference<>(meter));
+        return meter;
+    }
+
+    void flush() {
+        for (Iterator<WeakReference<BufferedMeter>> iterator = meters.iterator(); iterator.hasNext(); ) {
+            BufferedMeter meter = iterator.next().get();
+            if (meter == null) {
+                iterator.remove();
+            } else {
+                meter.flush();
+            }
+        }
+    }
+
+    /**
+     * Flushes the meters while they are reachable, and cancels itself when they are not.
+     */
+    private static final class Flush implements Runnable {
+
+        private final WeakReference<BufferedMeters> meters;
+
+        private volatile ScheduledFuture<?> future;
+
+        private Flush(BufferedMeters meters) {
+            this.meters = new WeakReference<>(meters);
+        }
+
+        @Override
+        public void run() {
+            BufferedMeters meters = this.meters.get();
+            if (meters != null) {
+                meters.flush();
+            } else if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Holds the shared scheduler, started when the first buffered recording is set up.
+     */
+    private static final class Flusher {
+
+        private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,93 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The counters and meters of a {@link MetricStore} which changed since a {@link MetricStore.Cursor cursor}'s last
+ * snapshot, in the order they first changed.  Each metric has its cumulative count, and its delta: the change in
+ * count since the last snapshot.
+ */
+public final class DeltaSnapshot {
+
+    private final String[] names;
+
+    private final boolean[] meters;
+
+    private final long[] counts;
+
+    private final long[] deltas;
+
+    private final int size;
+
+    DeltaSnapshot(String[] names, boolean[] meters, long[] counts, long[] deltas, int size) {
+        this.names = names;
+        this.meters = meters;
+        this.counts = counts;
+        this.deltas = deltas;
+        this.size = size;
+    }
+
+    /**
+     * @return Number of changed metrics
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index Index, below {@link #size()}
+     * @return Metric name
+     */
+    public String name(int index) {
+        return names[checked(index)];
+    }
+
+    /**
+     * @param index Index, below {@link #size()}
+     * @return True if the metric is a meter, false if it is a counter
+     */
+    public boolean isMeter(int index) {
+        return meters[checked(index)];
+    }
+
+    /**
+     * @param index Index, below {@link #size()}
+     * @return Cumulative count
+     */
+    public long count(int index) {
+        return counts[checked(index)];
+    }
+
+    /**
+     * @param index Index, below {@link #size()}
+     * @return Change in count since the last snapshot
+     */
+    public long delta(int index) {
+        return deltas[checked(index)];
+    }
+
+    /**
+     * @return Deltas by metric name
+     */
+    public Map<String, Long> deltas() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(names[i], deltas[i]);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private int checked(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + deltas() + "]";
+    }
+}
@@ -0,0 +1,143 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Atomic and ordered access to direct buffers by address, for memory shared with other processes.  Java 8 has no
+ * public API for this, so it goes through {@code sun.misc.Unsafe}, looked up reflectively and called through method
+ * handles in static final fields, which the JIT inlines like direct calls.  Addresses must be aligned to the size of
+ * the value, and callers must keep the buffer reachable while they use its address.
+ */
+final class DirectMemory {
+
+    private static final Object UNSAFE = unsafe();
+
+    private static final MethodHandle GET_AND_ADD_LONG =
+            handle("getAndAddLong", methodType(long.class, Object.class, long.class, long.class));
+
+    private static final MethodHandle GET_LONG_VOLATILE =
+            handle("getLongVolatile", methodType(long.class, Object.class, long.class));
+
+    private static final MethodHandle GET_INT_VOLATILE =
+            handle("getIntVolatile", methodType(int.class, Object.class, long.class));
+
+    private static final MethodHandle PUT_ORDERED_INT =
+            handle("putOrderedInt", methodType(void.class, Object.class, long.class, int.class));
+
+    private static final MethodHandle PUT_ORDERED_LONG =
+            handle("putOrderedLong", methodType(void.class, Object.class, long.class, long.class));
+
+    private static final MethodHandle PUT_LONG_VOLATILE =
+            handle("putLongVolatile", methodType(void.class, Object.class, long.class, long.class));
+
+    private static final MethodHandle GET_LONG =
+            handle("getLong", methodType(long.class, Object.class, long.class));
+
+    private static final long ADDRESS = addressOffset();
+
+    static long address(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Expected direct buffer: " + buffer);
+        }
+        try {
+            return (long) GET_LONG.invokeExact((Object) buffer, ADDRESS);
+        } catch (Throwable e) {
+            throw failed(e);
+        }
+    }
+
+    static long getAndAddLong(long address, long delta) {
+        try {
+            return (long) GET_AND_ADD_LONG.invokeExact((Object) null, address, delta);
+        } catch (Throwable e) {
+            throw failed(e);
+        }
+    }
+
+    static long getLongVolatile(long address) {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable e) {
+            throw failed(e);
+        }
+    }
+
+    static int getIntVolatile(long address) {
+        try {
+            return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable e) {
+            throw failed(e);
+        }
+    }
+
+    static void putIntOrdered(long address, int value) {
+        try {
+            PUT_ORDERED_INT.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw failed(e);
+        }
+    }
+
+    static void putLongOrdered(long address, long value) {
+        try {
+            PUT_ORDERED_LONG.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw failed(e);
+        }
+    }
+
+    static void putLongVolatile(long address, long value) {
+        try {
+            PUT_LONG_VOLATILE.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw failed(e);
+        }
+    }
+
+    private static RuntimeException failed(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException("Direct memory access failed", e);
+    }
+
+    private static Object unsafe() {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (Exception e) {
+            throw new IllegalStateException("Direct memory access is not available", e);
+        }
+    }
+
+    private static MethodHandle handle(String name, MethodType type) {
+        try {
+            return MethodHandles.lookup().findVirtual(UNSAFE.getClass(), name, type).bindTo(UNSAFE);
+        } catch (Exception e) {
+            throw new IllegalStateException("Direct memory access is not available: " + name, e);
+        }
+    }
+
+    private static long addressOffset() {
+        try {
+            MethodHandle objectFieldOffset = handle("objectFieldOffset", methodType(long.class, Field.class));
+            return (long) objectFieldOffset.invokeExact(Buffer.class.getDeclaredField("address"));
+        } catch (Throwable e) {
+            throw new IllegalStateException("Direct buffer addresses are not available", e);
+        }
+    }
+
+    private DirectMemory() {
+    }
+}
@@ -0,0 +1,112 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded multi-producer, single-consumer ring of (metric id, value) events.  Producers claim a sequence with a
+ * compare-and-set, write the event into the slot, and publish it with an ordered write of the sequence.  The consumer
+ * reads slots in order as long as they are published, and frees them by moving the head past them.
+ */
+final class EventRing {
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final int[] ids;
+
+    private final long[] values;
+
+    /**
+     * The sequence of the event in each slot, plus one.  Zero means the slot was never published.
+     */
+    private final AtomicLongArray published;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong head = new AtomicLong();
+
+    EventRing(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Expected a power of two capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.ids = new int[capacity];
+        this.values = new long[capacity];
+        this.published = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * @return True if the event was published, false if the ring is full
+     */
+    boolean offer(int id, long value) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        ids[slot] = id;
+        values[slot] = value;
+        published.lazySet(slot, sequence + 1);
+        return true;
+    }
+
+    /**
+     * Consume published events in order.  Only to be called by the consumer.
+     *
+     * @param consumer Consumer of events
+     * @return Number of events consumed
+     */
+    int drain(EventConsumer consumer) {
+        long sequence = head.get();
+        int drained = 0;
+        while (drained < capacity) {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence + 1) {
+                break;
+            }
+            consumer.accept(ids[slot], values[slot]);
+            sequence++;
+            drained++;
+        }
+        if (drained > 0) {
+            head.lazySet(sequence);
+        }
+        return drained;
+    }
+
+    /**
+     * @return Events claimed by producers and not yet consumed
+     */
+    int occupancy() {
+        return (int) Math.max(0L, tail.get() - head.get());
+    }
+
+    /**
+     * @return Sequence of the next event to be claimed
+     */
+    long tail() {
+        return tail.get();
+    }
+
+    /**
+     * @return Sequence of the next event to be consumed
+     */
+    long head() {
+        return head.get();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    interface EventConsumer {
+
+        void accept(int id, long value);
+    }
+}
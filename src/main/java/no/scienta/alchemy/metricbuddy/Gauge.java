@@ -0,0 +1,17 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Gauge {
+
+    /**
+     * @return Evaluate the supplier this often, in milliseconds, on a shared background thread, and report the last
+     * value.  0 evaluates it on every read.
+     */
+    long refreshMillis() default 0L;
+}
@@ -0,0 +1,44 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collector classes generated by {@link MetricsBuddy}, shared by all {@link MetricsCollectors} in the process.  Classes
+ * are kept in their interfaces, by whether counters and meters are stored, so they are generated once per combination
+ * and unload with their interface.  Names are resolved when collectors are bound, so classes hold no name strategy.
+ */
+final class GeneratedClasses {
+
+    private static final ClassValue<AtomicReferenceArray<Class<? extends AbstractMetricsCollector>>> CLASSES =
+            new ClassValue<AtomicReferenceArray<Class<? extends AbstractMetricsCollector>>>() {
+                @Override
+                protected AtomicReferenceArray<Class<? extends AbstractMetricsCollector>> computeValue(Class<?> type) {
+                    return new AtomicReferenceArray<>(2);
+                }
+            };
+
+    /**
+     * @param type Collector interface
+     * @param stored True if counters and meters are in a {@link MetricStore}
+     * @return The class generated for the combination, or null if there is none yet
+     */
+    static Class<? extends AbstractMetricsCollector> get(Class<?> type, boolean stored) {
+        return CLASSES.get(type).get(stored ? 1 : 0);
+    }
+
+    /**
+     * @param type Collector interface
+     * @param stored True if counters and meters are in a {@link MetricStore}
+     * @param generated Class generated for the combination
+     * @return The class to use, which is another if one was generated for the combination in the meantime
+     */
+    static Class<? extends AbstractMetricsCollector> put(Class<?> type,
+                                                         boolean stored,
+                                                         Class<? extends AbstractMetricsCollector> generated) {
+        AtomicReferenceArray<Class<? extends AbstractMetricsCollector>> classes = CLASSES.get(type);
+        return classes.compareAndSet(stored ? 1 : 0, null, generated) ? generated : classes.get(stored ? 1 : 0);
+    }
+
+    private GeneratedClasses() {
+    }
+}
@@ -0,0 +1,64 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * A reservoir recording into an HdrHistogram {@link Recorder}.  Updates are wait-free and do not allocate, and
+ * percentiles are accurate to the configured number of significant digits.  Reads add the values recorded since the
+ * previous read into an accumulated histogram, so snapshots cover all recorded values, whoever else has read them.
+ */
+final class HdrReservoir implements Reservoir {
+
+    private final Recorder recorder;
+
+    private final long highest;
+
+    private final Histogram total;
+
+    private Histogram interval;
+
+    /**
+     * @param precision Significant digits, 1 to 5
+     * @param highest Highest trackable value, values above it are recorded as it.  0 for an auto-resizing histogram
+     */
+    HdrReservoir(int precision, long highest) {
+        this.recorder = highest > 0L
+                ? new Recorder(highest, validPrecision(precision))
+                : new Recorder(validPrecision(precision));
+        this.total = highest > 0L
+                ? new Histogram(highest, precision)
+                : new Histogram(precision);
+        this.highest = highest > 0L ? highest : Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized int size() {
+        return (int) Math.min(accumulated().getTotalCount(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void update(long value) {
+        recorder.recordValue(value < 0L ? 0L : value > highest ? highest : value);
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        return new HdrSnapshot(accumulated().copy());
+    }
+
+    private Histogram accumulated() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return total;
+    }
+
+    static int validPrecision(int precision) {
+        if (precision < 1 || precision > 5) {
+            throw new IllegalArgumentException("Expected precision from 1 to 5 significant digits: " + precision);
+        }
+        return precision;
+    }
+}
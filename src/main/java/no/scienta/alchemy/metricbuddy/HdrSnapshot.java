@@ -0,0 +1,79 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A snapshot of an HdrHistogram.  {@link #getValues() Values} are listed once per recorded bucket, not once per
+ * recorded value, so they take as little memory as the histogram, however many values it holds.
+ */
+final class HdrSnapshot extends Snapshot {
+
+    private final Histogram histogram;
+
+    HdrSnapshot(Histogram histogram) {
+        this.histogram = histogram;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+        return histogram.getValueAtPercentile(quantile * 100.0D);
+    }
+
+    /**
+     * @return The highest equivalent value of each recorded bucket, in order
+     */
+    @Override
+    public long[] getValues() {
+        long[] values = new long[16];
+        int index = 0;
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            if (index == values.length) {
+                values = Arrays.copyOf(values, index * 2);
+            }
+            values[index++] = histogram.highestEquivalentValue(value.getValueIteratedTo());
+        }
+        return Arrays.copyOf(values, index);
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(histogram.getTotalCount(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long getMax() {
+        return histogram.getTotalCount() == 0L ? 0L : histogram.getMaxValue();
+    }
+
+    @Override
+    public double getMean() {
+        return histogram.getTotalCount() == 0L ? 0.0D : histogram.getMean();
+    }
+
+    @Override
+    public long getMin() {
+        return histogram.getTotalCount() == 0L ? 0L : histogram.getMinValue();
+    }
+
+    @Override
+    public double getStdDev() {
+        return histogram.getTotalCount() == 0L ? 0.0D : histogram.getStdDeviation();
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+            for (long value : getValues()) {
+                out.printf("%d%n", value);
+            }
+        }
+    }
+}
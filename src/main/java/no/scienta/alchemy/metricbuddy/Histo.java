@@ -9,4 +9,33 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Histo {
 
+    /**
+     * @return Significant digits of an HdrHistogram reservoir, 1 to 5.  0 uses the default reservoir of the
+     * {@link MetricsCollectors}.
+     */
+    int precision() default 0;
+
+    /**
+     * @return Highest trackable value of an HdrHistogram or sliding window reservoir, larger values are recorded as
+     * this.  0 lets the HdrHistogram resize as needed, and the sliding window cover all values.
+     */
+    long highest() default 0L;
+
+    /**
+     * @return Update the reservoir with every nth value only, 1 records all.  The count still includes all values.
+     */
+    int sampleEvery() default 1;
+
+    /**
+     * @return Report the values of this many last seconds, from a
+     * {@link MetricsCollectors#withSlidingWindows(java.time.Duration) sliding window} reservoir.  Takes precedence over
+     * precision.  0 uses the default reservoir of the {@link MetricsCollectors}.
+     */
+    int windowSeconds() default 0;
+
+    /**
+     * @return Group of the metric, which records only while the group is
+     * {@link MetricsCollectors#enableGroup(String) enabled}.  Empty for a metric which always records.
+     */
+    String group() default "";
 }
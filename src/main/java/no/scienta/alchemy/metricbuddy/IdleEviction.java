@@ -0,0 +1,263 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes collectors' metrics from the registry when they are idle, and puts them back when they are used again.
+ * <p>
+ * Updates are not tracked as they happen.  Instead, a sweep reads the count of each metric every quarter of the idle
+ * time, and a metric is updated when its count moved since the last sweep.  Metrics left idle for the idle time are
+ * evicted, and when there are more metrics than the limit, the least recently updated ones are evicted.  Collectors
+ * keep their evicted metrics, so recording costs the same.  An evicted metric is registered again when a collector
+ * resolves it by name, or when a sweep finds it updated.
+ * <p>
+ * Metrics evicted for {@value #DORMANT_SWEEPS} sweeps go dormant: they are held weakly, and checked only every
+ * {@value #DORMANT_SWEEPS}th sweep, so metrics of collectors which are gone are forgotten, and the others cost little.
+ */
+final class IdleEviction {
+
+    private static final long MIN_SWEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    private static final int DORMANT_SWEEPS = 16;
+
+    private final MetricRegistry registry;
+
+    private final long idleNanos;
+
+    private final int maxMetrics;
+
+    private final long dormantNanos;
+
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+
+    private final Map<String, Dormant> dormant = new ConcurrentHashMap<>();
+
+    /**
+     * Registered metrics, least recently updated first, as of the last sweep.
+     */
+    private final Deque<Tracked> leastRecent = new ArrayDeque<>();
+
+    private final ScheduledExecutorService sweeper;
+
+    private int registered;
+
+    private long sweeps;
+
+    IdleEviction(MetricRegistry registry, Duration idleTime, int maxMetrics) {
+        if (idleTime.isNegative() || idleTime.isZero()) {
+            throw new IllegalArgumentException("Expected positive idle time: " + idleTime);
+        }
+        if (maxMetrics < 1) {
+            throw new IllegalArgumentException("Expected a positive metric limit: " + maxMetrics);
+        }
+        this.registry = registry;
+        this.idleNanos = idleTime.toNanos();
+        this.maxMetrics = maxMetrics;
+        long sweepNanos = Math.max(MIN_SWEEP_NANOS, idleNanos / 4L);
+        this.dormantNanos = sweepNanos * DORMANT_SWEEPS;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(IdleEviction::sweeperThread);
+        this.sweeper.scheduleWithFixedDelay(this::sweep, sweepNanos, sweepNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop sweeping.  Evicted metrics are then only registered again when resolved by name.
+     */
+    void close() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Register the named metric again, if it was evicted.  Call before resolving it.
+     *
+     * @param name Metric name
+     */
+    void revive(String name) {
+        Tracked known = tracked.get(name);
+        if (known != null && known.evicted) {
+            revive(known);
+        } else if (known == null && dormant.containsKey(name)) {
+            wake(name);
+        }
+    }
+
+    /**
+     * Track a resolved metric.
+     *
+     * @param name Metric name
+     * @param metric Metric
+     * @param <M> Metric type
+     * @return The metric
+     */
+    <M extends Metric> M tracked(String name, M metric) {
+        Tracked known = tracked.get(name);
+        if (known == null || known.metric != metric) {
+            track(name, metric);
+        }
+        return metric;
+    }
+
+    private synchronized void track(String name, Metric metric) {
+        Tracked known = tracked.get(name);
+        if (known != null && known.metric == metric) {
+            return;
+        }
+        if (known != null && !known.evicted) {
+            registered--;
+        }
+        dormant.remove(name);
+        tracked.put(name, new Tracked(name, metric, System.nanoTime()));
+        registered++;
+        evictOverLimit();
+    }
+
+    private synchronized void revive(Tracked known) {
+        if (!known.evicted) {
+            return;
+        }
+        try {
+            registry.register(known.name, known.metric);
+        } catch (IllegalArgumentException e) {
+            tracked.remove(known.name, known);
+            return;
+        }
+        known.evicted = false;
+        known.lastUpdate = System.nanoTime();
+        registered++;
+        evictOverLimit();
+    }
+
+    private synchronized void wake(String name) {
+        Dormant sleeping = dormant.remove(name);
+        Metric metric = sleeping == null ? null : sleeping.metric.get();
+        if (metric != null) {
+            Tracked known = new Tracked(name, metric, System.nanoTime());
+            known.evicted = true;
+            tracked.put(name, known);
+            revive(known);
+        }
+    }
+
+    synchronized void sweep() {
+        long now = System.nanoTime();
+        for (Iterator<Tracked> iterator = tracked.values().iterator(); iterator.hasNext(); ) {
+            Tracked known = iterator.next();
+            long count = count(known.metric);
+            if (count != known.count) {
+                known.count = count;
+                known.lastUpdate = now;
+                revive(known);
+            } else if (!known.evicted && now - known.lastUpdate >= idleNanos) {
+                evict(known);
+            } else if (known.evicted && now - known.evictedAt >= dormantNanos) {
+                iterator.remove();
+                dormant.put(known.name, new Dormant(known.metric, known.count));
+            }
+        }
+        if (++sweeps % DORMANT_SWEEPS == 0L) {
+            sweepDormant();
+        }
+        leastRecent.clear();
+        tracked.values().stream()
+                .filter(known -> !known.evicted)
+                .sorted(Comparator.comparingLong(known -> known.lastUpdate))
+                .forEach(leastRecent::add);
+        evictOverLimit();
+    }
+
+    private void evictOverLimit() {
+        while (registered > maxMetrics) {
+            Tracked oldest = leastRecent.poll();
+            if (oldest == null) {
+                oldest = tracked.values().stream()
+                        .filter(known -> !known.evicted)
+                        .min(Comparator.comparingLong(known -> known.lastUpdate))
+                        .orElseThrow(IllegalStateException::new);
+            }
+            if (!oldest.evicted && tracked.get(oldest.name) == oldest) {
+                evict(oldest);
+            }
+        }
+    }
+
+    private void sweepDormant() {
+        for (Map.Entry<String, Dormant> entry : dormant.entrySet()) {
+            Metric metric = entry.getValue().metric.get();
+            if (metric == null) {
+                dormant.remove(entry.getKey());
+            } else if (count(metric) != entry.getValue().count) {
+                wake(entry.getKey());
+            }
+        }
+    }
+
+    private void evict(Tracked known) {
+        registry.remove(known.name);
+        known.evicted = true;
+        known.evictedAt = System.nanoTime();
+        registered--;
+    }
+
+    private static long count(Metric metric) {
+        return metric instanceof Counting ? ((Counting) metric).getCount() : 0L;
+    }
+
+    private static Thread sweeperThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "metrics-eviction");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * A metric, with its count and time as of the last sweep which found it updated.
+     */
+    private static final class Tracked {
+
+        private final String name;
+
+        private final Metric metric;
+
+        private long count;
+
+        private long lastUpdate;
+
+        private long evictedAt;
+
+        private volatile boolean evicted;
+
+        private Tracked(String name, Metric metric, long lastUpdate) {
+            this.name = name;
+            this.metric = metric;
+            this.count = count(metric);
+            this.lastUpdate = lastUpdate;
+        }
+    }
+
+    /**
+     * A metric evicted for long, with its count when it went dormant.
+     */
+    private static final class Dormant {
+
+        private final WeakReference<Metric> metric;
+
+        private final long count;
+
+        private Dormant(Metric metric, long count) {
+            this.metric = new WeakReference<>(metric);
+            this.count = count;
+        }
+    }
+}
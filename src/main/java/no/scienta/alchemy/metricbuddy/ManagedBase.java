@@ -2,15 +2,35 @@ package no.scienta.alchemy.metricbuddy;
 
 import com.codahale.metrics.MetricRegistry;
 
+import java.lang.reflect.Method;
+
 abstract class ManagedBase {
 
     private MetricRegistry metricRegistry;
 
+    private Recording recording;
+
+    private MetricsCollectors.MetricNameStrategy metricNameStrategy;
+
     private Class<?> meteredClass;
 
-    void manage(MetricRegistry metricRegistry, Class<?> meteredClass) {
+    void manage(
+            MetricRegistry metricRegistry,
+            Recording recording,
+            MetricsCollectors.MetricNameStrategy metricNameStrategy,
+            Class<?> meteredClass) {
         this.metricRegistry = metricRegistry;
+        this.recording = recording;
+        this.metricNameStrategy = metricNameStrategy;
         this.meteredClass = meteredClass;
+        bindMetrics();
+    }
+
+    /**
+     * Invoked once the collector is managed.  Generated collectors override this to resolve their metrics up front,
+     * so that recording does not need to go through the registry.
+     */
+    protected void bindMetrics() {
     }
 
     Class<?> getMeteredClass() {
@@ -20,4 +40,19 @@ abstract class ManagedBase {
     MetricRegistry getMetricRegistry() {
         return metricRegistry;
     }
+
+    Recording getRecording() {
+        return recording;
+    }
+
+    MetricsCollectors.MetricNameStrategy getMetricNameStrategy() {
+        return metricNameStrategy;
+    }
+
+    static String metricName(MetricsCollectors.MetricNameStrategy metricNameStrategy, Method method) {
+        OverrideName overrideName = method.getAnnotation(OverrideName.class);
+        return overrideName != null ? overrideName.value()
+                : metricNameStrategy != null ? metricNameStrategy.metricName(method)
+                : method.getName();
+    }
 }
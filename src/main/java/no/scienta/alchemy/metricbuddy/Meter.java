@@ -9,4 +9,9 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Meter {
 
+    /**
+     * @return Group of the metric, which records only while the group is
+     * {@link MetricsCollectors#enableGroup(String) enabled}.  Empty for a metric which always records.
+     */
+    String group() default "";
 }
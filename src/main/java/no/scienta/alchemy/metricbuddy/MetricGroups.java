@@ -0,0 +1,79 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The switches of metric groups, shared by all collectors in the process.  Each group has a call site returning
+ * whether it is enabled, and generated collectors keep its invoker in a static final field, which the JIT treats as
+ * a constant.  A compiled method of a disabled group is then left with its early return, and switching the group
+ * retargets the call site, which deoptimizes the methods depending on it.  Groups start disabled.
+ */
+final class MetricGroups {
+
+    private static final MethodHandle ENABLED = MethodHandles.constant(boolean.class, true);
+
+    private static final MethodHandle DISABLED = MethodHandles.constant(boolean.class, false);
+
+    private static final Map<String, MutableCallSite> GROUPS = new ConcurrentHashMap<>();
+
+    /**
+     * @param group Group name
+     * @return Handle returning whether the group is enabled, to be kept in a static final field
+     */
+    static MethodHandle guard(String group) {
+        return site(group).dynamicInvoker();
+    }
+
+    /**
+     * @param group Group name
+     * @param enabled True to enable the group, false to disable it
+     */
+    static synchronized void set(String group, boolean enabled) {
+        MutableCallSite site = site(group);
+        MethodHandle target = enabled ? ENABLED : DISABLED;
+        if (site.getTarget() != target) {
+            site.setTarget(target);
+            MutableCallSite.syncAll(new MutableCallSite[]{site});
+        }
+    }
+
+    /**
+     * @param group Group name
+     * @return True if the group is enabled
+     */
+    static boolean enabled(String group) {
+        MutableCallSite site = GROUPS.get(group);
+        return site != null && site.getTarget() == ENABLED;
+    }
+
+    /**
+     * @param method Collector method
+     * @return The group of the method's metric, or empty if it has none
+     */
+    static String group(Method method) {
+        Inc inc = method.getAnnotation(Inc.class);
+        Meter meter = method.getAnnotation(Meter.class);
+        Histo histo = method.getAnnotation(Histo.class);
+        Time time = method.getAnnotation(Time.class);
+        return inc != null ? inc.group()
+                : meter != null ? meter.group()
+                : histo != null ? histo.group()
+                : time != null ? time.group()
+                : "";
+    }
+
+    private static MutableCallSite site(String group) {
+        if (group == null || group.trim().isEmpty()) {
+            throw new IllegalArgumentException("Expected a group name: '" + group + "'");
+        }
+        return GROUPS.computeIfAbsent(group, name -> new MutableCallSite(DISABLED));
+    }
+
+    private MetricGroups() {
+    }
+}
@@ -0,0 +1,413 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Records the metrics of a registry into a ring of frames in a memory-mapped file, for reading with a
+ * {@link MetricHistoryReader} after the process is gone.  Frames are written to the mapping, so a tick costs no
+ * system calls, and the operating system writes the pages back.
+ * <p>
+ * The file starts with a header, followed by a dictionary of metric names and the ring.  All header numbers are in
+ * native byte order:
+ * <pre>
+ * header:     magic int, version int, dictionary size int, ring size int, keyframe interval int, names int,
+ *             dictionary used int, skipped metrics int, head long, dropped frames int, failed reads int,
+ *             writing long, reserved to {@value #HEADER_SIZE}
+ * dictionary: entries of kind byte, name length short, name bytes in UTF-8
+ * frame:      flags byte, time varlong, metrics varint, per metric: id gap varint and its columns, length int
+ * </pre>
+ * Names are written once, when the metric is added to the registry, and frames refer to them by their index in the
+ * dictionary.  Columns are delta-encoded against the metric's previous frame: longs as zig-zag varlongs of the
+ * difference, gauge doubles as varlongs of their bits xor-ed with the previous bits.  Metrics which did not change are
+ * left out.  Every {@value #KEYFRAME_INTERVAL}th frame is a keyframe, encoded against zero and holding all metrics,
+ * where readers can start decoding.  A keyframe is also written once half the ring has been written since the last
+ * one, so the ring always holds one.  Frames end with their length, so readers can find them from the head, backwards.
+ * Before a frame is copied into the ring, the position it will end at is written as the writing position, so readers
+ * know which bytes behind the head the frame may have overwritten, also when the writer died while copying it.
+ * <p>
+ * Counters and meters have a column of their count, histograms and timers of count, median, 99th percentile and max,
+ * and gauges of their value.  Metrics added once the dictionary is full are skipped, and so are metrics which fail
+ * to give their values, for that frame.
+ */
+public final class MetricHistory implements Closeable {
+
+    static final int MAGIC = 0x4D424852;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+
+    static final int NAMES_OFFSET = 20;
+
+    static final int DICTIONARY_USED_OFFSET = 24;
+
+    static final int SKIPPED_OFFSET = 28;
+
+    static final int HEAD_OFFSET = 32;
+
+    static final int DROPPED_OFFSET = 40;
+
+    static final int FAILED_OFFSET = 44;
+
+    static final int WRITING_OFFSET = 48;
+
+    static final int KEYFRAME_INTERVAL = 60;
+
+    static final byte KEYFRAME = 1;
+
+    static final byte COUNTER = 0;
+
+    static final byte METER = 1;
+
+    static final byte HISTOGRAM = 2;
+
+    static final byte TIMER = 3;
+
+    static final byte GAUGE = 4;
+
+    private static final int MIN_SIZE = 64 * 1024;
+
+    private final Path file;
+
+    private final MetricRegistry registry;
+
+    private final MappedByteBuffer buffer;
+
+    private final long address;
+
+    private final ByteBuffer ring;
+
+    private final int dictionarySize;
+
+    private final int ringSize;
+
+    private final Listener listener = new Listener();
+
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private Metric[] metrics = new Metric[0];
+
+    private byte[] kinds = new byte[0];
+
+    private long[][] previous = new long[0][];
+
+    private int dictionaryUsed;
+
+    private long head;
+
+    private long keyframeHead;
+
+    private long lastTime;
+
+    private long frames;
+
+    private byte[] frame = new byte[8 * 1024];
+
+    private int length;
+
+    private final long[] columns = new long[4];
+
+    /**
+     * @param registry Registry to record
+     * @param file File to map, created or overwritten
+     * @param size File size, an eighth for the dictionary and the rest for the ring
+     * @param interval Time between frames
+     */
+    public MetricHistory(MetricRegistry registry, Path file, int size, Duration interval) {
+        if (size < MIN_SIZE) {
+            throw new IllegalArgumentException("Expected a size of at least " + MIN_SIZE + " bytes: " + size);
+        }
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Expected positive interval: " + interval);
+        }
+        this.file = file;
+        this.registry = registry;
+        this.dictionarySize = size / 8;
+        this.ringSize = size - HEADER_SIZE - dictionarySize;
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map metric history to " + file, e);
+        }
+        this.buffer.order(ByteOrder.nativeOrder());
+        this.address = DirectMemory.address(buffer);
+        this.buffer.putInt(0, MAGIC)
+                .putInt(4, VERSION)
+                .putInt(8, dictionarySize)
+                .putInt(12, ringSize)
+                .putInt(16, KEYFRAME_INTERVAL);
+        this.buffer.position(HEADER_SIZE + dictionarySize);
+        this.ring = buffer.slice();
+        this.registry.addListener(listener);
+        long millis = interval.toMillis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(MetricHistory::recorderThread);
+        this.scheduler.scheduleAtFixedRate(this::record, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write a frame of the current values now.
+     */
+    public synchronized void record() {
+        long time = System.currentTimeMillis();
+        boolean keyframe = frames % KEYFRAME_INTERVAL == 0 || head - keyframeHead > ringSize / 2;
+        length = 0;
+        put(keyframe ? KEYFRAME : 0);
+        putVarLong(zigZag(keyframe ? time : time - lastTime));
+        int countPosition = length;
+        length += 5;
+        int count = 0;
+        int lastId = -1;
+        for (int id = 0; id < metrics.length; id++) {
+            int columnCount = metrics[id] == null ? 0 : guardedValues(id);
+            if (columnCount == 0 && keyframe) {
+                Arrays.fill(previous[id], 0L);
+            } else if (columnCount > 0 && (keyframe || changed(id, columnCount))) {
+                putVarInt(id - lastId - 1);
+                for (int column = 0; column < columnCount; column++) {
+                    long base = keyframe ? 0L : previous[id][column];
+                    putVarLong(kinds[id] == GAUGE ? columns[column] ^ base : zigZag(columns[column] - base));
+                    previous[id][column] = columns[column];
+                }
+                lastId = id;
+                count++;
+            }
+        }
+        for (int i = 0; i < 5; i++) {
+            frame[countPosition + i] = (byte) (i < 4 ? count >>> 7 * i & 0x7F | 0x80 : count >>> 28);
+        }
+        int bodyLength = length;
+        for (int i = 0; i < 4; i++) {
+            put((byte) (bodyLength >>> 8 * i));
+        }
+        if (length > ringSize / 2) {
+            frames = 0L;
+            buffer.putInt(DROPPED_OFFSET, buffer.getInt(DROPPED_OFFSET) + 1);
+            return;
+        }
+        DirectMemory.putLongVolatile(address + WRITING_OFFSET, head + length);
+        int offset = (int) (head % ringSize);
+        int first = Math.min(length, ringSize - offset);
+        ring.position(offset);
+        ring.put(frame, 0, first);
+        ring.position(0);
+        ring.put(frame, first, length - first);
+        if (keyframe) {
+            keyframeHead = head;
+        }
+        head += length;
+        lastTime = time;
+        frames++;
+        DirectMemory.putLongOrdered(address + HEAD_OFFSET, head);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        registry.removeListener(listener);
+    }
+
+    /**
+     * @return Number of columns put in {@link #columns}, or 0 if the metric has no value or failed to give it
+     */
+    private int guardedValues(int id) {
+        try {
+            return values(metrics[id], kinds[id]);
+        } catch (Throwable e) {
+            buffer.putInt(FAILED_OFFSET, buffer.getInt(FAILED_OFFSET) + 1);
+            return 0;
+        }
+    }
+
+    /**
+     * @return Number of columns put in {@link #columns}, or 0 if the metric has no value
+     */
+    private int values(Metric metric, byte kind) {
+        switch (kind) {
+            case COUNTER:
+                columns[0] = ((Counter) metric).getCount();
+                return 1;
+            case METER:
+                columns[0] = ((Meter) metric).getCount();
+                return 1;
+            case HISTOGRAM:
+            case TIMER:
+                Snapshot snapshot = ((Sampling) metric).getSnapshot();
+                columns[0] = kind == TIMER ? ((Timer) metric).getCount() : ((Histogram) metric).getCount();
+                columns[1] = Math.round(snapshot.getMedian());
+                columns[2] = Math.round(snapshot.get99thPercentile());
+                columns[3] = snapshot.getMax();
+                return 4;
+            default:
+                Object value = ((Gauge<?>) metric).getValue();
+                if (value instanceof Number) {
+                    columns[0] = Double.doubleToLongBits(((Number) value).doubleValue());
+                    return 1;
+                }
+                return 0;
+        }
+    }
+
+    private boolean changed(int id, int columnCount) {
+        for (int column = 0; column < columnCount; column++) {
+            if (previous[id][column] != columns[column]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void put(byte b) {
+        if (length == frame.length) {
+            frame = Arrays.copyOf(frame, frame.length * 2);
+        }
+        frame[length++] = b;
+    }
+
+    private void putVarInt(int value) {
+        putVarLong(value & 0xFFFFFFFFL);
+    }
+
+    private void putVarLong(long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0L) {
+            put((byte) (remaining & 0x7F | 0x80));
+            remaining >>>= 7;
+        }
+        put((byte) remaining);
+    }
+
+    private static long zigZag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private synchronized void add(String name, Metric metric, byte kind) {
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            if (kinds[existing] == kind) {
+                metrics[existing] = metric;
+            }
+            return;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int entry = HEADER_SIZE + dictionaryUsed;
+        if (bytes.length > Short.MAX_VALUE || dictionaryUsed + 3 + bytes.length > dictionarySize) {
+            buffer.putInt(SKIPPED_OFFSET, buffer.getInt(SKIPPED_OFFSET) + 1);
+            return;
+        }
+        buffer.put(entry, kind).putShort(entry + 1, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(entry + 3 + i, bytes[i]);
+        }
+        dictionaryUsed += 3 + bytes.length;
+        int id = metrics.length;
+        metrics = Arrays.copyOf(metrics, id + 1);
+        kinds = Arrays.copyOf(kinds, id + 1);
+        previous = Arrays.copyOf(previous, id + 1);
+        metrics[id] = metric;
+        kinds[id] = kind;
+        previous[id] = new long[4];
+        ids.put(name, id);
+        DirectMemory.putIntOrdered(address + DICTIONARY_USED_OFFSET, dictionaryUsed);
+        DirectMemory.putIntOrdered(address + NAMES_OFFSET, id + 1);
+    }
+
+    private synchronized void remove(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            metrics[id] = null;
+        }
+    }
+
+    private static Thread recorderThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "metrics-history");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + file + "]";
+    }
+
+    private final class Listener implements MetricRegistryListener {
+
+        @Override
+        public void onGaugeAdded(String name, Gauge<?> gauge) {
+            add(name, gauge, GAUGE);
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            add(name, counter, COUNTER);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            add(name, histogram, HISTOGRAM);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            add(name, meter, METER);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            add(name, timer, TIMER);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            remove(name);
+        }
+    }
+}
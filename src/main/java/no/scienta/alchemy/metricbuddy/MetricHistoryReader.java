@@ -0,0 +1,309 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the frames which a {@link MetricHistory} wrote, also after the writing process is gone.  Decoding starts at
+ * the oldest keyframe left in the ring, skipping the bytes which a frame being written, or a frame the writer died
+ * writing, may have overwritten.  Run {@link #main(String[])} to print the last minutes of a file.
+ */
+public final class MetricHistoryReader {
+
+    private static final String[] SUMMARY_COLUMNS = {"count", "p50", "p99", "max"};
+
+    private final Path file;
+
+    private final String[] names;
+
+    private final byte[] kinds;
+
+    private final byte[] ring;
+
+    private final long head;
+
+    private final long tail;
+
+    private final int skipped;
+
+    private final int dropped;
+
+    private final int failed;
+
+    private MetricHistoryReader(Path file) {
+        this.file = file;
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < MetricHistory.HEADER_SIZE) {
+                throw new IllegalArgumentException("Not a metric history file: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map metric history in " + file, e);
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        long address = DirectMemory.address(buffer);
+        if (buffer.getInt(0) != MetricHistory.MAGIC) {
+            throw new IllegalArgumentException("Not a metric history file: " + file);
+        }
+        if (buffer.getInt(4) != MetricHistory.VERSION) {
+            throw new IllegalArgumentException("Unsupported metric history version " + buffer.getInt(4) + ": " + file);
+        }
+        int dictionarySize = buffer.getInt(8);
+        int ringSize = buffer.getInt(12);
+        if (buffer.capacity() < MetricHistory.HEADER_SIZE + (long) dictionarySize + ringSize) {
+            throw new IllegalArgumentException("Truncated metric history file: " + file);
+        }
+        this.head = DirectMemory.getLongVolatile(address + MetricHistory.HEAD_OFFSET);
+        int count = DirectMemory.getIntVolatile(address + MetricHistory.NAMES_OFFSET);
+        this.names = new String[count];
+        this.kinds = new byte[count];
+        for (int id = 0, entry = MetricHistory.HEADER_SIZE; id < count; id++) {
+            kinds[id] = buffer.get(entry);
+            byte[] bytes = new byte[buffer.getShort(entry + 1)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(entry + 3 + i);
+            }
+            names[id] = new String(bytes, StandardCharsets.UTF_8);
+            entry += 3 + bytes.length;
+        }
+        this.ring = new byte[ringSize];
+        buffer.position(MetricHistory.HEADER_SIZE + dictionarySize);
+        buffer.get(ring);
+        long writing = Math.max(DirectMemory.getLongVolatile(address + MetricHistory.HEAD_OFFSET),
+                DirectMemory.getLongVolatile(address + MetricHistory.WRITING_OFFSET));
+        this.tail = Math.max(0L, writing - ringSize);
+        this.skipped = buffer.getInt(MetricHistory.SKIPPED_OFFSET);
+        this.dropped = buffer.getInt(MetricHistory.DROPPED_OFFSET);
+        this.failed = buffer.getInt(MetricHistory.FAILED_OFFSET);
+    }
+
+    /**
+     * @param file File written by a {@link MetricHistory}
+     * @return Reader of the frames currently in the file
+     */
+    public static MetricHistoryReader open(Path file) {
+        return new MetricHistoryReader(file);
+    }
+
+    /**
+     * @return Number of metrics which did not fit in the dictionary, and were not recorded
+     */
+    public int skippedMetrics() {
+        return skipped;
+    }
+
+    /**
+     * @return Number of frames which did not fit in the ring, and were not recorded
+     */
+    public int droppedFrames() {
+        return dropped;
+    }
+
+    /**
+     * @return Number of times a metric failed to give its values, and was left out of a frame
+     */
+    public int failedReads() {
+        return failed;
+    }
+
+    /**
+     * @return All frames which can be decoded
+     */
+    public List<Frame> frames() {
+        return frames(null);
+    }
+
+    /**
+     * @param last How far back from the last frame to read, or null for all frames
+     * @return The frames in that time.  The first frame holds all values known at its time, the following frames the
+     * values which changed.
+     */
+    public List<Frame> frames(Duration last) {
+        List<Long> starts = new ArrayList<>();
+        long position = head;
+        while (position - 4 >= tail) {
+            long length = 0L;
+            for (int i = 0; i < 4; i++) {
+                length |= (get(position - 4 + i) & 0xFFL) << 8 * i;
+            }
+            long start = position - 4 - length;
+            if (length <= 0L || start < tail) {
+                break;
+            }
+            starts.add(start);
+            position = start;
+        }
+        Collections.reverse(starts);
+        int keyframe = 0;
+        while (keyframe < starts.size() && get(starts.get(keyframe)) != MetricHistory.KEYFRAME) {
+            keyframe++;
+        }
+        List<Frame> frames = new ArrayList<>();
+        long[][] previous = new long[names.length][4];
+        long time = 0L;
+        for (int i = keyframe; i < starts.size(); i++) {
+            Decoder decoder = new Decoder(starts.get(i));
+            boolean isKeyframe = decoder.next() == MetricHistory.KEYFRAME;
+            long delta = unZigZag(decoder.varLong());
+            time = isKeyframe ? delta : time + delta;
+            if (isKeyframe) {
+                for (long[] columns : previous) {
+                    Arrays.fill(columns, 0L);
+                }
+            }
+            Map<String, Number> values = new LinkedHashMap<>();
+            long count = decoder.varLong();
+            int id = -1;
+            for (long metric = 0; metric < count; metric++) {
+                id += (int) decoder.varLong() + 1;
+                if (id < 0 || id >= kinds.length) {
+                    throw new IllegalStateException("Malformed frame in " + file);
+                }
+                byte kind = kinds[id];
+                boolean summary = kind == MetricHistory.HISTOGRAM || kind == MetricHistory.TIMER;
+                for (int column = 0; column < (summary ? 4 : 1); column++) {
+                    long base = isKeyframe ? 0L : previous[id][column];
+                    long value = kind == MetricHistory.GAUGE
+                            ? decoder.varLong() ^ base
+                            : base + unZigZag(decoder.varLong());
+                    previous[id][column] = value;
+                    values.put(summary ? names[id] + "." + SUMMARY_COLUMNS[column] : names[id],
+                            kind == MetricHistory.GAUGE ? (Number) Double.longBitsToDouble(value) : (Number) value);
+                }
+            }
+            frames.add(new Frame(time, values));
+        }
+        if (frames.isEmpty()) {
+            return frames;
+        }
+        if (last == null) {
+            return withState(frames, 0);
+        }
+        long from = frames.get(frames.size() - 1).time - last.toMillis();
+        int first = 0;
+        while (frames.get(first).time < from) {
+            first++;
+        }
+        return withState(frames, first);
+    }
+
+    private static List<Frame> withState(List<Frame> frames, int first) {
+        Map<String, Number> state = new LinkedHashMap<>();
+        for (int i = 0; i <= first; i++) {
+            state.putAll(frames.get(i).values);
+        }
+        List<Frame> selected = new ArrayList<>(frames.subList(first, frames.size()));
+        selected.set(0, new Frame(selected.get(0).time, state));
+        return Collections.unmodifiableList(selected);
+    }
+
+    private byte get(long position) {
+        return ring[(int) (position % ring.length)];
+    }
+
+    private static long unZigZag(long value) {
+        return value >>> 1 ^ -(value & 1L);
+    }
+
+    /**
+     * Prints frames of a file, one value per line.
+     *
+     * @param args File, and optionally the number of minutes to print back from the last frame
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: " + MetricHistoryReader.class.getName() + " <file> [minutes]");
+            System.exit(1);
+            return;
+        }
+        MetricHistoryReader reader = open(Paths.get(args[0]));
+        Duration last = args.length > 1 ? Duration.ofMinutes(Long.parseLong(args[1])) : null;
+        for (Frame frame : reader.frames(last)) {
+            Instant time = Instant.ofEpochMilli(frame.time());
+            frame.values().forEach((name, value) -> System.out.println(time + " " + name + " " + value));
+        }
+        if (reader.skippedMetrics() > 0 || reader.droppedFrames() > 0) {
+            System.err.println(reader.skippedMetrics() + " metrics skipped, " + reader.droppedFrames() +
+                    " frames dropped");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + file + "]";
+    }
+
+    /**
+     * A frame of recorded values.  Histograms and timers have values for their count, median, 99th percentile and
+     * max, named with the suffixes {@code .count}, {@code .p50}, {@code .p99} and {@code .max}.  Gauge values are
+     * doubles, the others longs.
+     */
+    public static final class Frame {
+
+        private final long time;
+
+        private final Map<String, Number> values;
+
+        private Frame(long time, Map<String, Number> values) {
+            this.time = time;
+            this.values = Collections.unmodifiableMap(values);
+        }
+
+        /**
+         * @return Time of the frame, in milliseconds since the epoch
+         */
+        public long time() {
+            return time;
+        }
+
+        /**
+         * @return Values recorded in the frame
+         */
+        public Map<String, Number> values() {
+            return values;
+        }
+    }
+
+    /**
+     * Reads varints from a position in the ring.
+     */
+    private final class Decoder {
+
+        private long position;
+
+        private Decoder(long position) {
+            this.position = position;
+        }
+
+        private byte next() {
+            return get(position++);
+        }
+
+        private long varLong() {
+            long value = 0L;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = next();
+                value |= (b & 0x7FL) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed varint in " + file);
+        }
+    }
+}
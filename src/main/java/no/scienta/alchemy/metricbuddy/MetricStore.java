@@ -0,0 +1,556 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A compact store of counters and meters, kept in primitive columns indexed by metric id instead of one Dropwizard
+ * object per metric.  Collectors get their ids when bound, and record by adding to the count column.  Meter rates are
+ * derived from the counts, in exponentially weighted columns updated every five seconds when read, like
+ * Dropwizard's.
+ * <p>
+ * Columns are allocated in pages of 1024 metrics.  Each metric has a read-only view, {@link Counting} for counters
+ * and {@link Metered} for meters, made once when the metric is added.  Reporters see the metrics through
+ * {@link #registerIn(MetricRegistry) registries}, which get Dropwizard counters and meters reading from the store,
+ * for the metrics already in the store and those added later.
+ * <p>
+ * Exporters which only need the metrics that changed can get {@link DeltaSnapshot delta snapshots} from a
+ * {@link #cursor() cursor} instead.  Each metric is stamped with the epoch it last changed in, and its id is logged the
+ * first time it changes in an epoch.  A snapshot starts a new epoch and reads the log from where the cursor left off,
+ * so its cost follows the number of changed metrics, not the size of the store.
+ * <p>
+ * Recording takes no locks.  The log is a chain of segments, which writers append to by reserving a slot with an
+ * atomic increment.  Cursors follow the chain, and segments every cursor has passed are left to the garbage collector.
+ */
+public final class MetricStore {
+
+    private static final int PAGE_BITS = 10;
+
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5L);
+
+    private static final double[] ALPHAS = {
+            1.0D - Math.exp(-5.0D / 60.0D),
+            1.0D - Math.exp(-5.0D / 60.0D / 5.0D),
+            1.0D - Math.exp(-5.0D / 60.0D / 15.0D)};
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    private volatile Page[] pages = new Page[0];
+
+    private volatile int size;
+
+    private long lastTick = System.nanoTime();
+
+    private final AtomicLong epoch = new AtomicLong(1L);
+
+    /**
+     * The segment of the change log being appended to.
+     */
+    private final AtomicReference<Changes> changes = new AtomicReference<>(new Changes());
+
+    private final AtomicInteger cursors = new AtomicInteger();
+
+    private final List<MetricRegistry> registries = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return Number of metrics in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param name Metric name
+     * @return Current count of the metric, or 0 if there is none
+     */
+    public long count(String name) {
+        Integer id = ids.get(name);
+        return id == null ? 0L : count(id);
+    }
+
+    /**
+     * @return Read-only views of the metrics by name, counters as {@link Counting} and meters as {@link Metered}
+     */
+    public Map<String, Counting> metrics() {
+        Map<String, Counting> metrics = new TreeMap<>();
+        Page[] pages = this.pages;
+        for (int id = 0, size = this.size; id < size; id++) {
+            Page page = pages[id >>> PAGE_BITS];
+            int offset = id & PAGE_MASK;
+            metrics.put(page.names[offset], page.views[offset]);
+        }
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Register the metrics of the store in a registry, as {@link Counter counters} and {@link Meter meters} which
+     * read from the store.  Metrics added to the store later are registered as they are added.
+     *
+     * @param registry Registry
+     */
+    public synchronized void registerIn(MetricRegistry registry) {
+        for (int id = 0; id < size; id++) {
+            register(registry, id);
+        }
+        registries.add(registry);
+    }
+
+    int counterId(String name) {
+        return id(name, false);
+    }
+
+    int meterId(String name) {
+        return id(name, true);
+    }
+
+    Counter counter(String name) {
+        return new CounterView(counterId(name));
+    }
+
+    Meter meter(String name) {
+        return new MeterView(meterId(name));
+    }
+
+    /**
+     * @return A new cursor, whose first snapshot holds every metric which has been recorded to
+     */
+    public Cursor cursor() {
+        cursors.incrementAndGet();
+        return new Cursor();
+    }
+
+    void add(int id, long n) {
+        Page page = pages[id >>> PAGE_BITS];
+        int offset = id & PAGE_MASK;
+        page.counts.getAndAdd(offset, n);
+        long epoch = this.epoch.get();
+        long changed = page.epochs.get(offset);
+        if (changed != epoch && page.epochs.compareAndSet(offset, changed, epoch)) {
+            logChange(id);
+        }
+    }
+
+    long count(int id) {
+        return pages[id >>> PAGE_BITS].counts.get(id & PAGE_MASK);
+    }
+
+    private int id(String name, boolean meter) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = register(name, meter);
+        }
+        if (pages[id >>> PAGE_BITS].meters[id & PAGE_MASK] != meter) {
+            throw new IllegalArgumentException("Found another type of metric named " + name);
+        }
+        return id;
+    }
+
+    private synchronized int register(String name, boolean meter) {
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        int id = size;
+        if (id >>> PAGE_BITS == pages.length) {
+            Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+            grown[pages.length] = new Page();
+            pages = grown;
+        }
+        Page page = pages[id >>> PAGE_BITS];
+        int offset = id & PAGE_MASK;
+        page.names[offset] = name;
+        page.meters[offset] = meter;
+        page.starts[offset] = System.nanoTime();
+        page.views[offset] = meter ? new MeteredView(id) : new CountingView(id);
+        size = id + 1;
+        ids.put(name, id);
+        for (MetricRegistry registry : registries) {
+            register(registry, id);
+        }
+        return id;
+    }
+
+    private void register(MetricRegistry registry, int id) {
+        Page page = pages[id >>> PAGE_BITS];
+        int offset = id & PAGE_MASK;
+        registry.register(page.names[offset], page.meters[offset] ? new MeterView(id) : new CounterView(id));
+    }
+
+    private void logChange(int id) {
+        if (cursors.get() == 0) {
+            return;
+        }
+        Changes changes = this.changes.get();
+        while (true) {
+            int slot = changes.reserved.getAndIncrement();
+            if (slot < PAGE_SIZE) {
+                changes.ids.set(slot, id + 1);
+                return;
+            }
+            Changes next = changes.next.get();
+            if (next == null) {
+                changes.next.compareAndSet(null, new Changes());
+                next = changes.next.get();
+            }
+            this.changes.compareAndSet(changes, next);
+            changes = next;
+        }
+    }
+
+    /**
+     * Update the rates of all meters, if a tick or more has passed.  The counts since the last tick are weighed in on
+     * the first tick, and any further ticks decay the rates.
+     */
+    private synchronized void tickIfNecessary() {
+        long now = System.nanoTime();
+        long ticks = (now - lastTick) / TICK_NANOS;
+        if (ticks <= 0L) {
+            return;
+        }
+        lastTick += ticks * TICK_NANOS;
+        Page[] pages = this.pages;
+        for (int id = 0, size = this.size; id < size; id++) {
+            Page page = pages[id >>> PAGE_BITS];
+            int offset = id & PAGE_MASK;
+            if (page.meters[offset]) {
+                long count = page.counts.get(offset);
+                double instant = (count - page.ticked[offset]) / 5.0D;
+                page.ticked[offset] = count;
+                for (int rate = 0; rate < ALPHAS.length; rate++) {
+                    double[] rates = page.rates[rate];
+                    rates[offset] = page.rated[offset]
+                            ? rates[offset] + ALPHAS[rate] * (instant - rates[offset])
+                            : instant;
+                    for (long tick = 1L; tick < ticks; tick++) {
+                        rates[offset] -= ALPHAS[rate] * rates[offset];
+                    }
+                }
+                page.rated[offset] = true;
+            }
+        }
+    }
+
+    private synchronized double rate(int id, int rate) {
+        tickIfNecessary();
+        return pages[id >>> PAGE_BITS].rates[rate][id & PAGE_MASK];
+    }
+
+    private double meanRate(int id) {
+        long count = count(id);
+        if (count == 0L) {
+            return 0.0D;
+        }
+        long elapsed = System.nanoTime() - pages[id >>> PAGE_BITS].starts[id & PAGE_MASK];
+        return count / (double) elapsed * TimeUnit.SECONDS.toNanos(1L);
+    }
+
+    /**
+     * A segment of the change log.  Slots hold metric id + 1 once written, so a reserved slot which is still 0 is
+     * not written yet.
+     */
+    private static final class Changes {
+
+        private final AtomicIntegerArray ids = new AtomicIntegerArray(PAGE_SIZE);
+
+        private final AtomicInteger reserved = new AtomicInteger();
+
+        private final AtomicReference<Changes> next = new AtomicReference<>();
+    }
+
+    /**
+     * The columns of a page of metrics.
+     */
+    private static final class Page {
+
+        private final AtomicLongArray counts = new AtomicLongArray(PAGE_SIZE);
+
+        private final AtomicLongArray epochs = new AtomicLongArray(PAGE_SIZE);
+
+        private final String[] names = new String[PAGE_SIZE];
+
+        private final boolean[] meters = new boolean[PAGE_SIZE];
+
+        private final long[] starts = new long[PAGE_SIZE];
+
+        private final Counting[] views = new Counting[PAGE_SIZE];
+
+        private final long[] ticked = new long[PAGE_SIZE];
+
+        private final boolean[] rated = new boolean[PAGE_SIZE];
+
+        private final double[][] rates = new double[ALPHAS.length][PAGE_SIZE];
+    }
+
+    /**
+     * A position in the log of changes, for one exporter.  Remembers the counts it last saw, to compute deltas.
+     * {@link #close() Close} cursors which are no longer used, so the store can drop the changes they have not read.
+     */
+    public final class Cursor implements AutoCloseable {
+
+        private Changes changes;
+
+        private int position;
+
+        private boolean closed;
+
+        private long[] counts = new long[0];
+
+        private long[] seen = new long[0];
+
+        private long snapshots;
+
+        private Cursor() {
+        }
+
+        /**
+         * @return The metrics which changed since the last snapshot, or all recorded metrics on the first
+         */
+        public synchronized DeltaSnapshot next() {
+            if (closed) {
+                throw new IllegalStateException("Cursor is closed");
+            }
+            epoch.incrementAndGet();
+            int[] ids;
+            if (changes == null) {
+                changes = MetricStore.this.changes.get();
+                position = Math.min(changes.reserved.get(), PAGE_SIZE);
+                ids = recorded();
+            } else {
+                ids = changed();
+            }
+            return snapshot(ids, ids.length);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                changes = null;
+                cursors.decrementAndGet();
+            }
+        }
+
+        /**
+         * Read the log up to the first slot not written yet, which is read on the next snapshot.
+         */
+        private int[] changed() {
+            int[] ids = new int[16];
+            int count = 0;
+            while (true) {
+                if (position == PAGE_SIZE) {
+                    Changes next = changes.next.get();
+                    if (next == null) {
+                        break;
+                    }
+                    changes = next;
+                    position = 0;
+                }
+                int id = changes.ids.get(position) - 1;
+                if (id < 0) {
+                    break;
+                }
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                ids[count++] = id;
+                position++;
+            }
+            return Arrays.copyOf(ids, count);
+        }
+
+        private int[] recorded() {
+            int[] ids = new int[size];
+            int count = 0;
+            for (int id = 0; id < ids.length; id++) {
+                if (pages[id >>> PAGE_BITS].epochs.get(id & PAGE_MASK) != 0L) {
+                    ids[count++] = id;
+                }
+            }
+            return Arrays.copyOf(ids, count);
+        }
+
+        private DeltaSnapshot snapshot(int[] ids, int count) {
+            int size = MetricStore.this.size;
+            if (counts.length < size) {
+                counts = Arrays.copyOf(counts, size);
+                seen = Arrays.copyOf(seen, size);
+            }
+            long snapshot = ++snapshots;
+            String[] names = new String[count];
+            boolean[] meters = new boolean[count];
+            long[] values = new long[count];
+            long[] deltas = new long[count];
+            int changed = 0;
+            for (int i = 0; i < count; i++) {
+                int id = ids[i];
+                if (seen[id] != snapshot) {
+                    seen[id] = snapshot;
+                    Page page = pages[id >>> PAGE_BITS];
+                    int offset = id & PAGE_MASK;
+                    long value = page.counts.get(offset);
+                    names[changed] = page.names[offset];
+                    meters[changed] = page.meters[offset];
+                    values[changed] = value;
+                    deltas[changed] = value - counts[id];
+                    counts[id] = value;
+                    changed++;
+                }
+            }
+            return new DeltaSnapshot(names, meters, values, deltas, changed);
+        }
+    }
+
+    /**
+     * A read-only view of a counter in the store.
+     */
+    private class CountingView implements Metric, Counting {
+
+        final int id;
+
+        private CountingView(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public long getCount() {
+            return count(id);
+        }
+    }
+
+    /**
+     * A read-only view of a meter in the store.
+     */
+    private final class MeteredView extends CountingView implements Metered {
+
+        private MeteredView(int id) {
+            super(id);
+        }
+
+        @Override
+        public double getMeanRate() {
+            return meanRate(id);
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return rate(id, 0);
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return rate(id, 1);
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return rate(id, 2);
+        }
+    }
+
+    /**
+     * A counter in the store, for collectors and registries.
+     */
+    private final class CounterView extends Counter {
+
+        private final int id;
+
+        private CounterView(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void inc() {
+            add(id, 1L);
+        }
+
+        @Override
+        public void inc(long n) {
+            add(id, n);
+        }
+
+        @Override
+        public void dec() {
+            add(id, -1L);
+        }
+
+        @Override
+        public void dec(long n) {
+            add(id, -n);
+        }
+
+        @Override
+        public long getCount() {
+            return count(id);
+        }
+    }
+
+    /**
+     * A meter in the store, for collectors and registries.
+     */
+    private final class MeterView extends Meter {
+
+        private final int id;
+
+        private MeterView(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void mark() {
+            add(id, 1L);
+        }
+
+        @Override
+        public void mark(long n) {
+            add(id, n);
+        }
+
+        @Override
+        public long getCount() {
+            return count(id);
+        }
+
+        @Override
+        public double getMeanRate() {
+            return meanRate(id);
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return rate(id, 0);
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return rate(id, 1);
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return rate(id, 2);
+        }
+    }
+}
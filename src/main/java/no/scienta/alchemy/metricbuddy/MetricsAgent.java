@@ -0,0 +1,277 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.method.MethodList;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.bytecode.ByteCodeAppender;
+import net.bytebuddy.implementation.bytecode.StackManipulation;
+import net.bytebuddy.implementation.bytecode.assign.TypeCasting;
+import net.bytebuddy.implementation.bytecode.constant.ClassConstant;
+import net.bytebuddy.implementation.bytecode.constant.TextConstant;
+import net.bytebuddy.implementation.bytecode.member.FieldAccess;
+import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.pool.TypePool;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * A Java agent which applies {@link Time}, {@link Inc} and {@link Meter} to methods of application classes.  The
+ * recording is inlined into the method bodies as advice.  Each instrumented method gets a static field in its class,
+ * holding its metric, resolved when the class is initialized.  Metric names are prefixed with the class, and follow
+ * {@link OverrideName} and the name strategy of the agent's {@link MetricsCollectors}.
+ * <p>
+ * Run with {@code -javaagent:metricsbuddy.jar}, optionally {@code =snake} or {@code =path} to pick a naming
+ * strategy, and export the registry of {@link #metricsCollectors()}.
+ */
+public final class MetricsAgent {
+
+    private static final String FIELD_PREFIX = "metric$agent$";
+
+    private static final MethodDescription.InDefinedShape METRIC = new TypeDescription.ForLoadedType(MetricsAgent.class)
+            .getDeclaredMethods().filter(named("metric")).getOnly();
+
+    private static final TypePool BOOT_TYPES = new BootTypes();
+
+    private static volatile MetricsCollectorsImpl metricsCollectors;
+
+    public static void premain(String arguments, Instrumentation instrumentation) {
+        install(instrumentation, "snake".equals(arguments) ? MetricsCollectorsImpl.defaultInstance().withSnakeCaseNaming()
+                : "path".equals(arguments) ? MetricsCollectorsImpl.defaultInstance().withPathNaming()
+                : MetricsCollectorsImpl.defaultInstance());
+    }
+
+    public static void agentmain(String arguments, Instrumentation instrumentation) {
+        premain(arguments, instrumentation);
+    }
+
+    /**
+     * Instrument classes loaded from now on.  Can only be done once.
+     *
+     * @param instrumentation Instrumentation
+     * @param metricsCollectors Metrics collectors to resolve metrics with
+     */
+    public static synchronized void install(Instrumentation instrumentation, MetricsCollectors metricsCollectors) {
+        if (!(metricsCollectors instanceof MetricsCollectorsImpl)) {
+            throw new IllegalArgumentException("Expected metrics collectors from " + MetricsCollectorsImpl.class +
+                    ", got: " + metricsCollectors);
+        }
+        if (MetricsAgent.metricsCollectors != null) {
+            throw new IllegalStateException("Already installed with " + MetricsAgent.metricsCollectors);
+        }
+        MetricsAgent.metricsCollectors = (MetricsCollectorsImpl) metricsCollectors;
+        new AgentBuilder.Default()
+                .with(MetricsAgent::typePool)
+                .ignore(nameStartsWith("java.")
+                        .or(nameStartsWith("javax."))
+                        .or(nameStartsWith("jdk."))
+                        .or(nameStartsWith("sun."))
+                        .or(nameStartsWith("com.sun."))
+                        .or(nameStartsWith("net.bytebuddy."))
+                        .or(nameStartsWith("com.codahale.metrics."))
+                        .or(nameMatches("no\\.scienta\\.alchemy\\.metricbuddy\\.[^.]+"))
+                        .or(isSynthetic()))
+                .type(not(isInterface()).and(declaresMethod(instrumented())))
+                .transform((builder, type, classLoader, module) -> instrument(builder, type))
+                .installOn(instrumentation);
+    }
+
+    /**
+     * @return The metrics collectors the agent records with
+     */
+    public static MetricsCollectors metricsCollectors() {
+        MetricsCollectors metricsCollectors = MetricsAgent.metricsCollectors;
+        if (metricsCollectors == null) {
+            throw new IllegalStateException("Not installed");
+        }
+        return metricsCollectors;
+    }
+
+    /**
+     * Called from the type initializer of instrumented classes.
+     *
+     * @param type Instrumented class
+     * @param method Method name and descriptor
+     * @return The metric of the method
+     */
+    public static Metric metric(Class<?> type, String method) {
+        return Stream.of(type.getDeclaredMethods())
+                .filter(declared -> method.equals(key(new MethodDescription.ForLoadedMethod(declared))))
+                .findFirst()
+                .map(declared -> metricsCollectors.agentMetric(type, declared))
+                .orElseThrow(() -> new IllegalStateException("No method " + method + " in " + type));
+    }
+
+    /**
+     * Called from instrumented methods.
+     *
+     * @param timer Timer
+     * @return Start time
+     */
+    public static long startTiming(Timer timer) {
+        return AbstractMetricsCollector.startTiming(timer);
+    }
+
+    /**
+     * Called from instrumented methods.
+     *
+     * @param timer Timer
+     * @param startTime Start time
+     */
+    public static void stopTiming(Timer timer, long startTime) {
+        AbstractMetricsCollector.stopTiming(timer, startTime);
+    }
+
+    static DynamicType.Builder<?> instrument(DynamicType.Builder<?> builder, TypeDescription type) {
+        MethodList<MethodDescription.InDefinedShape> methods = type.getDeclaredMethods().filter(instrumented());
+        List<StackManipulation> bindings = new ArrayList<>();
+        DynamicType.Builder<?> instrumented = builder;
+        for (int i = 0; i < methods.size(); i++) {
+            MethodDescription.InDefinedShape method = methods.get(i);
+            Class<?> metricType = metricType(method);
+            FieldDescription field = new FieldDescription.Latent(type, FIELD_PREFIX + i,
+                    Modifier.PRIVATE | Modifier.STATIC,
+                    new TypeDescription.ForLoadedType(metricType).asGenericType(),
+                    Collections.emptyList());
+            instrumented = instrumented
+                    .defineField(field.getName(), metricType, field.getModifiers())
+                    .visit(Advice.withCustomMapping().bind(Handle.class, field).to(advice(method)).on(is(method)));
+            bindings.add(new StackManipulation.Compound(
+                    ClassConstant.of(type),
+                    new TextConstant(key(method)),
+                    MethodInvocation.invoke(METRIC),
+                    TypeCasting.to(new TypeDescription.ForLoadedType(metricType)),
+                    FieldAccess.forField(field).write()));
+        }
+        return instrumented.initializer((ByteCodeAppender) (methodVisitor, context, method) -> new ByteCodeAppender.Size(
+                new StackManipulation.Compound(bindings).apply(methodVisitor, context).getMaximalSize(),
+                method.getStackSize()));
+    }
+
+    private static TypePool typePool(ClassFileLocator classFileLocator, ClassLoader classLoader) {
+        return new TypePool.Default.WithLazyResolution(
+                new TypePool.CacheProvider.Simple(),
+                classFileLocator,
+                TypePool.Default.ReaderMode.FAST,
+                BOOT_TYPES);
+    }
+
+    private static ElementMatcher.Junction<MethodDescription> instrumented() {
+        return not(isAbstract()).and(not(isConstructor())).and(not(isTypeInitializer()))
+                .and(isAnnotatedWith(Time.class).or(isAnnotatedWith(Inc.class)).or(isAnnotatedWith(Meter.class)));
+    }
+
+    private static String key(MethodDescription method) {
+        return method.getInternalName() + method.getDescriptor();
+    }
+
+    private static Class<? extends Annotation> annotation(MethodDescription method) {
+        return method.getDeclaredAnnotations().isAnnotationPresent(Time.class) ? Time.class
+                : method.getDeclaredAnnotations().isAnnotationPresent(Inc.class) ? Inc.class
+                : Meter.class;
+    }
+
+    private static Class<?> metricType(MethodDescription method) {
+        Class<? extends Annotation> annotation = annotation(method);
+        return annotation == Time.class ? Timer.class
+                : annotation == Inc.class ? Counter.class
+                : com.codahale.metrics.Meter.class;
+    }
+
+    private static Class<?> advice(MethodDescription method) {
+        Class<? extends Annotation> annotation = annotation(method);
+        return annotation == Time.class ? TimeAdvice.class
+                : annotation == Inc.class ? IncAdvice.class
+                : MeterAdvice.class;
+    }
+
+    private MetricsAgent() {
+    }
+
+    /**
+     * Describes bootstrap types from their loaded classes, instead of parsing class files of JDKs newer than the
+     * class file reader.  Types which are being loaded themselves are left to the parsing pool.
+     */
+    private static final class BootTypes extends TypePool.ClassLoading {
+
+        private BootTypes() {
+            super(new TypePool.CacheProvider.Simple(), TypePool.Empty.INSTANCE, null);
+        }
+
+        @Override
+        public Resolution doDescribe(String name) {
+            try {
+                return super.doDescribe(name);
+            } catch (ClassCircularityError e) {
+                return new Resolution.Illegal(name);
+            }
+        }
+    }
+
+    /**
+     * Binds the static field holding the metric of the instrumented method.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface Handle {
+    }
+
+    public static final class TimeAdvice {
+
+        @Advice.OnMethodEnter
+        public static long enter(@Handle Timer timer) {
+            return MetricsAgent.startTiming(timer);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void exit(@Advice.Enter long startTime, @Handle Timer timer) {
+            MetricsAgent.stopTiming(timer, startTime);
+        }
+
+        private TimeAdvice() {
+        }
+    }
+
+    public static final class IncAdvice {
+
+        @Advice.OnMethodEnter
+        public static void enter(@Handle Counter counter) {
+            counter.inc();
+        }
+
+        private IncAdvice() {
+        }
+    }
+
+    public static final class MeterAdvice {
+
+        @Advice.OnMethodEnter
+        public static void enter(@Handle com.codahale.metrics.Meter meter) {
+            meter.mark();
+        }
+
+        private MeterAdvice() {
+        }
+    }
+}
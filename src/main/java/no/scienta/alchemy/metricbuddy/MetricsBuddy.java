@@ -1,97 +1,247 @@
 package no.scienta.alchemy.metricbuddy;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.NamingStrategy;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.method.ParameterDescription;
+import net.bytebuddy.description.modifier.FieldManifestation;
+import net.bytebuddy.description.modifier.Ownership;
 import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
-import net.bytebuddy.implementation.MethodCall;
+import net.bytebuddy.dynamic.scaffold.InstrumentedType;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.implementation.LoadedTypeInitializer;
+import net.bytebuddy.implementation.bytecode.ByteCodeAppender;
+import net.bytebuddy.implementation.bytecode.StackManipulation;
+import net.bytebuddy.implementation.bytecode.assign.TypeCasting;
+import net.bytebuddy.implementation.bytecode.collection.ArrayAccess;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+import net.bytebuddy.implementation.bytecode.constant.LongConstant;
+import net.bytebuddy.implementation.bytecode.constant.TextConstant;
+import net.bytebuddy.implementation.bytecode.member.FieldAccess;
+import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
+import net.bytebuddy.implementation.bytecode.member.MethodReturn;
+import net.bytebuddy.implementation.bytecode.member.MethodVariableAccess;
+import net.bytebuddy.jar.asm.Label;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.*;
-import java.util.stream.IntStream;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static net.bytebuddy.matcher.ElementMatchers.named;
 import static net.bytebuddy.matcher.ElementMatchers.returns;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
 
+/**
+ * Generates collector classes from interfaces.  Each collector method gets a private field in the generated class,
+ * resolved once when the collector is {@link ManagedBase#bindMetrics() bound}, so that the interface methods only
+ * need to load the field and record.  Metric names are resolved when binding too, by
+ * {@link AbstractMetricsCollector#metricName(Method)}, so a class serves every name strategy.
+ */
 final class MetricsBuddy {
 
-    static Class<? extends AbstractMetricsCollector> generateSubclass(Class<?> type,
-                                                                      MetricsCollectors.MetricNameStrategy nameStrategy) {
+    /**
+     * @param type Collector interface
+     * @param stored True if counters and meters are in a {@link MetricStore}, and should be held by id
+     * @return Collector class
+     */
+    static Class<? extends AbstractMetricsCollector> generateSubclass(Class<?> type, boolean stored) {
+        Map<Method, Handle> handles = handles(type, stored);
+        Map<String, String> guards = guards(type);
         DynamicType.Builder<AbstractMetricsCollector> builder = addMethods(
-                new ByteBuddy()
-                        .with(new NamingStrategy.SuffixingRandom("Metrics"))
-                        .subclass(AbstractMetricsCollector.class).implement(type),
+                addGuards(addHandles(new ByteBuddy()
+                                .with(new NamingStrategy.SuffixingRandom("Metrics"))
+                                .subclass(AbstractMetricsCollector.class).implement(type),
+                        handles.values().stream()
+                                .flatMap(Handle::withFailures)
+                                .collect(Collectors.toCollection(LinkedHashSet::new))),
+                        guards),
                 type,
-                nameStrategy);
+                handles,
+                guards);
         DynamicType.Unloaded<AbstractMetricsCollector> unloadedClass = builder.make();
         DynamicType.Loaded<AbstractMetricsCollector> loadedClass = unloadedClass.load(
-                Thread.currentThread().getContextClassLoader(),
+                type.getClassLoader(),
                 ClassLoadingStrategy.Default.WRAPPER);
         return loadedClass.getLoaded();
     }
 
+    private static Map<Method, Handle> handles(Class<?> type, boolean stored) {
+        Map<String, Handle> distinctHandles = new HashMap<>();
+        Map<Method, Handle> handles = new LinkedHashMap<>();
+        for (Method method : type.getDeclaredMethods()) {
+            Class<? extends Annotation> metric = metricAnnotation(method);
+            int tagIndex = Tagged.tagParameter(method);
+            boolean storedMetric = stored && tagIndex < 0 && storedResolvers.containsKey(metric);
+            if (usesHandle(handleMethod(method, metric, storedMetric), handleType(metric, storedMetric))) {
+                Tag tag = tagIndex < 0 ? null : method.getParameters()[tagIndex].getAnnotation(Tag.class);
+                Class<?> tagType = tagIndex < 0 ? null : method.getParameterTypes()[tagIndex];
+                String failuresName = failures(method);
+                Handle failures = failuresName.isEmpty() ? null : distinctHandles.computeIfAbsent(
+                        "failures:" + failuresName, k ->
+                                new Handle(Inc.class, failuresName, distinctHandles.size(), method, null, null, null,
+                                        false));
+                handles.put(method, distinctHandles.computeIfAbsent("method:" + method, k ->
+                        new Handle(metric, null, distinctHandles.size(), method, tag, tagType, failures,
+                                storedMetric)));
+            }
+        }
+        return handles;
+    }
+
+    private static <T extends AbstractMetricsCollector> DynamicType.Builder<T> addHandles(
+            DynamicType.Builder<T> base,
+            Collection<Handle> handles) {
+        Method[] methods = new Method[handles.size()];
+        handles.forEach(handle -> methods[handle.index] = handle.method);
+        return handles.stream().reduce(base,
+                (builder, handle) -> builder.defineField(handle.field, handle.fieldType(), Visibility.PRIVATE),
+                MetricsBuddy::failIfCombined)
+                .defineField(METHODS, Method[].class, Visibility.PRIVATE, Ownership.STATIC)
+                .initializer(new MethodsInitializer(methods))
+                .method(named("bindMetrics").and(takesArguments(0)))
+                .intercept(new BindHandles(handles));
+    }
+
+    /**
+     * @return Static field names of the guards, by group
+     */
+    private static Map<String, String> guards(Class<?> type) {
+        Map<String, String> guards = new LinkedHashMap<>();
+        for (Method method : type.getDeclaredMethods()) {
+            String group = MetricGroups.group(method);
+            if (!group.isEmpty()) {
+                guards.computeIfAbsent(group, k -> GUARD_PREFIX + guards.size());
+            }
+        }
+        return guards;
+    }
+
+    private static <T extends AbstractMetricsCollector> DynamicType.Builder<T> addGuards(
+            DynamicType.Builder<T> base,
+            Map<String, String> guards) {
+        if (guards.isEmpty()) {
+            return base;
+        }
+        return guards.values().stream().reduce(base,
+                (builder, field) -> builder.defineField(field, MethodHandle.class,
+                        Visibility.PRIVATE, Ownership.STATIC, FieldManifestation.FINAL),
+                MetricsBuddy::failIfCombined)
+                .initializer(new InitGuards(guards));
+    }
+
     private static <T extends AbstractMetricsCollector> DynamicType.Builder<T> addMethods(
-            DynamicType.Builder<T> base, Class<?> type,
-            MetricsCollectors.MetricNameStrategy metricNameStrategy) {
+            DynamicType.Builder<T> base,
+            Class<?> type,
+            Map<Method, Handle> handles,
+            Map<String, String> guards) {
         return Stream.of(type.getDeclaredMethods()).reduce(base,
-                (builder, method) -> createMethod(builder, method, metricNameStrategy),
+                (builder, method) -> createMethod(builder, method, handles.get(method),
+                        guards.get(MetricGroups.group(method))),
                 MetricsBuddy::failIfCombined);
     }
 
     private static <T extends AbstractMetricsCollector> DynamicType.Builder<T> createMethod(
             DynamicType.Builder<T> builder,
             Method method,
-            MetricsCollectors.MetricNameStrategy metricNameStrategy) {
-        MethodCall baseCall = MethodCall.invoke(baseMethod(method)).onSuper();
-        String name = metricName(metricNameStrategy, method);
-        MethodCall argumentMethodCall = method.getParameterCount() == 0
-                ? baseCall.with(name)
-                : baseCall.with(name).withArgument(indices(method));
+            Handle handle,
+            String guard) {
+        Method handleMethod = handleMethod(method, metricAnnotation(method), handle != null && handle.stored);
         return builder
-                .method(named(method.getName()).and(returns(method.getReturnType())))
-                .intercept(argumentMethodCall).modifiers(Visibility.PUBLIC);
-    }
-
-    private static String metricName(MetricsCollectors.MetricNameStrategy metricNameStrategy, Method method) {
-        OverrideName overrideName = method.getAnnotation(OverrideName.class);
-        return overrideName != null ? overrideName.value()
-                : metricNameStrategy != null ? metricNameStrategy.metricName(method)
-                : method.getName();
-    }
-
-    private static int[] indices(Method method) {
-        return IntStream.range(0, method.getParameterCount()).toArray();
+                .method(named(method.getName())
+                        .and(returns(method.getReturnType()))
+                        .and(takesArguments(method.getParameterTypes())))
+                .intercept(new Record(handleMethod, handle, Tagged.tagParameter(method), guard))
+                .modifiers(Visibility.PUBLIC);
     }
 
     private static final Collection<Class<? extends Annotation>> annotations = new HashSet<>(Arrays.asList(
             Inc.class,
             Histo.class,
             Time.class,
-            Meter.class));
-
-    private static Method baseMethod(Method method) {
-        Class<?> annotation = metricAnnotation(method);
-        Optional<Method> first = baseMethods.entrySet().stream()
-                .filter(e -> e.getKey().isAssignableFrom(annotation))
-                .flatMap(e -> e.getValue().stream())
-                .filter(m -> m.getParameterCount() == method.getParameterCount() + 1)
+            Meter.class,
+            Gauge.class));
+
+    /**
+     * @return The method which records for the given interface method.  Instance methods are invoked on the handle,
+     * static methods may take the handle as their first argument, and a failure counter as their second.  Instance
+     * methods of the collector take the handle as their first argument too.
+     */
+    private static Method handleMethod(Method method, Class<? extends Annotation> metric, boolean stored) {
+        List<Class<?>> values = Arrays.asList(Tagged.valueTypes(method));
+        boolean failures = !failures(method).isEmpty();
+        Class<?> handleType = handleType(metric, stored);
+        Optional<Method> first = (stored ? storedHandleMethods : handleMethods.get(metric)).stream()
+                .filter(m -> m.getReturnType() == method.getReturnType() ||
+                        m.getReturnType() == Object.class && !method.getReturnType().isPrimitive())
+                .filter(m -> takesFailures(m, handleType) == failures)
+                .filter(m -> valueTypes(m, handleType).equals(values))
                 .findFirst();
         if (!first.isPresent()) {
-            throw new IllegalStateException("No corresponding superclass method for " + method +
+            throw new IllegalStateException("No corresponding handle method for " + method +
                     " with " + Arrays.toString(method.getDeclaredAnnotations()));
         }
         return first.get();
     }
 
+    private static Class<?> handleType(Class<? extends Annotation> metric, boolean stored) {
+        return stored ? int.class : handleTypes.get(metric);
+    }
+
+    private static List<Class<?>> valueTypes(Method handleMethod, Class<?> handleType) {
+        List<Class<?>> parameters = Arrays.asList(handleMethod.getParameterTypes());
+        int handles = (takesHandle(handleMethod, handleType) ? 1 : 0) +
+                (takesFailures(handleMethod, handleType) ? 1 : 0);
+        return parameters.subList(handles, parameters.size());
+    }
+
+    private static boolean takesFailures(Method handleMethod, Class<?> handleType) {
+        return takesHandle(handleMethod, handleType) &&
+                handleMethod.getParameterCount() > 1 &&
+                handleMethod.getParameterTypes()[1] == Counter.class;
+    }
+
+    private static String failures(Method method) {
+        Time time = method.getAnnotation(Time.class);
+        return time == null ? "" : time.failures();
+    }
+
+    private static boolean usesHandle(Method handleMethod, Class<?> handleType) {
+        return !Modifier.isStatic(handleMethod.getModifiers()) || takesHandle(handleMethod, handleType);
+    }
+
+    private static boolean takesHandle(Method handleMethod, Class<?> handleType) {
+        return (Modifier.isStatic(handleMethod.getModifiers()) || ofCollector(handleMethod)) &&
+                handleMethod.getParameterCount() > 0 &&
+                handleMethod.getParameterTypes()[0] == handleType;
+    }
+
+    private static boolean ofCollector(Method handleMethod) {
+        return !Modifier.isStatic(handleMethod.getModifiers()) &&
+                handleMethod.getDeclaringClass() == AbstractMetricsCollector.class;
+    }
+
     private static Class<? extends Annotation> metricAnnotation(Method method) {
         return Stream.of(method.getAnnotations())
                 .filter(MetricsBuddy::isMetricAnnotation)
                 .findFirst()
-                .map(Object::getClass)
-                .<Class<? extends Annotation>>map(type -> type.asSubclass(Annotation.class))
+                .<Class<? extends Annotation>>map(Annotation::annotationType)
                 .orElseGet(() -> defaultClass(method));
     }
 
@@ -115,30 +265,113 @@ final class MetricsBuddy {
         return annotations.stream().anyMatch(annoType -> annoType.isInstance(anno));
     }
 
-    private static Method resolveBaseMethod(String name, Class<?>... args) {
+    private static final String METHODS = "metric$methods";
+
+    private static final String GUARD_PREFIX = "metric$guard$";
+
+    private static Method resolveMethod(Class<?> type, String name, Class<?>... args) {
         try {
-            return AbstractMetricsCollector.class.getDeclaredMethod(name, args);
+            return type.getDeclaredMethod(name, args);
         } catch (Exception e) {
             throw new IllegalStateException("Failed to get " + name + "(" + Arrays.toString(args) + ")", e);
         }
     }
 
-    private static Map<Class<? extends Annotation>, Collection<Method>> baseMethods() {
+    private static Map<Class<? extends Annotation>, Class<?>> handleTypes() {
+        Map<Class<? extends Annotation>, Class<?>> map = new HashMap<>();
+        map.put(Time.class, Timer.class);
+        map.put(Inc.class, Counter.class);
+        map.put(Meter.class, com.codahale.metrics.Meter.class);
+        map.put(Histo.class, Histogram.class);
+        map.put(Gauge.class, SuppliedGauge.class);
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static final Map<Class<? extends Annotation>, Class<?>> handleTypes = handleTypes();
+
+    private static Map<Class<? extends Annotation>, Method> resolvers() {
+        Map<Class<? extends Annotation>, Method> map = new HashMap<>();
+        map.put(Time.class, resolveResolver("timerNamed"));
+        map.put(Inc.class, resolveResolver("counterNamed"));
+        map.put(Meter.class, resolveResolver("meterNamed"));
+        map.put(Histo.class, resolveResolver("histogramNamed"));
+        map.put(Gauge.class, resolveResolver("gaugeNamed"));
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static final Map<Class<? extends Annotation>, Method> resolvers = resolvers();
+
+    private static Map<Class<? extends Annotation>, Method> taggedResolvers() {
+        Map<Class<? extends Annotation>, Method> map = new HashMap<>();
+        map.put(Time.class, resolveResolver("taggedTimers"));
+        map.put(Inc.class, resolveResolver("taggedCounters"));
+        map.put(Meter.class, resolveResolver("taggedMeters"));
+        map.put(Histo.class, resolveResolver("taggedHistograms"));
+        map.put(Gauge.class, resolveResolver("taggedGauges"));
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static Method resolveResolver(String name) {
+        return resolveMethod(AbstractMetricsCollector.class, name, String.class, Method.class);
+    }
+
+    private static final Map<Class<? extends Annotation>, Method> taggedResolvers = taggedResolvers();
+
+    private static Map<Class<? extends Annotation>, Method> storedResolvers() {
+        Map<Class<? extends Annotation>, Method> map = new HashMap<>();
+        map.put(Inc.class, resolveResolver("counterId"));
+        map.put(Meter.class, resolveResolver("meterId"));
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static final Map<Class<? extends Annotation>, Method> storedResolvers = storedResolvers();
+
+    private static final Collection<Method> storedHandleMethods = Arrays.asList(
+            resolveMethod(AbstractMetricsCollector.class, "storeAdd", int.class),
+            resolveMethod(AbstractMetricsCollector.class, "storeAdd", int.class, long.class));
+
+    private static final Method metricName =
+            resolveMethod(AbstractMetricsCollector.class, "metricName", Method.class);
+
+    private static final Method groupGuard = resolveMethod(AbstractMetricsCollector.class, "groupGuard", String.class);
+
+    private static final Method groupEnabled =
+            resolveMethod(AbstractMetricsCollector.class, "enabled", MethodHandle.class);
+
+    private static final Method supplierGet = resolveMethod(Supplier.class, "get");
+
+    private static final Method runnableRun = resolveMethod(Runnable.class, "run");
+
+    private static final Method enumTagged = resolveMethod(Tagged.class, "get", Enum.class);
+
+    private static final Method stringTagged = resolveMethod(Tagged.class, "get", String.class);
+
+    private static Map<Class<? extends Annotation>, Collection<Method>> handleMethods() {
         Map<Class<? extends Annotation>, Collection<Method>> map = new HashMap<>();
-        map.put(Time.class, Collections.singleton(
-                resolveBaseMethod("timer", String.class)));
+        map.put(Time.class, Arrays.asList(
+                resolveMethod(AbstractMetricsCollector.class, "timing", Timer.class),
+                resolveMethod(AbstractMetricsCollector.class, "startTiming", Timer.class),
+                resolveMethod(AbstractMetricsCollector.class, "stopTiming", Timer.class, long.class),
+                resolveMethod(AbstractMetricsCollector.class, "timed", Timer.class, Supplier.class),
+                resolveMethod(AbstractMetricsCollector.class, "timed", Timer.class, Runnable.class),
+                resolveMethod(AbstractMetricsCollector.class, "timed", Timer.class, Counter.class, Supplier.class),
+                resolveMethod(AbstractMetricsCollector.class, "timed", Timer.class, Counter.class, Runnable.class)));
         map.put(Inc.class, Arrays.asList(
-                resolveBaseMethod("inc", String.class),
-                resolveBaseMethod("inc", String.class, long.class)));
+                resolveMethod(Counter.class, "inc"),
+                resolveMethod(Counter.class, "inc", long.class)));
         map.put(Meter.class, Arrays.asList(
-                resolveBaseMethod("meter", String.class),
-                resolveBaseMethod("meter", String.class, long.class)));
-        map.put(Histo.class, Collections.singleton(
-                resolveBaseMethod("update", String.class, long.class)));
+                resolveMethod(com.codahale.metrics.Meter.class, "mark"),
+                resolveMethod(com.codahale.metrics.Meter.class, "mark", long.class)));
+        map.put(Histo.class, Arrays.asList(
+                resolveMethod(Histogram.class, "update", long.class),
+                resolveMethod(AbstractMetricsCollector.class, "updateAll", Histogram.class, long[].class)));
+        map.put(Gauge.class, Arrays.asList(
+                resolveMethod(SuppliedGauge.class, "supply", LongSupplier.class),
+                resolveMethod(SuppliedGauge.class, "supply", DoubleSupplier.class)));
         return Collections.unmodifiableMap(map);
     }
 
-    private static final Map<Class<? extends Annotation>, Collection<Method>> baseMethods = baseMethods();
+    private static final Map<Class<? extends Annotation>, Collection<Method>> handleMethods = handleMethods();
 
     private static <T extends AbstractMetricsCollector> DynamicType.Builder<T> failIfCombined(
             DynamicType.Builder<T> b1,
@@ -148,4 +381,297 @@ final class MetricsBuddy {
 
     private MetricsBuddy() {
     }
+
+    /**
+     * A resolved metric, held in a field of the generated class.  Tagged metrics are held as {@link Tagged}.  The
+     * method is the collector method declaring the metric, and is passed on to the resolver.  Timed executions may
+     * have a counter of failures, in a handle of its own, shared by the methods naming the same counter.  Only those
+     * have a fixed name; the others are named by the method when bound.  Stored metrics are held by their id in the
+     * {@link MetricStore}.
+     */
+    private static final class Handle {
+
+        private final Class<? extends Annotation> metric;
+
+        private final String name;
+
+        private final int index;
+
+        private final String field;
+
+        private final Method method;
+
+        private final Tag tag;
+
+        private final Class<?> tagType;
+
+        private final Handle failures;
+
+        private final boolean stored;
+
+        private Handle(Class<? extends Annotation> metric, String name, int index, Method method, Tag tag,
+                       Class<?> tagType, Handle failures, boolean stored) {
+            this.metric = metric;
+            this.name = name;
+            this.index = index;
+            this.field = "metric$" + index;
+            this.method = method;
+            this.tag = tag;
+            this.tagType = tagType;
+            this.failures = failures;
+            this.stored = stored;
+        }
+
+        private Stream<Handle> withFailures() {
+            return failures == null ? Stream.of(this) : Stream.of(failures, this);
+        }
+
+        private Class<?> fieldType() {
+            return tag == null ? handleType(metric, stored) : Tagged.class;
+        }
+
+        private FieldDescription.InDefinedShape fieldIn(TypeDescription type) {
+            return type.getDeclaredFields().filter(named(field)).getOnly();
+        }
+    }
+
+    /**
+     * Implements {@link ManagedBase#bindMetrics()} by resolving each handle and storing it in its field.
+     */
+    private static final class BindHandles implements Implementation {
+
+        private final Collection<Handle> handles;
+
+        private BindHandles(Collection<Handle> handles) {
+            this.handles = handles;
+        }
+
+        @Override
+        public InstrumentedType prepare(InstrumentedType instrumentedType) {
+            return instrumentedType;
+        }
+
+        @Override
+        public ByteCodeAppender appender(Target target) {
+            return (methodVisitor, context, method) -> {
+                List<StackManipulation> bindings = handles.stream()
+                        .map(handle -> bind(target.getInstrumentedType(), handle))
+                        .collect(Collectors.toList());
+                StackManipulation.Size size = new StackManipulation.Compound(
+                        new StackManipulation.Compound(bindings),
+                        MethodReturn.VOID
+                ).apply(methodVisitor, context);
+                return new ByteCodeAppender.Size(size.getMaximalSize(), method.getStackSize());
+            };
+        }
+
+        private static StackManipulation bind(TypeDescription type, Handle handle) {
+            Method resolver = (handle.stored ? storedResolvers
+                    : handle.tag == null ? resolvers
+                    : taggedResolvers).get(handle.metric);
+            return new StackManipulation.Compound(
+                    MethodVariableAccess.loadThis(),
+                    MethodVariableAccess.loadThis(),
+                    handle.name != null ? new TextConstant(handle.name) : new StackManipulation.Compound(
+                            MethodVariableAccess.loadThis(),
+                            method(type, handle),
+                            MethodInvocation.invoke(new MethodDescription.ForLoadedMethod(metricName))),
+                    method(type, handle),
+                    MethodInvocation.invoke(new MethodDescription.ForLoadedMethod(resolver)),
+                    FieldAccess.forField(handle.fieldIn(type)).write());
+        }
+
+        private static StackManipulation method(TypeDescription type, Handle handle) {
+            return new StackManipulation.Compound(
+                    FieldAccess.forField(type.getDeclaredFields().filter(named(METHODS)).getOnly()).read(),
+                    IntegerConstant.forValue(handle.index),
+                    ArrayAccess.REFERENCE.load());
+        }
+    }
+
+    /**
+     * Sets the collector methods of the handles on the loaded class.
+     */
+    private static final class MethodsInitializer implements LoadedTypeInitializer {
+
+        private final Method[] methods;
+
+        private MethodsInitializer(Method[] methods) {
+            this.methods = methods;
+        }
+
+        @Override
+        public void onLoad(Class<?> type) {
+            try {
+                Field field = type.getDeclaredField(METHODS);
+                field.setAccessible(true);
+                field.set(null, methods);
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to initialize " + type, e);
+            }
+        }
+
+        @Override
+        public boolean isAlive() {
+            return true;
+        }
+    }
+
+    /**
+     * Resolves the guards of the groups into their static fields, when the class is initialized.
+     */
+    private static final class InitGuards implements ByteCodeAppender {
+
+        private final Map<String, String> guards;
+
+        private InitGuards(Map<String, String> guards) {
+            this.guards = guards;
+        }
+
+        @Override
+        public Size apply(MethodVisitor methodVisitor, Implementation.Context context, MethodDescription method) {
+            TypeDescription type = context.getInstrumentedType();
+            List<StackManipulation> code = guards.entrySet().stream()
+                    .map(guard -> new StackManipulation.Compound(
+                            new TextConstant(guard.getKey()),
+                            MethodInvocation.invoke(new MethodDescription.ForLoadedMethod(groupGuard)),
+                            FieldAccess.forField(type.getDeclaredFields().filter(named(guard.getValue())).getOnly())
+                                    .write()))
+                    .collect(Collectors.toList());
+            StackManipulation.Size size = new StackManipulation.Compound(code).apply(methodVisitor, context);
+            return new Size(size.getMaximalSize(), method.getStackSize());
+        }
+    }
+
+    /**
+     * Returns from a collector method early, unless the guard in the static field says its group is enabled.
+     * Timed executions still run their work.
+     */
+    private static final class Guard implements StackManipulation {
+
+        private final FieldDescription field;
+
+        private final StackManipulation disabled;
+
+        private Guard(FieldDescription field, MethodDescription method, int tagIndex) {
+            this.field = field;
+            this.disabled = disabled(method, tagIndex);
+        }
+
+        private static StackManipulation disabled(MethodDescription method, int tagIndex) {
+            TypeDescription returnType = method.getReturnType().asErasure();
+            List<ParameterDescription> values = method.getParameters().stream()
+                    .filter(parameter -> parameter.getIndex() != tagIndex)
+                    .collect(Collectors.toList());
+            TypeDescription work = values.size() == 1 ? values.get(0).getType().asErasure() : null;
+            if (work != null && (work.represents(Supplier.class) || work.represents(Runnable.class))) {
+                boolean supplier = work.represents(Supplier.class);
+                return new StackManipulation.Compound(
+                        MethodVariableAccess.load(values.get(0)),
+                        MethodInvocation.invoke(new MethodDescription.ForLoadedMethod(
+                                supplier ? supplierGet : runnableRun)),
+                        supplier && !returnType.represents(Object.class)
+                                ? TypeCasting.to(returnType)
+                                : StackManipulation.Trivial.INSTANCE,
+                        MethodReturn.of(returnType));
+            }
+            if (returnType.represents(long.class)) {
+                return new StackManipulation.Compound(
+                        LongConstant.forValue(AbstractMetricsCollector.UNSAMPLED),
+                        MethodReturn.LONG);
+            }
+            if (returnType.represents(MetricsCollectors.Timer.class)) {
+                return new StackManipulation.Compound(
+                        FieldAccess.forField(new TypeDescription.ForLoadedType(AbstractMetricsCollector.class)
+                                .getDeclaredFields().filter(named("DISABLED")).getOnly()).read(),
+                        MethodReturn.REFERENCE);
+            }
+            return MethodReturn.VOID;
+        }
+
+        @Override
+        public boolean isValid() {
+            return disabled.isValid();
+        }
+
+        @Override
+        public Size apply(MethodVisitor methodVisitor, Implementation.Context context) {
+            Label enabled = new Label();
+            Size check = new StackManipulation.Compound(
+                    FieldAccess.forField(field).read(),
+                    MethodInvocation.invoke(new MethodDescription.ForLoadedMethod(groupEnabled))
+            ).apply(methodVisitor, context);
+            methodVisitor.visitJumpInsn(Opcodes.IFNE, enabled);
+            Size skip = disabled.apply(methodVisitor, context);
+            methodVisitor.visitLabel(enabled);
+            methodVisitor.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+            return new Size(0, Math.max(check.getMaximalSize(), skip.getMaximalSize()));
+        }
+    }
+
+    /**
+     * Implements a collector method by invoking its handle method.  The handle is loaded from its field, and looked
+     * up by the tag argument if tagged.  The remaining arguments are passed on.  Methods of a group are guarded.
+     */
+    private static final class Record implements Implementation {
+
+        private final Method handleMethod;
+
+        private final Handle handle;
+
+        private final int tagIndex;
+
+        private final String guard;
+
+        private Record(Method handleMethod, Handle handle, int tagIndex, String guard) {
+            this.handleMethod = handleMethod;
+            this.handle = handle;
+            this.tagIndex = tagIndex;
+            this.guard = guard;
+        }
+
+        @Override
+        public InstrumentedType prepare(InstrumentedType instrumentedType) {
+            return instrumentedType;
+        }
+
+        @Override
+        public ByteCodeAppender appender(Target target) {
+            return (methodVisitor, context, method) -> {
+                List<StackManipulation> code = new ArrayList<>();
+                if (guard != null) {
+                    code.add(new Guard(target.getInstrumentedType().getDeclaredFields().filter(named(guard)).getOnly(),
+                            method, tagIndex));
+                }
+                if (ofCollector(handleMethod)) {
+                    code.add(MethodVariableAccess.loadThis());
+                }
+                if (handle != null) {
+                    code.add(MethodVariableAccess.loadThis());
+                    code.add(FieldAccess.forField(handle.fieldIn(target.getInstrumentedType())).read());
+                    if (handle.tag != null) {
+                        code.add(MethodVariableAccess.load(method.getParameters().get(tagIndex)));
+                        code.add(MethodInvocation.invoke(new MethodDescription.ForLoadedMethod(
+                                handle.tagType.isEnum() ? enumTagged : stringTagged)));
+                        code.add(TypeCasting.to(new TypeDescription.ForLoadedType(handleTypes.get(handle.metric))));
+                    }
+                    if (handle.failures != null) {
+                        code.add(MethodVariableAccess.loadThis());
+                        code.add(FieldAccess.forField(handle.failures.fieldIn(target.getInstrumentedType())).read());
+                    }
+                }
+                method.getParameters().stream()
+                        .filter(parameter -> parameter.getIndex() != tagIndex)
+                        .map(MethodVariableAccess::load)
+                        .forEach(code::add);
+                code.add(MethodInvocation.invoke(new MethodDescription.ForLoadedMethod(handleMethod)));
+                if (handleMethod.getReturnType() == Object.class && !method.getReturnType().represents(Object.class)) {
+                    code.add(TypeCasting.to(method.getReturnType().asErasure()));
+                }
+                code.add(MethodReturn.of(method.getReturnType()));
+                StackManipulation.Size size = new StackManipulation.Compound(code).apply(methodVisitor, context);
+                return new ByteCodeAppender.Size(size.getMaximalSize(), method.getStackSize());
+            };
+        }
+    }
 }
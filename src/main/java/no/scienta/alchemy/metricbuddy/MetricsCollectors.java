@@ -1,6 +1,9 @@
 package no.scienta.alchemy.metricbuddy;
 
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
 
 /**
  * The main interface. Produces metrics collectors from subclasses of {@link AbstractMetricsCollector}, or from annotated
@@ -28,6 +31,29 @@ public interface MetricsCollectors {
      */
     <T> T metricsCollector(Class<?> metricSourceType, Class<T> metricsCollectorType);
 
+    /**
+     * Open a batch of updates to the metrics collector for the source.  Updates through the batch's collector are
+     * held in a buffer of the calling thread, with repeated counts summed, and applied in one pass when the batch is
+     * closed.
+     *
+     * @param <T> Collector interface type
+     * @param metricSource An instance of the source type
+     * @param metricsCollectorType Collector interface
+     * @return Open batch, to be closed by the calling thread
+     */
+    <T> Batch<T> batch(Object metricSource, Class<T> metricsCollectorType);
+
+    /**
+     * Open a batch of updates to the metrics collector for the source.
+     *
+     * @param <T> Collector interface type
+     * @param metricSourceType The source type
+     * @param metricsCollectorType Collector interface
+     * @return Open batch, to be closed by the calling thread
+     * @see #batch(Object, Class)
+     */
+    <T> Batch<T> batch(Class<?> metricSourceType, Class<T> metricsCollectorType);
+
     /**
      * Register metrics collectors in JMX.
      *
@@ -55,6 +81,181 @@ public interface MetricsCollectors {
      */
     MetricsCollectors withNameStrategy(MetricNameStrategy strategy);
 
+    /**
+     * Buffer meter marks per core, and flush them into the registry's meters at the given interval.  Reading a
+     * buffered meter flushes it, so reporters always see all marks.
+     *
+     * @param flushInterval How often to flush, should be well below the five-second tick of meter rates
+     * @return Metrics collectors with buffered recording
+     */
+    MetricsCollectors withBufferedRecording(Duration flushInterval);
+
+    /**
+     * Use HdrHistogram reservoirs for histograms and timers, unless their methods specify a
+     * {@link Histo#precision() precision} of their own.  HdrHistogram reservoirs record without locking or allocation,
+     * and snapshots cover all values recorded so far, whoever else has read them.  Snapshots list their
+     * {@link com.codahale.metrics.Snapshot#getValues() values} once per recorded bucket, so they stay small.  Use
+     * {@link #withSlidingWindows(Duration) sliding windows} for recent values only.
+     *
+     * @param precision Significant digits, 1 to 5
+     * @return Metrics collectors with HdrHistogram reservoirs
+     */
+    MetricsCollectors withHdrHistograms(int precision);
+
+    /**
+     * Sample histograms and timers, unless their methods specify a {@link Time#sampleEvery() sample interval} of their
+     * own.  All calls are recorded until a metric is called more often than the target rate, after which every nth
+     * call is recorded, adjusted once a second.  Counts and rates still include all calls.
+     *
+     * @param samplesPerSecond Target samples per second, per metric
+     * @return Metrics collectors with adaptive sampling
+     */
+    MetricsCollectors withAdaptiveSampling(int samplesPerSecond);
+
+    /**
+     * Report histograms and timers over a sliding window of the last seconds, unless their methods specify a
+     * {@link Histo#windowSeconds() window} or {@link Histo#precision() precision} of their own.  Sliding window
+     * reservoirs count values in per-second bins, striped by thread, so their memory is bounded and updates do not
+     * allocate or lock.  Values are reported to within about 6%.
+     *
+     * @param window Window, in whole seconds
+     * @return Metrics collectors with sliding window reservoirs
+     */
+    MetricsCollectors withSlidingWindows(Duration window);
+
+    /**
+     * Remove metrics of collectors from the registry when they have not been updated for the idle time, or when there
+     * are more of them than the limit, least recently updated first.  Collectors keep recording to evicted metrics,
+     * which are registered again when found updated, or resolved by name.  Updates are found by their counts, a few
+     * times per idle time, so recording costs the same.  Metrics evicted for several idle times are checked less
+     * often, and forgotten once their collectors are gone.  Gauges and metrics in a {@link MetricStore} are not
+     * evicted.
+     *
+     * @param idleTime Time without updates before a metric is evicted
+     * @param maxMetrics Maximum number of collectors' metrics in the registry
+     * @return Metrics collectors with eviction
+     */
+    MetricsCollectors withIdleEviction(Duration idleTime, int maxMetrics);
+
+    /**
+     * Keep counters and meters in a {@link MetricStore} instead of the registry.  Collectors generated from interfaces
+     * hold the ids of their metrics in the store, and record by adding to its columns.  Report them with
+     * {@link MetricStore#registerIn(com.codahale.metrics.MetricRegistry) registerIn}, which also registers metrics
+     * added later.  Takes precedence over {@link #withSharedMemory(Path, int) shared memory} and
+     * {@link #withBufferedRecording(Duration) buffering}.
+     *
+     * @param store Metric store
+     * @return Metrics collectors with a metric store
+     */
+    MetricsCollectors withMetricStore(MetricStore store);
+
+    /**
+     * Keep counters and meter counts in a memory-mapped file, where other processes can read them with a
+     * {@link SharedCountersReader} while they are updated.  The file is created, or overwritten, with room for the
+     * given number of metrics.  Takes precedence over {@link #withBufferedRecording(Duration) buffering} of meters.
+     *
+     * @param file File to map
+     * @param capacity Maximum number of shared metrics
+     * @return Metrics collectors with shared counters
+     */
+    MetricsCollectors withSharedMemory(Path file, int capacity);
+
+    /**
+     * Record through a lock-free ring of events, so that a collector call only publishes an event.  A daemon thread
+     * applies the events to the metrics in batches, so updates show up shortly after they are made, or after
+     * {@link #flush()}.  The thread stops when the collectors are {@link #close() closed}.  Ring occupancy, dropped
+     * events and failed updates are exported as metrics, summed over the recordings of the registry.  Counts in
+     * {@link #withSharedMemory(Path, int) shared memory} are still updated directly.
+     *
+     * @param capacity Ring capacity, a power of two
+     * @param backpressure What to do when the ring is full
+     * @return Metrics collectors with asynchronous recording
+     */
+    MetricsCollectors withAsyncRecording(int capacity, Backpressure backpressure);
+
+    /**
+     * Export the registry of these collectors in the Prometheus text format.  The exporter follows the registry as
+     * metrics are added, and can serve them over HTTP.
+     *
+     * @return New exporter, to be closed when done
+     */
+    PrometheusExporter prometheusExporter();
+
+    /**
+     * Emit the registry of these collectors to a StatsD agent, once per window, packing the changed metrics into as
+     * few datagrams as fit.
+     *
+     * @param target Address of the StatsD agent
+     * @param window Time between emits
+     * @return New emitter, to be closed when done
+     */
+    StatsdEmitter statsdEmitter(InetSocketAddress target, Duration window);
+
+    /**
+     * Record the registry of these collectors into a ring of frames in a memory-mapped file, to be read with a
+     * {@link MetricHistoryReader} after a crash.
+     *
+     * @param file File to map, created or overwritten
+     * @param size File size in bytes
+     * @param interval Time between frames
+     * @return New history, to be closed when done
+     */
+    MetricHistory metricHistory(Path file, int size, Duration interval);
+
+    /**
+     * Switch on the metrics of a {@link Inc#group() group}, in all collectors of the process.  Collector methods of
+     * disabled groups return without recording, and once compiled, cost nothing.  Switching a group makes the JIT
+     * recompile the methods which check it.
+     *
+     * @param group Group name
+     */
+    void enableGroup(String group);
+
+    /**
+     * Switch off the metrics of a {@link Inc#group() group}, in all collectors of the process.  Groups are disabled
+     * until enabled.
+     *
+     * @param group Group name
+     */
+    void disableGroup(String group);
+
+    /**
+     * @param group Group name
+     * @return True if the group is enabled
+     */
+    boolean groupEnabled(String group);
+
+    /**
+     * Flush any buffered values into the registry.
+     */
+    void flush();
+
+    /**
+     * Release the resources of the recording set up with the {@code with} methods, which are shared with the
+     * collectors derived from these.  Collectors go on recording, in the process only:
+     * {@link #withAsyncRecording(int, Backpressure) asynchronous recording} applies the events it holds and stops its
+     * thread, counts in {@link #withSharedMemory(Path, int) shared memory} stop reaching the file, and
+     * {@link #withIdleEviction(Duration, int) idle eviction} stops sweeping, so evicted metrics are only registered
+     * again when resolved by name.
+     */
+    void close();
+
+    /**
+     * What recording threads do when asynchronous recording can't keep up.
+     */
+    enum Backpressure {
+
+        /**
+         * Drop the update, and count it.
+         */
+        DROP,
+
+        /**
+         * Wait for room in the ring.
+         */
+        BLOCK
+    }
+
     /**
      * A timer interface.
      */
@@ -1,14 +1,17 @@
 package no.scienta.alchemy.metricbuddy;
 
 import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
-import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The main class.
@@ -28,25 +31,56 @@ public final class MetricsCollectorsImpl implements MetricsCollectors {
 
     private final boolean registeredInJmx;
 
-    private final Map<Class<?>, AbstractMetricsCollector> meters = new ConcurrentHashMap<>();
+    private final Recording recording;
 
-    private final Map<Class<?>, Class<? extends AbstractMetricsCollector>> generatedMeterTypes = new ConcurrentHashMap<>();
+    private final SelfMetrics selfMetrics;
+
+    /**
+     * Collectors by source type.  Kept in the source types themselves, so that they don't outlive their class loader.
+     */
+    private final ClassValue<SourceCollectors> sourceCollectors = new ClassValue<SourceCollectors>() {
+        @Override
+        protected SourceCollectors computeValue(Class<?> sourceType) {
+            return new SourceCollectors(sourceType);
+        }
+    };
+
+    /**
+     * Collector classes by interface, kept in the interfaces.  Generated classes are shared with other instances,
+     * through {@link GeneratedClasses}.
+     */
+    private final ClassValue<Class<? extends AbstractMetricsCollector>> collectorClasses =
+            new ClassValue<Class<? extends AbstractMetricsCollector>>() {
+                @Override
+                protected Class<? extends AbstractMetricsCollector> computeValue(Class<?> type) {
+                    return collectorClass(type, recording.metricStore() != null);
+                }
+            };
+
+    /**
+     * Batches of the calling thread, with the buffer they share.
+     */
+    private final ThreadLocal<ThreadBatches> threadBatches = ThreadLocal.withInitial(ThreadBatches::new);
 
     public MetricsCollectorsImpl() {
         this(null);
     }
 
     public MetricsCollectorsImpl(MetricRegistry metricRegistry) {
-        this(metricRegistry, null, false);
+        this(metricRegistry, null, false, Recording.DIRECT, null);
     }
 
     private MetricsCollectorsImpl(
             MetricRegistry metricRegistry,
             MetricNameStrategy metricNameStrategy,
-            boolean registeredInJmx) {
+            boolean registeredInJmx,
+            Recording recording,
+            SelfMetrics selfMetrics) {
         this.metricRegistry = metricRegistry == null ? new MetricRegistry() : metricRegistry;
         this.metricNameStrategy = metricNameStrategy;
         this.registeredInJmx = registeredInJmx;
+        this.recording = recording;
+        this.selfMetrics = selfMetrics == null ? new SelfMetrics(this.metricRegistry) : selfMetrics;
     }
 
     @Override
@@ -63,9 +97,24 @@ public final class MetricsCollectorsImpl implements MetricsCollectors {
                 Objects.requireNonNull(metricsCollectorType, "meter class"));
     }
 
+    @Override
+    public <T> Batch<T> batch(Object metricSource, Class<T> metricsCollectorType) {
+        return batch(
+                Objects.requireNonNull(metricSource, "source").getClass(),
+                Objects.requireNonNull(metricsCollectorType, "meter class"));
+    }
+
+    @Override
+    public <T> Batch<T> batch(Class<?> metricSourceType, Class<T> metricsCollectorType) {
+        return threadBatches.get().batch(
+                Objects.requireNonNull(metricSourceType, "source type"),
+                Objects.requireNonNull(metricsCollectorType, "meter class"),
+                this).opened();
+    }
+
     @Override
     public MetricsCollectors withNameStrategy(MetricNameStrategy strategy) {
-        return new MetricsCollectorsImpl(metricRegistry, strategy, registeredInJmx);
+        return new MetricsCollectorsImpl(metricRegistry, strategy, registeredInJmx, recording, selfMetrics);
     }
 
     @Override
@@ -74,34 +123,154 @@ public final class MetricsCollectorsImpl implements MetricsCollectors {
             return this;
         }
         JmxReporter.forRegistry(metricRegistry).registerWith(ManagementFactory.getPlatformMBeanServer()).build().start();
-        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, true);
+        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, true, recording, selfMetrics);
+    }
+
+    @Override
+    public MetricsCollectors withBufferedRecording(Duration flushInterval) {
+        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, registeredInJmx,
+                recording.withBuffering(Objects.requireNonNull(flushInterval, "flush interval")),
+                selfMetrics);
+    }
+
+    @Override
+    public MetricsCollectors withHdrHistograms(int precision) {
+        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, registeredInJmx,
+                recording.withHdrPrecision(precision), selfMetrics);
+    }
+
+    @Override
+    public MetricsCollectors withAdaptiveSampling(int samplesPerSecond) {
+        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, registeredInJmx,
+                recording.withAdaptiveSampling(samplesPerSecond), selfMetrics);
+    }
+
+    @Override
+    public MetricsCollectors withSlidingWindows(Duration window) {
+        long seconds = Objects.requireNonNull(window, "window").getSeconds();
+        if (seconds > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Window too long: " + window);
+        }
+        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, registeredInJmx,
+                recording.withSlidingWindows((int) seconds), selfMetrics);
+    }
+
+    @Override
+    public MetricsCollectors withIdleEviction(Duration idleTime, int maxMetrics) {
+        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, registeredInJmx,
+                recording.withIdleEviction(new IdleEviction(metricRegistry,
+                        Objects.requireNonNull(idleTime, "idleTime"), maxMetrics)),
+                selfMetrics);
+    }
+
+    @Override
+    public MetricsCollectors withMetricStore(MetricStore store) {
+        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, registeredInJmx,
+                recording.withMetricStore(Objects.requireNonNull(store, "store")), selfMetrics);
+    }
+
+    @Override
+    public MetricsCollectors withSharedMemory(Path file, int capacity) {
+        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, registeredInJmx,
+                recording.withSharedCounters(new SharedCounters(Objects.requireNonNull(file, "file"), capacity)),
+                selfMetrics);
+    }
+
+    @Override
+    public MetricsCollectors withAsyncRecording(int capacity, Backpressure backpressure) {
+        return new MetricsCollectorsImpl(metricRegistry, metricNameStrategy, registeredInJmx,
+                recording.withAsync(new AsyncRecording(metricRegistry, capacity,
+                        Objects.requireNonNull(backpressure, "backpressure"))),
+                selfMetrics);
+    }
+
+    @Override
+    public PrometheusExporter prometheusExporter() {
+        return new PrometheusExporter(metricRegistry);
+    }
+
+    @Override
+    public StatsdEmitter statsdEmitter(InetSocketAddress target, Duration window) {
+        return new StatsdEmitter(metricRegistry, Objects.requireNonNull(target, "target"),
+                Objects.requireNonNull(window, "window"), StatsdEmitter.DEFAULT_PACKET_SIZE);
+    }
+
+    @Override
+    public MetricHistory metricHistory(Path file, int size, Duration interval) {
+        return new MetricHistory(metricRegistry, Objects.requireNonNull(file, "file"), size,
+                Objects.requireNonNull(interval, "interval"));
+    }
+
+    @Override
+    public void enableGroup(String group) {
+        MetricGroups.set(group, true);
+    }
+
+    @Override
+    public void disableGroup(String group) {
+        MetricGroups.set(group, false);
+    }
+
+    @Override
+    public boolean groupEnabled(String group) {
+        return MetricGroups.enabled(group);
+    }
+
+    @Override
+    public void flush() {
+        recording.flush();
+    }
+
+    @Override
+    public void close() {
+        recording.close();
     }
 
     MetricRegistry getMetricRegistry() {
         return metricRegistry;
     }
 
+    /**
+     * @param sourceType Class declaring the method
+     * @param method Method annotated with {@link Time}, {@link Inc} or {@link Meter}
+     * @return The method's metric
+     */
+    Metric agentMetric(Class<?> sourceType, Method method) {
+        String name = MetricRegistry.name(sourceType, ManagedBase.metricName(metricNameStrategy, method));
+        return method.isAnnotationPresent(Time.class) ? recording.timer(metricRegistry, name, method)
+                : method.isAnnotationPresent(Inc.class) ? recording.counter(metricRegistry, name, method)
+                : recording.meter(metricRegistry, name, method);
+    }
+
     private <T> T getOrCreateInstance(Class<?> metricSourceType, Class<T> metricsCollectorType) {
-        AbstractMetricsCollector metricsCollector = meters.computeIfAbsent(metricSourceType, type -> {
-            if (metricsCollectorType == null) {
-                throw new IllegalArgumentException("No metrics class registered for " + metricSourceType);
-            }
-            return newMetrics(metricSourceType, metricsCollectorType);
-        });
-        return validated(metricSourceType, metricsCollectorType, metricsCollector);
+        return metricsCollectorType.cast(
+                sourceCollectors.get(metricSourceType).collector(metricsCollectorType, this));
     }
 
     private <T> AbstractMetricsCollector newMetrics(Class<?> metricSourceType, Class<T> metricsCollectorType) {
         Class<? extends AbstractMetricsCollector> collectorClass = metricsCollectorClass(metricsCollectorType);
         Constructor<?> constructor = callableConstructor(collectorClass);
         Object instance = newCollectorInstance(constructor);
-        return managedMetricsCollector(metricSourceType, instance);
+        return managedMetricsCollector(metricSourceType, instance, recording);
+    }
+
+    /**
+     * Batched collectors hold stand-ins for their metrics, so counters and meters are never held by store id.
+     */
+    private <T> AbstractMetricsCollector newBatchMetrics(Class<?> metricSourceType, Class<T> metricsCollectorType,
+                                                         BatchBuffer buffer) {
+        Class<? extends AbstractMetricsCollector> collectorClass =
+                metricsCollectorType.isInterface() && recording.metricStore() != null
+                        ? collectorClass(metricsCollectorType, false)
+                        : metricsCollectorClass(metricsCollectorType);
+        Constructor<?> constructor = callableConstructor(collectorClass);
+        Object instance = newCollectorInstance(constructor);
+        return managedMetricsCollector(metricSourceType, instance, recording.withBatchBuffer(buffer));
     }
 
     private <T> Class<? extends AbstractMetricsCollector> metricsCollectorClass(Class<T> type) {
         if (type.isInterface()) {
-            return generatedMeterTypes.computeIfAbsent(type, intf ->
-                    MetricsBuddy.generateSubclass(Validation.vetted(intf), metricNameStrategy));
+            return collectorClasses.get(type);
         }
         if (AbstractMetricsCollector.class.isAssignableFrom(type)) {
             return type.asSubclass(AbstractMetricsCollector.class);
@@ -110,6 +279,45 @@ public final class MetricsCollectorsImpl implements MetricsCollectors {
                 ("Required interface type or subclass of " + AbstractMetricsCollector.class + ", got: " + type);
     }
 
+    private Class<? extends AbstractMetricsCollector> collectorClass(Class<?> type, boolean stored) {
+        Class<? extends AbstractMetricsCollector> precompiled = precompiledClass(type);
+        if (precompiled != null) {
+            selfMetrics.precompiled();
+            return precompiled;
+        }
+        Class<? extends AbstractMetricsCollector> generated = GeneratedClasses.get(type, stored);
+        if (generated != null) {
+            selfMetrics.reused();
+            return generated;
+        }
+        Class<?> vetted = selfMetrics.validated(() -> Validation.vetted(type));
+        return GeneratedClasses.put(type, stored, selfMetrics.generated(() ->
+                MetricsBuddy.generateSubclass(vetted, stored)));
+    }
+
+    /**
+     * @return The collector generated for the interface by the annotation processor, or null if there is none.  The
+     * processor names it after the interface, with nested names joined by underscores: {@code Outer_Inner_Metrics}.
+     */
+    private static Class<? extends AbstractMetricsCollector> precompiledClass(Class<?> type) {
+        String binaryName = type.getName();
+        int packageEnd = binaryName.lastIndexOf('.');
+        String name = binaryName.substring(0, packageEnd + 1) +
+                binaryName.substring(packageEnd + 1).replace('$', '_') + PRECOMPILED_SUFFIX;
+        Class<?> precompiled;
+        try {
+            precompiled = Class.forName(name, false, type.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+        if (AbstractMetricsCollector.class.isAssignableFrom(precompiled) && type.isAssignableFrom(precompiled)) {
+            return precompiled.asSubclass(AbstractMetricsCollector.class);
+        }
+        throw new IllegalStateException("Found " + precompiled + ", but it is not a generated collector for " + type);
+    }
+
+    private static final String PRECOMPILED_SUFFIX = "_Metrics";
+
     private Object newCollectorInstance(Constructor<?> constructor) {
         try {
             return constructor.newInstance();
@@ -134,24 +342,87 @@ public final class MetricsCollectorsImpl implements MetricsCollectors {
                         Arrays.toString(collectorClass.getDeclaredConstructors()));
     }
 
-    private AbstractMetricsCollector managedMetricsCollector(Class<?> metricSourceType, Object metricsCollector) {
+    private AbstractMetricsCollector managedMetricsCollector(Class<?> metricSourceType, Object metricsCollector,
+                                                             Recording recording) {
         AbstractMetricsCollector meters = AbstractMetricsCollector.class.cast(metricsCollector);
-        meters.manage(metricRegistry, metricSourceType);
+        meters.manage(metricRegistry, recording, metricNameStrategy, metricSourceType);
+        selfMetrics.created(meters);
         return meters;
     }
 
-    private static <T> T validated(Class<?> sourceType, Class<T> meterType, AbstractMetricsCollector metricsCollector) {
-        if (metricsCollector.getMeteredClass() != sourceType) {
-            throw new IllegalArgumentException("Metrics class " + metricsCollector.getClass() +
-                    " already registered as metering for " + metricsCollector.getMeteredClass() +
-                    ", cannot use it again for " + sourceType);
+    /**
+     * The collectors of a source type, by collector type.  Sources rarely have more than a few, so they are kept in an
+     * array of type and collector pairs, scanned by identity.  The array is replaced when a collector is added.
+     */
+    private static final class SourceCollectors {
+
+        private final Class<?> sourceType;
+
+        private volatile Object[] collectors = new Object[0];
+
+        private SourceCollectors(Class<?> sourceType) {
+            this.sourceType = sourceType;
+        }
+
+        private Object collector(Class<?> collectorType, MetricsCollectorsImpl metricsCollectors) {
+            Object[] collectors = this.collectors;
+            for (int i = 0; i < collectors.length; i += 2) {
+                if (collectors[i] == collectorType) {
+                    return collectors[i + 1];
+                }
+            }
+            return added(collectorType, metricsCollectors);
         }
-        if (meterType.isInstance(metricsCollector)) {
-            return meterType.cast(metricsCollector);
+
+        private synchronized Object added(Class<?> collectorType, MetricsCollectorsImpl metricsCollectors) {
+            Object[] collectors = this.collectors;
+            for (int i = 0; i < collectors.length; i += 2) {
+                if (collectors[i] == collectorType) {
+                    return collectors[i + 1];
+                }
+            }
+            AbstractMetricsCollector collector = metricsCollectors.newMetrics(sourceType, collectorType);
+            Object[] added = Arrays.copyOf(collectors, collectors.length + 2);
+            added[collectors.length] = collectorType;
+            added[collectors.length + 1] = collector;
+            this.collectors = added;
+            return collector;
         }
+    }
+
+    /**
+     * The batches of a thread, all recording to the thread's buffer.  Batches are kept in their collector types, by
+     * a class value of the thread, in arrays of source type and batch pairs scanned by identity.  So the thread holds
+     * its batches for reuse, but not the classes of sources and collectors, which unload with their collector type.
+     */
+    private static final class ThreadBatches {
 
-        throw new IllegalArgumentException("Metrics class for " + sourceType +
-                " already registered as " + metricsCollector.getClass() +
-                ", could not register new: " + meterType);
+        private final BatchBuffer buffer = new BatchBuffer();
+
+        private final ClassValue<Object[][]> batches = new ClassValue<Object[][]>() {
+            @Override
+            protected Object[][] computeValue(Class<?> collectorType) {
+                return new Object[][]{new Object[0]};
+            }
+        };
+
+        @SuppressWarnings("unchecked")
+        private <T> Batch<T> batch(Class<?> sourceType, Class<T> collectorType,
+                                   MetricsCollectorsImpl metricsCollectors) {
+            Object[][] holder = this.batches.get(collectorType);
+            Object[] batches = holder[0];
+            for (int i = 0; i < batches.length; i += 2) {
+                if (batches[i] == sourceType) {
+                    return (Batch<T>) batches[i + 1];
+                }
+            }
+            Batch<T> batch = new Batch<>(collectorType.cast(
+                    metricsCollectors.newBatchMetrics(sourceType, collectorType, buffer)), buffer);
+            batches = Arrays.copyOf(batches, batches.length + 2);
+            batches[batches.length - 2] = sourceType;
+            batches[batches.length - 1] = batch;
+            holder[0] = batches;
+            return batch;
+        }
     }
 }
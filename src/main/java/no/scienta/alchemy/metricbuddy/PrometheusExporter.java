@@ -0,0 +1,401 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports a registry in the Prometheus text format, optionally on a local HTTP endpoint.  The exporter listens to the
+ * registry, and encodes the names and type lines of each metric once, when the metric is added.  A scrape renders
+ * straight into a reused direct buffer, without going through the registry's maps.
+ * <p>
+ * Counters and gauges are exported as gauges, meters as counters of their marks, and histograms and timers as summaries
+ * of their snapshots.  Timer quantiles are in seconds.  Metrics which fail to give their values are counted as
+ * failures, and left out of that scrape.
+ */
+public final class PrometheusExporter implements Closeable {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String[] QUANTILES = {"0.5", "0.75", "0.95", "0.98", "0.99", "0.999"};
+
+    private static final double SECONDS_PER_NANO = 1.0D / TimeUnit.SECONDS.toNanos(1);
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final MetricRegistry registry;
+
+    private final Listener listener = new Listener();
+
+    private final byte[] chunk = new byte[8 * 1024];
+
+    private volatile Exported[] exported = new Exported[0];
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+
+    private HttpServer server;
+
+    private long failures;
+
+    public PrometheusExporter(MetricRegistry registry) {
+        this.registry = registry;
+        this.registry.addListener(listener);
+    }
+
+    /**
+     * Serve the metrics on {@code /metrics}.
+     *
+     * @param address Address to listen on, port 0 picks a free port
+     * @return This exporter
+     */
+    public synchronized PrometheusExporter start(InetSocketAddress address) {
+        if (server != null) {
+            throw new IllegalStateException("Already serving on " + server.getAddress());
+        }
+        try {
+            server = HttpServer.create(address, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to serve metrics on " + address, e);
+        }
+        server.createContext("/metrics", this::handle);
+        server.start();
+        return this;
+    }
+
+    /**
+     * @return The address metrics are served on
+     */
+    public synchronized InetSocketAddress address() {
+        if (server == null) {
+            throw new IllegalStateException("Not serving");
+        }
+        return server.getAddress();
+    }
+
+    /**
+     * Render all metrics to the stream.
+     *
+     * @param out Stream
+     * @throws IOException If the stream fails
+     */
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        copy(render(), out);
+    }
+
+    /**
+     * @return Number of times a metric failed to give its values, and was left out of a scrape
+     */
+    public synchronized long failures() {
+        return failures;
+    }
+
+    @Override
+    public synchronized void close() {
+        registry.removeListener(listener);
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            synchronized (this) {
+                ByteBuffer rendered = render();
+                exchange.sendResponseHeaders(200, rendered.remaining());
+                copy(rendered, exchange.getResponseBody());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void copy(ByteBuffer rendered, OutputStream out) throws IOException {
+        while (rendered.hasRemaining()) {
+            int length = Math.min(chunk.length, rendered.remaining());
+            rendered.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    /**
+     * @return The buffer, flipped for reading.  Grows and starts over if it fills up.
+     */
+    private ByteBuffer render() {
+        while (true) {
+            buffer.clear();
+            try {
+                for (Exported metric : exported) {
+                    int position = buffer.position();
+                    try {
+                        metric.render(buffer);
+                    } catch (BufferOverflowException e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        buffer.position(position);
+                        failures++;
+                    }
+                }
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    private synchronized void add(String name, Metric metric) {
+        Exported[] current = this.exported;
+        Exported[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = new Exported(name, metric);
+        this.exported = added;
+    }
+
+    private synchronized void remove(String name) {
+        this.exported = Arrays.stream(exported)
+                .filter(metric -> !metric.name.equals(name))
+                .toArray(Exported[]::new);
+    }
+
+    /**
+     * @param name Registry name
+     * @return Prometheus metric name
+     */
+    static String sanitized(String name) {
+        StringBuilder sanitized = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':' ||
+                    i > 0 && c >= '0' && c <= '9';
+            sanitized.append(valid ? c : '_');
+        }
+        return sanitized.toString();
+    }
+
+    /**
+     * A metric, with its lines up to the values encoded.
+     */
+    private static final class Exported {
+
+        private final String name;
+
+        private final Metric metric;
+
+        private final byte[] type;
+
+        private final byte[][] lines;
+
+        private Exported(String name, Metric metric) {
+            String sanitized = sanitized(name);
+            this.name = name;
+            this.metric = metric;
+            if (metric instanceof Sampling) {
+                this.type = ascii("# TYPE " + sanitized + " summary\n");
+                this.lines = new byte[QUANTILES.length + 1][];
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    lines[i] = ascii(sanitized + "{quantile=\"" + QUANTILES[i] + "\"} ");
+                }
+                lines[QUANTILES.length] = ascii(sanitized + "_count ");
+            } else if (metric instanceof Meter) {
+                this.type = ascii("# TYPE " + sanitized + "_total counter\n");
+                this.lines = new byte[][]{ascii(sanitized + "_total ")};
+            } else {
+                this.type = ascii("# TYPE " + sanitized + " gauge\n");
+                this.lines = new byte[][]{ascii(sanitized + " ")};
+            }
+        }
+
+        private void render(ByteBuffer buffer) {
+            if (metric instanceof Counter) {
+                buffer.put(type).put(lines[0]);
+                putLong(buffer, ((Counter) metric).getCount());
+                buffer.put((byte) '\n');
+            } else if (metric instanceof Meter) {
+                buffer.put(type).put(lines[0]);
+                putLong(buffer, ((Meter) metric).getCount());
+                buffer.put((byte) '\n');
+            } else if (metric instanceof Sampling) {
+                renderSummary(buffer);
+            } else if (metric instanceof Gauge<?>) {
+                Object value = ((Gauge<?>) metric).getValue();
+                if (value instanceof Number) {
+                    buffer.put(type).put(lines[0]);
+                    putDouble(buffer, ((Number) value).doubleValue());
+                    buffer.put((byte) '\n');
+                }
+            }
+        }
+
+        private void renderSummary(ByteBuffer buffer) {
+            Snapshot snapshot = ((Sampling) metric).getSnapshot();
+            double scale = metric instanceof Timer ? SECONDS_PER_NANO : 1.0D;
+            buffer.put(type);
+            putQuantile(buffer, 0, snapshot.getMedian() * scale);
+            putQuantile(buffer, 1, snapshot.get75thPercentile() * scale);
+            putQuantile(buffer, 2, snapshot.get95thPercentile() * scale);
+            putQuantile(buffer, 3, snapshot.get98thPercentile() * scale);
+            putQuantile(buffer, 4, snapshot.get99thPercentile() * scale);
+            putQuantile(buffer, 5, snapshot.get999thPercentile() * scale);
+            buffer.put(lines[QUANTILES.length]);
+            putLong(buffer, ((Counting) metric).getCount());
+            buffer.put((byte) '\n');
+        }
+
+        private void putQuantile(ByteBuffer buffer, int index, double value) {
+            buffer.put(lines[index]);
+            putDouble(buffer, value);
+            buffer.put((byte) '\n');
+        }
+    }
+
+    private static final byte[] MIN_LONG = ascii(Long.toString(Long.MIN_VALUE));
+
+    private static final byte[] NAN = ascii("NaN");
+
+    private static final byte[] POSITIVE_INFINITY = ascii("+Inf");
+
+    private static final byte[] NEGATIVE_INFINITY = ascii("-Inf");
+
+    private static final long FRACTION = 1_000_000_000L;
+
+    static void putLong(ByteBuffer buffer, long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.put(MIN_LONG);
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            putDigits(buffer, -value, digits(-value));
+        } else {
+            putDigits(buffer, value, digits(value));
+        }
+    }
+
+    /**
+     * Writes the value with up to nine decimals.  Values too large for that fall back to {@link Double#toString()}.
+     */
+    static void putDouble(ByteBuffer buffer, double value) {
+        if (Double.isNaN(value)) {
+            buffer.put(NAN);
+        } else if (Double.isInfinite(value)) {
+            buffer.put(value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY);
+        } else if (Math.abs(value) >= Long.MAX_VALUE / FRACTION) {
+            buffer.put(ascii(Double.toString(value)));
+        } else {
+            long scaled = Math.round(Math.abs(value) * FRACTION);
+            if (value < 0 && scaled != 0) {
+                buffer.put((byte) '-');
+            }
+            putDigits(buffer, scaled / FRACTION, digits(scaled / FRACTION));
+            long fraction = scaled % FRACTION;
+            if (fraction != 0) {
+                int decimals = 9;
+                while (fraction % 10 == 0) {
+                    fraction /= 10;
+                    decimals--;
+                }
+                buffer.put((byte) '.');
+                putDigits(buffer, fraction, decimals);
+            }
+        }
+    }
+
+    private static void putDigits(ByteBuffer buffer, long value, int digits) {
+        int position = buffer.position();
+        if (buffer.remaining() < digits) {
+            throw new BufferOverflowException();
+        }
+        long remaining = value;
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer.put(position + i, (byte) ('0' + remaining % 10));
+            remaining /= 10;
+        }
+        buffer.position(position + digits);
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private final class Listener implements MetricRegistryListener {
+
+        @Override
+        public void onGaugeAdded(String name, Gauge<?> gauge) {
+            add(name, gauge);
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            add(name, counter);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            add(name, histogram);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            add(name, meter);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            add(name, timer);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            remove(name);
+        }
+    }
+}
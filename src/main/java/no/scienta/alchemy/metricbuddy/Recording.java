@@ -0,0 +1,295 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+
+/**
+ * Decides how collectors' metrics are created in the registry.  By default, collectors record straight into plain
+ * Dropwizard metrics.  The collector method declaring a metric is passed along when known, so per-method options can
+ * be applied.
+ */
+final class Recording {
+
+    static final Recording DIRECT = new Recording(null, 0, null, null, 0, 0, null, null, null);
+
+    private final BufferedMeters bufferedMeters;
+
+    private final int precision;
+
+    private final SharedCounters sharedCounters;
+
+    private final AsyncRecording asyncRecording;
+
+    private final int samplesPerSecond;
+
+    private final int windowSeconds;
+
+    private final MetricStore metricStore;
+
+    private final IdleEviction idleEviction;
+
+    private final BatchBuffer batchBuffer;
+
+    private Recording(
+            BufferedMeters bufferedMeters,
+            int precision,
+            SharedCounters sharedCounters,
+            AsyncRecording asyncRecording,
+            int samplesPerSecond,
+            int windowSeconds,
+            MetricStore metricStore,
+            IdleEviction idleEviction,
+            BatchBuffer batchBuffer) {
+        this.bufferedMeters = bufferedMeters;
+        this.precision = precision;
+        this.sharedCounters = sharedCounters;
+        this.asyncRecording = asyncRecording;
+        this.samplesPerSecond = samplesPerSecond;
+        this.windowSeconds = windowSeconds;
+        this.metricStore = metricStore;
+        this.idleEviction = idleEviction;
+        this.batchBuffer = batchBuffer;
+    }
+
+    /**
+     * @param flushInterval Flush interval
+     * @return Recording with {@link BufferedMeters buffered meters}
+     */
+    Recording withBuffering(Duration flushInterval) {
+        return new Recording(new BufferedMeters(flushInterval), precision, sharedCounters, asyncRecording, samplesPerSecond,
+                windowSeconds, metricStore, idleEviction, batchBuffer);
+    }
+
+    /**
+     * @param precision Significant digits
+     * @return Recording with {@link HdrReservoir HdrHistogram reservoirs} for histograms and timers, unless their
+     * methods say otherwise
+     */
+    Recording withHdrPrecision(int precision) {
+        return new Recording(bufferedMeters, HdrReservoir.validPrecision(precision), sharedCounters, asyncRecording,
+                samplesPerSecond, windowSeconds, metricStore, idleEviction, batchBuffer);
+    }
+
+    /**
+     * @param sharedCounters Region to keep counts in
+     * @return Recording with counters and meter counts in {@link SharedCounters shared memory}.  Meters are not
+     * buffered.
+     */
+    Recording withSharedCounters(SharedCounters sharedCounters) {
+        return new Recording(bufferedMeters, precision, sharedCounters, asyncRecording, samplesPerSecond,
+                windowSeconds, metricStore, idleEviction, batchBuffer);
+    }
+
+    /**
+     * @param asyncRecording Event pipeline
+     * @return Recording which publishes updates to the {@link AsyncRecording pipeline}, except for counts in shared
+     * memory and sampled metrics.  Meters are not buffered.
+     */
+    Recording withAsync(AsyncRecording asyncRecording) {
+        return new Recording(bufferedMeters, precision, sharedCounters, asyncRecording, samplesPerSecond,
+                windowSeconds, metricStore, idleEviction, batchBuffer);
+    }
+
+    /**
+     * @param samplesPerSecond Target samples per second
+     * @return Recording which {@link Sampler#adaptive(int) samples} histograms and timers adaptively, unless their
+     * methods say otherwise
+     */
+    Recording withAdaptiveSampling(int samplesPerSecond) {
+        return new Recording(bufferedMeters, precision, sharedCounters, asyncRecording,
+                Validation.validSampleRate(samplesPerSecond), windowSeconds, metricStore, idleEviction, batchBuffer);
+    }
+
+    /**
+     * @param windowSeconds Window, in seconds
+     * @return Recording with {@link SlidingWindowReservoir sliding window reservoirs} for histograms and timers,
+     * unless their methods say otherwise
+     */
+    Recording withSlidingWindows(int windowSeconds) {
+        return new Recording(bufferedMeters, precision, sharedCounters, asyncRecording, samplesPerSecond,
+                SlidingWindowReservoir.validWindow(windowSeconds), metricStore, idleEviction, batchBuffer);
+    }
+
+    /**
+     * @param metricStore Store
+     * @return Recording with counters and meters in the {@link MetricStore store}, instead of the registry
+     */
+    Recording withMetricStore(MetricStore metricStore) {
+        return new Recording(bufferedMeters, precision, sharedCounters, asyncRecording, samplesPerSecond,
+                windowSeconds, metricStore, idleEviction, batchBuffer);
+    }
+
+    /**
+     * @param idleEviction Eviction
+     * @return Recording whose metrics are {@link IdleEviction evicted} from the registry when idle
+     */
+    Recording withIdleEviction(IdleEviction idleEviction) {
+        return new Recording(bufferedMeters, precision, sharedCounters, asyncRecording, samplesPerSecond,
+                windowSeconds, metricStore, idleEviction, batchBuffer);
+    }
+
+    /**
+     * @param batchBuffer Buffer of a thread's batches
+     * @return Recording which resolves metrics to stand-ins, which record to the {@link BatchBuffer buffer}
+     */
+    Recording withBatchBuffer(BatchBuffer batchBuffer) {
+        return new Recording(bufferedMeters, precision, sharedCounters, asyncRecording, samplesPerSecond,
+                windowSeconds, metricStore, idleEviction, batchBuffer);
+    }
+
+    /**
+     * @return The store of counters and meters, or null if they are in the registry
+     */
+    MetricStore metricStore() {
+        return metricStore;
+    }
+
+    Counter counter(MetricRegistry registry, String name, Method method) {
+        if (metricStore != null) {
+            return batched(metricStore.counter(name));
+        }
+        revive(name);
+        return batched(tracked(name, sharedCounters != null
+                ? registry.counter(name, () -> sharedCounters.newCounter(name))
+                : asyncRecording != null ? registry.counter(name, asyncRecording::newCounter)
+                : registry.counter(name)));
+    }
+
+    Meter meter(MetricRegistry registry, String name, Method method) {
+        if (metricStore != null) {
+            return batched(metricStore.meter(name));
+        }
+        revive(name);
+        return batched(tracked(name, sharedCounters != null
+                ? registry.meter(name, () -> sharedCounters.newMeter(name))
+                : asyncRecording != null ? registry.meter(name, asyncRecording::newMeter)
+                : bufferedMeters != null ? registry.meter(name, bufferedMeters::newMeter)
+                : registry.meter(name)));
+    }
+
+    Histogram histogram(MetricRegistry registry, String name, Method method) {
+        Histo histo = method == null ? null : method.getAnnotation(Histo.class);
+        int precision = histo == null || histo.precision() == 0 ? this.precision : histo.precision();
+        long highest = histo == null ? 0L : histo.highest();
+        int sampleEvery = histo == null ? 1 : histo.sampleEvery();
+        int window = histo == null ? windowSeconds : window(histo.windowSeconds(), histo.precision());
+        revive(name);
+        return batched(tracked(name, sampled(sampleEvery) ? registry.histogram(name, () ->
+                new SampledHistogram(reservoir(precision, highest, window), sampler(sampleEvery)))
+                : asyncRecording != null ? registry.histogram(name, () ->
+                asyncRecording.newHistogram(reservoir(precision, highest, window)))
+                : precision != 0 || window != 0 ? registry.histogram(name, () ->
+                new Histogram(reservoir(precision, highest, window)))
+                : registry.histogram(name)));
+    }
+
+    Timer timer(MetricRegistry registry, String name, Method method) {
+        Time time = method == null ? null : method.getAnnotation(Time.class);
+        int precision = time == null || time.precision() == 0 ? this.precision : time.precision();
+        long highest = time == null ? 0L : time.highest();
+        int sampleEvery = time == null ? 1 : time.sampleEvery();
+        int window = time == null ? windowSeconds : window(time.windowSeconds(), time.precision());
+        revive(name);
+        return batched(tracked(name, sampled(sampleEvery) ? registry.timer(name, () ->
+                new SampledTimer(reservoir(precision, highest, window), sampler(sampleEvery)))
+                : asyncRecording != null ? registry.timer(name, () ->
+                asyncRecording.newTimer(reservoir(precision, highest, window)))
+                : precision != 0 || window != 0 ? registry.timer(name, () ->
+                new Timer(reservoir(precision, highest, window)))
+                : registry.timer(name)));
+    }
+
+    SuppliedGauge gauge(MetricRegistry registry, String name, Method method) {
+        Gauge gauge = method == null ? null : method.getAnnotation(Gauge.class);
+        long refreshMillis = gauge == null ? 0L : gauge.refreshMillis();
+        com.codahale.metrics.Gauge<?> registered =
+                registry.gauge(name, () -> new SuppliedGauge(refreshMillis, registry, name));
+        if (!(registered instanceof SuppliedGauge)) {
+            throw new IllegalArgumentException("Found another gauge named " + name + ": " + registered);
+        }
+        return (SuppliedGauge) registered;
+    }
+
+    /**
+     * Make all recorded values visible in the registry.
+     */
+    void flush() {
+        if (asyncRecording != null) {
+            asyncRecording.flush();
+        }
+        if (bufferedMeters != null) {
+            bufferedMeters.flush();
+        }
+    }
+
+    /**
+     * Release the resources of the recording.
+     */
+    void close() {
+        if (asyncRecording != null) {
+            asyncRecording.close();
+        }
+        if (sharedCounters != null) {
+            sharedCounters.close();
+        }
+        if (idleEviction != null) {
+            idleEviction.close();
+        }
+    }
+
+    private void revive(String name) {
+        if (idleEviction != null) {
+            idleEviction.revive(name);
+        }
+    }
+
+    private <M extends Metric> M tracked(String name, M metric) {
+        return idleEviction == null ? metric : idleEviction.tracked(name, metric);
+    }
+
+    private Counter batched(Counter counter) {
+        return batchBuffer == null ? counter : batchBuffer.counter(counter);
+    }
+
+    private Meter batched(Meter meter) {
+        return batchBuffer == null ? meter : batchBuffer.meter(meter);
+    }
+
+    private Histogram batched(Histogram histogram) {
+        return batchBuffer == null ? histogram : batchBuffer.histogram(histogram);
+    }
+
+    private Timer batched(Timer timer) {
+        return batchBuffer == null ? timer : batchBuffer.timer(timer);
+    }
+
+    private boolean sampled(int sampleEvery) {
+        return sampleEvery > 1 || samplesPerSecond > 0;
+    }
+
+    private Sampler sampler(int sampleEvery) {
+        return sampleEvery > 1 ? Sampler.every(sampleEvery) : Sampler.adaptive(samplesPerSecond);
+    }
+
+    /**
+     * Options of the method take precedence over those of the recording.
+     */
+    private int window(int methodWindow, int methodPrecision) {
+        return methodWindow != 0 ? methodWindow : methodPrecision != 0 ? 0 : windowSeconds;
+    }
+
+    private static Reservoir reservoir(int precision, long highest, int windowSeconds) {
+        return windowSeconds != 0 ? new SlidingWindowReservoir(windowSeconds, highest)
+                : precision == 0 ? new ExponentiallyDecayingReservoir()
+                : new HdrReservoir(precision, highest);
+    }
+}
@@ -0,0 +1,34 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Reservoir;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram which only updates its reservoir with sampled values, but counts all of them.
+ */
+final class SampledHistogram extends Histogram {
+
+    private final Sampler sampler;
+
+    private final LongAdder count = new LongAdder();
+
+    SampledHistogram(Reservoir reservoir, Sampler sampler) {
+        super(reservoir);
+        this.sampler = sampler;
+    }
+
+    @Override
+    public void update(long value) {
+        count.increment();
+        if (sampler.sample()) {
+            super.update(value);
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
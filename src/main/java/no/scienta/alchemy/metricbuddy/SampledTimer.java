@@ -0,0 +1,73 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timer which only times sampled calls, but counts all of them.  Count and rates come from a
+ * {@link BufferedMeter buffered meter} marked on every call, and flushed once a second by the shared flusher, so
+ * calls don't read the clock or take a lock unless they are sampled.  The snapshot only holds the sampled durations.
+ * <p>
+ * Extended by the {@link BatchBuffer batch} stand-ins of timers, which sample as their timers do.
+ */
+class SampledTimer extends Timer {
+
+    private final Sampler sampler;
+
+    private static final BufferedMeters CALLS = new BufferedMeters(Duration.ofSeconds(1));
+
+    private final Meter calls = CALLS.newMeter();
+
+    /**
+     * Returned for calls which are not sampled, counts the call when done.
+     */
+    final MetricsCollectors.Timer skipped = this::skip;
+
+    SampledTimer(Reservoir reservoir, Sampler sampler) {
+        super(reservoir);
+        this.sampler = sampler;
+    }
+
+    boolean sample() {
+        return sampler.sample();
+    }
+
+    void skip() {
+        calls.mark();
+    }
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        calls.mark();
+        super.update(duration, unit);
+    }
+
+    @Override
+    public long getCount() {
+        return calls.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return calls.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return calls.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        return calls.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return calls.getOneMinuteRate();
+    }
+}
@@ -0,0 +1,82 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which calls to a sampled metric are recorded.  Every nth call is sampled, where n is either fixed, or
+ * adapted once a second to keep the samples near a target rate.  Each thread counts down its own calls, so calling
+ * threads don't write to shared memory, except for the calls an adaptive sampler samples.
+ */
+final class Sampler {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int samplesPerSecond;
+
+    private final ThreadLocal<int[]> countdown = ThreadLocal.withInitial(() -> new int[1]);
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    private final LongAdder windowCalls = new LongAdder();
+
+    private volatile int every;
+
+    private Sampler(int every, int samplesPerSecond) {
+        this.every = every;
+        this.samplesPerSecond = samplesPerSecond;
+    }
+
+    /**
+     * @param every Sample every nth call
+     * @return Fixed sampler
+     */
+    static Sampler every(int every) {
+        if (every < 1) {
+            throw new IllegalArgumentException("Expected positive sample interval: " + every);
+        }
+        return new Sampler(every, 0);
+    }
+
+    /**
+     * @param samplesPerSecond Target samples per second
+     * @return Sampler which samples all calls until the call rate exceeds the target
+     */
+    static Sampler adaptive(int samplesPerSecond) {
+        if (samplesPerSecond < 1) {
+            throw new IllegalArgumentException("Expected positive sample rate: " + samplesPerSecond);
+        }
+        return new Sampler(1, samplesPerSecond);
+    }
+
+    /**
+     * @return True if this call should be recorded
+     */
+    boolean sample() {
+        int[] countdown = this.countdown.get();
+        if (--countdown[0] > 0) {
+            return false;
+        }
+        int every = this.every;
+        countdown[0] = every;
+        if (samplesPerSecond > 0) {
+            adapt(every);
+        }
+        return true;
+    }
+
+    /**
+     * Count the calls of this sample, and let the thread which ends the window adapt the interval.
+     */
+    private void adapt(int every) {
+        windowCalls.add(every);
+        long start = windowStart.get();
+        long now = System.nanoTime();
+        long elapsed = now - start;
+        if (elapsed >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+            long callsPerSecond = windowCalls.sumThenReset() * WINDOW_NANOS / elapsed;
+            this.every = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, callsPerSecond / samplesPerSecond));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The library's own metrics, in the {@value #NAMESPACE} namespace of the registry: how many collector classes were
+ * generated, reused from other instances or found precompiled, the time spent validating and generating them, and
+ * the number of live collectors and registered metrics.  Shared by all {@link MetricsCollectors} derived from the
+ * same instance.  Instances sharing a registry share the metrics, and the live collectors are counted over all of them.
+ */
+final class SelfMetrics {
+
+    static final String NAMESPACE = "metricsbuddy";
+
+    private final Counter generated;
+
+    private final Counter reused;
+
+    private final Counter precompiled;
+
+    private final Timer generation;
+
+    private final Timer validation;
+
+    private final LiveCollectors live;
+
+    SelfMetrics(MetricRegistry registry) {
+        this.generated = registry.counter(MetricRegistry.name(NAMESPACE, "classes", "generated"));
+        this.reused = registry.counter(MetricRegistry.name(NAMESPACE, "classes", "reused"));
+        this.precompiled = registry.counter(MetricRegistry.name(NAMESPACE, "classes", "precompiled"));
+        this.generation = registry.timer(MetricRegistry.name(NAMESPACE, "classes", "generation"));
+        this.validation = registry.timer(MetricRegistry.name(NAMESPACE, "classes", "validation"));
+        this.live = gauge(registry, MetricRegistry.name(NAMESPACE, "collectors", "live"), LiveCollectors.class,
+                new LiveCollectors());
+        RegisteredMetrics metrics = new RegisteredMetrics();
+        if (gauge(registry, MetricRegistry.name(NAMESPACE, "metrics"), RegisteredMetrics.class, metrics) == metrics) {
+            registry.addListener(metrics);
+        }
+    }
+
+    <T> T validated(Supplier<T> validation) {
+        return timed(this.validation, validation);
+    }
+
+    <T> T generated(Supplier<T> generation) {
+        T type = timed(this.generation, generation);
+        generated.inc();
+        return type;
+    }
+
+    void reused() {
+        reused.inc();
+    }
+
+    void precompiled() {
+        precompiled.inc();
+    }
+
+    void created(AbstractMetricsCollector collector) {
+        live.collectors.put(collector, Boolean.TRUE);
+    }
+
+    private static <T> T timed(Timer timer, Supplier<T> supplier) {
+        long startTime = System.nanoTime();
+        try {
+            return supplier.get();
+        } finally {
+            timer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return The gauge already in the registry, or the new one
+     */
+    private static <G extends Gauge<Integer>> G gauge(MetricRegistry registry, String name, Class<G> type, G gauge) {
+        Metric registered;
+        try {
+            registered = registry.register(name, gauge);
+        } catch (IllegalArgumentException e) {
+            registered = registry.getMetrics().get(name);
+        }
+        if (!type.isInstance(registered)) {
+            throw new IllegalArgumentException("Registry has another gauge named " + name + ": " + registered);
+        }
+        return type.cast(registered);
+    }
+
+    private static final class LiveCollectors implements Gauge<Integer> {
+
+        private final Map<AbstractMetricsCollector, Boolean> collectors =
+                Collections.synchronizedMap(new WeakHashMap<>());
+
+        @Override
+        public Integer getValue() {
+            return collectors.size();
+        }
+    }
+
+    /**
+     * Counts the metrics as the registry adds and removes them, so reads don't copy the registry.
+     */
+    private static final class RegisteredMetrics implements Gauge<Integer>, MetricRegistryListener {
+
+        private final AtomicInteger metrics = new AtomicInteger();
+
+        @Override
+        public Integer getValue() {
+            return metrics.get();
+        }
+
+        @Override
+        public void onGaugeAdded(String name, Gauge<?> gauge) {
+            metrics.incrementAndGet();
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            metrics.decrementAndGet();
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            metrics.incrementAndGet();
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            metrics.decrementAndGet();
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            metrics.incrementAndGet();
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            metrics.decrementAndGet();
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            metrics.incrementAndGet();
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            metrics.decrementAndGet();
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            metrics.incrementAndGet();
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            metrics.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * A counter kept in a {@link SharedCounters shared memory} slot.  Once the region is closed, the counter goes on
+ * counting in the process, from the value it had in the region.
+ */
+final class SharedCounter extends Counter {
+
+    private final SharedCounters counters;
+
+    private final int slot;
+
+    SharedCounter(SharedCounters counters, int slot) {
+        this.counters = counters;
+        this.slot = slot;
+    }
+
+    @Override
+    public void inc(long n) {
+        if (!counters.add(slot, n)) {
+            super.inc(n);
+        }
+    }
+
+    @Override
+    public void dec(long n) {
+        if (!counters.add(slot, -n)) {
+            super.dec(n);
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return counters.value(slot) + super.getCount();
+    }
+}
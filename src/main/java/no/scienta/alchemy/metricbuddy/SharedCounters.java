@@ -0,0 +1,155 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A region of counter slots in a memory-mapped file, which other processes can read with a
+ * {@link SharedCountersReader}.  The file starts with a header, followed by fixed-size entries of a value and a name.
+ * All numbers are in native byte order:
+ * <pre>
+ * header: magic int, version int, entry size int, capacity int, used int, reserved to {@value #HEADER_SIZE} bytes
+ * entry:  value long, name length short, name bytes in UTF-8, padded to {@value #ENTRY_SIZE} bytes
+ * </pre>
+ * Entries are written in full before the used count is increased past them, so readers only see complete entries.
+ * Values are updated atomically, without locks.
+ * <p>
+ * Slot metrics hold on to the region, so the mapping stays valid while they are in use.  Closing the region stops
+ * updates to the file, and the slot metrics keep counting in the process from their last shared value.  Updates
+ * racing with the close may be lost.
+ */
+final class SharedCounters {
+
+    static final int MAGIC = 0x4D425348;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int ENTRY_SIZE = 128;
+
+    static final int USED_OFFSET = 16;
+
+    static final int NAME_OFFSET = 10;
+
+    static final int MAX_NAME_LENGTH = ENTRY_SIZE - NAME_OFFSET;
+
+    private final Path file;
+
+    private final MappedByteBuffer buffer;
+
+    private final long address;
+
+    private final int capacity;
+
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    private volatile long[] closedValues;
+
+    SharedCounters(Path file, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Expected positive capacity: " + capacity);
+        }
+        this.file = file;
+        this.capacity = capacity;
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map shared counters to " + file, e);
+        }
+        this.buffer.order(ByteOrder.nativeOrder());
+        this.address = DirectMemory.address(buffer);
+        this.buffer.putInt(0, MAGIC)
+                .putInt(4, VERSION)
+                .putInt(8, ENTRY_SIZE)
+                .putInt(12, capacity);
+        DirectMemory.putIntOrdered(address + USED_OFFSET, 0);
+    }
+
+    synchronized Counter newCounter(String name) {
+        return closedValues != null ? new Counter() : new SharedCounter(this, slot(name));
+    }
+
+    synchronized Meter newMeter(String name) {
+        return closedValues != null ? new Meter() : new SharedMeter(this, slot(name));
+    }
+
+    /**
+     * @param slot Slot of a value
+     * @param n Amount to add
+     * @return False if the region is closed, and the value was not updated
+     */
+    boolean add(int slot, long n) {
+        if (closedValues != null) {
+            return false;
+        }
+        DirectMemory.getAndAddLong(valueAddress(slot), n);
+        return true;
+    }
+
+    /**
+     * @param slot Slot of a value
+     * @return Current value, or the value at close if the region is closed
+     */
+    long value(int slot) {
+        long[] closed = closedValues;
+        return closed != null ? closed[slot] : DirectMemory.getLongVolatile(valueAddress(slot));
+    }
+
+    /**
+     * Stop sharing values, and write the region to the file.  The mapping is released when the region and its slot
+     * metrics are no longer reachable.
+     */
+    synchronized void close() {
+        if (closedValues == null) {
+            long[] values = new long[slots.size()];
+            for (int slot = 0; slot < values.length; slot++) {
+                values[slot] = DirectMemory.getLongVolatile(valueAddress(slot));
+            }
+            closedValues = values;
+            buffer.force();
+        }
+    }
+
+    private long valueAddress(int slot) {
+        return address + HEADER_SIZE + (long) slot * ENTRY_SIZE;
+    }
+
+    /**
+     * @return Slot of the named value, in a new entry unless the name is already in the region
+     */
+    private int slot(String name) {
+        Integer existing = slots.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException
+                    ("Metric name longer than " + MAX_NAME_LENGTH + " bytes, can't be shared: " + name);
+        }
+        int used = slots.size();
+        if (used == capacity) {
+            throw new IllegalStateException("All " + capacity + " shared counters in " + file + " are taken: " + name);
+        }
+        int entry = HEADER_SIZE + used * ENTRY_SIZE;
+        buffer.putLong(entry, 0L).putShort(entry + 8, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(entry + NAME_OFFSET + i, bytes[i]);
+        }
+        DirectMemory.putIntOrdered(address + USED_OFFSET, used + 1);
+        slots.put(name, used);
+        return used;
+    }
+}
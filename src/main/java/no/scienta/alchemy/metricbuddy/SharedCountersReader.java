@@ -0,0 +1,102 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the counters which a process {@link MetricsCollectors#withSharedMemory(Path, int) shares} in a memory-mapped
+ * file.  Reading does not involve the writing process.  The reader may attach before or after counters are added,
+ * and sees new ones as they appear.
+ */
+public final class SharedCountersReader {
+
+    private final Path file;
+
+    private final MappedByteBuffer buffer;
+
+    private final long address;
+
+    private final int capacity;
+
+    private final List<String> names = new ArrayList<>();
+
+    private SharedCountersReader(Path file) {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < SharedCounters.HEADER_SIZE) {
+                throw new IllegalArgumentException("Not a shared counters file: " + file);
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map shared counters in " + file, e);
+        }
+        this.buffer.order(ByteOrder.nativeOrder());
+        this.address = DirectMemory.address(buffer);
+        if (buffer.getInt(0) != SharedCounters.MAGIC) {
+            throw new IllegalArgumentException("Not a shared counters file: " + file);
+        }
+        if (buffer.getInt(4) != SharedCounters.VERSION || buffer.getInt(8) != SharedCounters.ENTRY_SIZE) {
+            throw new IllegalArgumentException("Unsupported shared counters version " + buffer.getInt(4) + ": " + file);
+        }
+        this.capacity = buffer.getInt(12);
+        if (buffer.capacity() < SharedCounters.HEADER_SIZE + (long) capacity * SharedCounters.ENTRY_SIZE) {
+            throw new IllegalArgumentException("Truncated shared counters file: " + file);
+        }
+    }
+
+    /**
+     * @param file File shared by another process
+     * @return Reader attached to the file
+     */
+    public static SharedCountersReader attach(Path file) {
+        return new SharedCountersReader(file);
+    }
+
+    /**
+     * @return Current counter values by name, in the order they were added
+     */
+    public synchronized Map<String, Long> values() {
+        int used = Math.min(capacity, DirectMemory.getIntVolatile(address + SharedCounters.USED_OFFSET));
+        for (int i = names.size(); i < used; i++) {
+            names.add(name(SharedCounters.HEADER_SIZE + i * SharedCounters.ENTRY_SIZE));
+        }
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < used; i++) {
+            long entry = address + SharedCounters.HEADER_SIZE + (long) i * SharedCounters.ENTRY_SIZE;
+            values.put(names.get(i), DirectMemory.getLongVolatile(entry));
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @param name Counter name
+     * @return Current value of the counter, or null if it is not in the file (yet)
+     */
+    public Long value(String name) {
+        return values().get(name);
+    }
+
+    private String name(int entry) {
+        int length = buffer.getShort(entry + 8);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(entry + SharedCounters.NAME_OFFSET + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + file + "]";
+    }
+}
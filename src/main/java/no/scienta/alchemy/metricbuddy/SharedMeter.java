@@ -0,0 +1,25 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Meter;
+
+/**
+ * A meter which also adds its marks to a {@link SharedCounters shared memory} slot, while the region is open.  Rates
+ * are still computed in the meter, other processes only see the count.
+ */
+final class SharedMeter extends Meter {
+
+    private final SharedCounters counters;
+
+    private final int slot;
+
+    SharedMeter(SharedCounters counters, int slot) {
+        this.counters = counters;
+        this.slot = slot;
+    }
+
+    @Override
+    public void mark(long n) {
+        super.mark(n);
+        counters.add(slot, n);
+    }
+}
@@ -0,0 +1,278 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A reservoir of the values recorded in the last seconds.  Values are counted in a ring of one-second slots, each
+ * slot a fixed array of log-linear bins, so memory is bounded by the window and not by the rate.  Bins have 8
+ * sub-buckets per power of two, so values are reported within about 6% of the recorded value, and exactly below 8.
+ * Bins go up to the highest trackable value, which larger values are recorded as.  Without one they cover all
+ * longs, 488 bins per slot.
+ * <p>
+ * The ring is striped by thread, so concurrent updates mostly hit different arrays.  Stripes are allocated by the
+ * first update which hits them, so a metric updated by few threads only holds a few.  An update computes its slot and
+ * bin and adds atomically, and the first update of a second claims and clears its slot.  Updates racing with a
+ * claim are dropped.  Snapshots merge the stripes' current slots.
+ */
+final class SlidingWindowReservoir implements Reservoir {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static final long CLAIMED = Long.MIN_VALUE + 1L;
+
+    private static final int MAX_STRIPES = 8;
+
+    private final int slots;
+
+    private final long highest;
+
+    private final int bins;
+
+    /**
+     * Bins, then the sum of the values.
+     */
+    private final int slotSize;
+
+    private final int stripeMask;
+
+    private final AtomicReferenceArray<AtomicLongArray> counts;
+
+    /**
+     * The second each stripe's slot holds, by stripe and slot.
+     */
+    private final AtomicLongArray seconds;
+
+    /**
+     * @param windowSeconds Window, in seconds
+     * @param highest Highest trackable value, values above it are recorded as it.  0 to track all values
+     */
+    SlidingWindowReservoir(int windowSeconds, long highest) {
+        this(windowSeconds, highest, Runtime.getRuntime().availableProcessors());
+    }
+
+    SlidingWindowReservoir(int windowSeconds, long highest, int stripes) {
+        this.slots = validWindow(windowSeconds) + 1;
+        this.highest = highest > 0L ? highest : Long.MAX_VALUE;
+        this.bins = bin(this.highest) + 1;
+        this.slotSize = bins + 1;
+        int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(stripes, MAX_STRIPES)));
+        this.stripeMask = stripeCount - 1;
+        this.counts = new AtomicReferenceArray<>(stripeCount);
+        this.seconds = new AtomicLongArray(stripeCount * slots);
+        for (int i = 0; i < seconds.length(); i++) {
+            seconds.set(i, EMPTY);
+        }
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        long second = System.nanoTime() / NANOS_PER_SECOND;
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        int slot = (int) Math.floorMod(second, (long) slots);
+        int index = stripe * slots + slot;
+        AtomicLongArray counts = this.counts.get(stripe);
+        if (counts == null) {
+            counts = stripe(stripe);
+        }
+        long held = seconds.get(index);
+        if (held != second) {
+            if (held == CLAIMED || !seconds.compareAndSet(index, held, CLAIMED)) {
+                return;
+            }
+            for (int i = slot * slotSize, end = i + slotSize; i < end; i++) {
+                counts.lazySet(i, 0L);
+            }
+            seconds.set(index, second);
+        }
+        long recorded = value < 0L ? 0L : value > highest ? highest : value;
+        counts.getAndIncrement(slot * slotSize + bin(recorded));
+        counts.getAndAdd(slot * slotSize + bins, recorded);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        long second = System.nanoTime() / NANOS_PER_SECOND;
+        long[] bins = new long[this.bins];
+        long sum = 0L;
+        for (int stripe = 0; stripe < counts.length(); stripe++) {
+            AtomicLongArray counts = this.counts.get(stripe);
+            if (counts == null) {
+                continue;
+            }
+            for (int slot = 0; slot < slots; slot++) {
+                long held = seconds.get(stripe * slots + slot);
+                if (held != EMPTY && held != CLAIMED && second - held < slots) {
+                    int base = slot * slotSize;
+                    for (int bin = 0; bin < bins.length; bin++) {
+                        bins[bin] += counts.get(base + bin);
+                    }
+                    sum += counts.get(base + this.bins);
+                }
+            }
+        }
+        return new WindowSnapshot(bins, sum);
+    }
+
+    private AtomicLongArray stripe(int stripe) {
+        AtomicLongArray created = new AtomicLongArray(slots * slotSize);
+        return counts.compareAndSet(stripe, null, created) ? created : counts.get(stripe);
+    }
+
+    static int validWindow(int windowSeconds) {
+        if (windowSeconds < 1) {
+            throw new IllegalArgumentException("Expected a window of at least one second: " + windowSeconds);
+        }
+        return windowSeconds;
+    }
+
+    static int bin(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowest(int bin) {
+        if (bin < SUB_BUCKETS) {
+            return bin;
+        }
+        int shift = bin / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bin % SUB_BUCKETS) << shift;
+    }
+
+    static long highest(int bin) {
+        return bin < SUB_BUCKETS ? bin : lowest(bin) + ((1L << (bin / SUB_BUCKETS - 1)) - 1L);
+    }
+
+    /**
+     * Values are reported as the middle of their bin.
+     */
+    static long value(int bin) {
+        return lowest(bin) + (highest(bin) - lowest(bin)) / 2L;
+    }
+
+    /**
+     * A snapshot of merged bins.
+     */
+    private static final class WindowSnapshot extends Snapshot {
+
+        private final long[] bins;
+
+        private final long count;
+
+        private final long sum;
+
+        private WindowSnapshot(long[] bins, long sum) {
+            this.bins = bins;
+            this.count = Arrays.stream(bins).sum();
+            this.sum = sum;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0D || quantile > 1.0D || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            if (count == 0L) {
+                return 0.0D;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(quantile * count));
+            long seen = 0L;
+            for (int bin = 0; bin < bins.length; bin++) {
+                seen += bins[bin];
+                if (seen >= rank) {
+                    return value(bin);
+                }
+            }
+            return getMax();
+        }
+
+        @Override
+        public long[] getValues() {
+            long[] values = new long[size()];
+            int index = 0;
+            for (int bin = 0; bin < bins.length && index < values.length; bin++) {
+                int count = (int) Math.min(bins[bin], values.length - index);
+                Arrays.fill(values, index, index + count, value(bin));
+                index += count;
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(count, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            for (int bin = bins.length - 1; bin >= 0; bin--) {
+                if (bins[bin] > 0L) {
+                    return highest(bin);
+                }
+            }
+            return 0L;
+        }
+
+        @Override
+        public double getMean() {
+            return count == 0L ? 0.0D : (double) sum / count;
+        }
+
+        @Override
+        public long getMin() {
+            for (int bin = 0; bin < bins.length; bin++) {
+                if (bins[bin] > 0L) {
+                    return lowest(bin);
+                }
+            }
+            return 0L;
+        }
+
+        @Override
+        public double getStdDev() {
+            if (count < 2L) {
+                return 0.0D;
+            }
+            double mean = getMean();
+            double squares = 0.0D;
+            for (int bin = 0; bin < bins.length; bin++) {
+                double deviation = value(bin) - mean;
+                squares += bins[bin] * deviation * deviation;
+            }
+            return Math.sqrt(squares / (count - 1));
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (long value : getValues()) {
+                    out.printf("%d%n", value);
+                }
+            }
+        }
+    }
+}
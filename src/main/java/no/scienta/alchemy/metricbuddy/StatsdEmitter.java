@@ -0,0 +1,359 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emits the metrics of a registry to a StatsD agent over UDP, once per window.  Updates within a window are
+ * aggregated by the metrics themselves, so the number of datagrams follows the number of metrics which changed, not the
+ * number of updates.  The emitter keeps the count and value it last sent per metric, and packs as many lines as
+ * fit in each datagram, through one channel and one reused direct buffer.  A metric removed and added again, like
+ * one {@link MetricsCollectors#withIdleEviction(Duration, int) evicted} and revived, goes on from the count it was
+ * removed with.
+ * <p>
+ * Counters and meters are sent as counters of the change in count.  Histograms and timers are sent as a counter of
+ * the change in count, and gauges of their median, 99th percentile and max.  Timer values are in milliseconds.
+ * Gauges are sent when their value changes.  Metrics which fail to give their values are counted as failures, and
+ * left out of that flush.
+ */
+public final class StatsdEmitter implements Closeable {
+
+    /**
+     * Fits in an Ethernet frame, with room for IP and UDP headers.
+     */
+    public static final int DEFAULT_PACKET_SIZE = 1432;
+
+    private static final double MILLIS_PER_NANO = 1.0D / TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final String[] SUMMARY_SUFFIXES = {".p50", ".p99", ".max"};
+
+    private static final byte[] COUNTER = ascii("|c\n");
+
+    private static final byte[] GAUGE = ascii("|g\n");
+
+    private final MetricRegistry registry;
+
+    private final InetSocketAddress target;
+
+    private final DatagramChannel channel;
+
+    private final ByteBuffer buffer;
+
+    private final Listener listener = new Listener();
+
+    private final ScheduledExecutorService scheduler;
+
+    private Emitted[] emitted = new Emitted[0];
+
+    /**
+     * Counts last sent for removed metrics, until they are added again or collected.
+     */
+    private final Map<Metric, Long> removedCounts = new WeakHashMap<>();
+
+    private long packets;
+
+    private long failures;
+
+    /**
+     * @param registry Registry to emit
+     * @param target Address of the StatsD agent
+     * @param window Time between emits
+     * @param packetSize Maximum datagram size
+     */
+    public StatsdEmitter(MetricRegistry registry, InetSocketAddress target, Duration window, int packetSize) {
+        if (window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("Expected positive window: " + window);
+        }
+        if (packetSize < 64 || packetSize > 65507) {
+            throw new IllegalArgumentException("Expected a packet size of 64 to 65507 bytes: " + packetSize);
+        }
+        this.registry = registry;
+        this.target = target;
+        this.buffer = ByteBuffer.allocateDirect(packetSize);
+        try {
+            this.channel = DatagramChannel.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open channel to " + target, e);
+        }
+        this.registry.addListener(listener);
+        long millis = window.toMillis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(StatsdEmitter::emitterThread);
+        this.scheduler.scheduleAtFixedRate(this::flush, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the changes since the last flush now.
+     */
+    public synchronized void flush() {
+        buffer.clear();
+        for (Emitted metric : emitted) {
+            try {
+                metric.emit();
+            } catch (Throwable e) {
+                failures++;
+            }
+        }
+        send();
+    }
+
+    /**
+     * @return Number of datagrams sent
+     */
+    public synchronized long packets() {
+        return packets;
+    }
+
+    /**
+     * @return Number of datagrams or lines which could not be sent, and of metrics which failed to give their values
+     */
+    public synchronized long failures() {
+        return failures;
+    }
+
+    @Override
+    public synchronized void close() {
+        scheduler.shutdownNow();
+        registry.removeListener(listener);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to close channel to " + target, e);
+        }
+    }
+
+    private void counter(byte[] name, long delta) {
+        if (delta != 0L) {
+            line(name, delta, Double.NaN, COUNTER);
+        }
+    }
+
+    private void gauge(byte[] name, double value) {
+        if (value < 0.0D) {
+            line(name, 0L, Double.NaN, GAUGE);
+        }
+        line(name, 0L, value, GAUGE);
+    }
+
+    /**
+     * Put a line in the buffer, sending the buffer first if the line does not fit.
+     */
+    private void line(byte[] name, long longValue, double doubleValue, byte[] type) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int position = buffer.position();
+            try {
+                buffer.put(name);
+                if (Double.isNaN(doubleValue)) {
+                    PrometheusExporter.putLong(buffer, longValue);
+                } else {
+                    PrometheusExporter.putDouble(buffer, doubleValue);
+                }
+                buffer.put(type);
+                return;
+            } catch (BufferOverflowException e) {
+                buffer.position(position);
+                if (position == 0) {
+                    break;
+                }
+                send();
+            }
+        }
+        failures++;
+    }
+
+    private void send() {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        try {
+            channel.send(buffer, target);
+            packets++;
+        } catch (IOException e) {
+            failures++;
+        }
+        buffer.clear();
+    }
+
+    private synchronized void add(String name, Metric metric) {
+        Emitted[] current = this.emitted;
+        Emitted[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = new Emitted(name, metric);
+        Long count = removedCounts.remove(metric);
+        if (count != null) {
+            added[current.length].count = count;
+        }
+        this.emitted = added;
+    }
+
+    private synchronized void remove(String name) {
+        for (Emitted metric : emitted) {
+            if (metric.name.equals(name) && metric.metric instanceof Counting) {
+                removedCounts.put(metric.metric, metric.count);
+            }
+        }
+        this.emitted = Arrays.stream(emitted)
+                .filter(metric -> !metric.name.equals(name))
+                .toArray(Emitted[]::new);
+    }
+
+    /**
+     * @param name Registry name
+     * @return StatsD metric name, without the characters of the line format
+     */
+    static String sanitized(String name) {
+        StringBuilder sanitized = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sanitized.append(c == ':' || c == '|' || c == '@' || c == '#' || Character.isWhitespace(c) ? '_' : c);
+        }
+        return sanitized.toString();
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Thread emitterThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "metrics-statsd");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + target + "]";
+    }
+
+    /**
+     * A metric, with its names encoded and the values it was last emitted with.
+     */
+    private final class Emitted {
+
+        private final String name;
+
+        private final Metric metric;
+
+        private final byte[][] names;
+
+        private long count;
+
+        private double value = Double.NaN;
+
+        private Emitted(String name, Metric metric) {
+            String sanitized = sanitized(name);
+            this.name = name;
+            this.metric = metric;
+            if (metric instanceof Sampling) {
+                this.names = new byte[SUMMARY_SUFFIXES.length + 1][];
+                names[0] = ascii(sanitized + ".count:");
+                for (int i = 0; i < SUMMARY_SUFFIXES.length; i++) {
+                    names[i + 1] = ascii(sanitized + SUMMARY_SUFFIXES[i] + ":");
+                }
+            } else {
+                this.names = new byte[][]{ascii(sanitized + ":")};
+            }
+        }
+
+        private void emit() {
+            if (metric instanceof Counting) {
+                long count = ((Counting) metric).getCount();
+                long delta = count - this.count;
+                this.count = count;
+                counter(names[0], delta);
+                if (delta != 0L && metric instanceof Sampling) {
+                    Snapshot snapshot = ((Sampling) metric).getSnapshot();
+                    double scale = metric instanceof Timer ? MILLIS_PER_NANO : 1.0D;
+                    gauge(names[1], snapshot.getMedian() * scale);
+                    gauge(names[2], snapshot.get99thPercentile() * scale);
+                    gauge(names[3], snapshot.getMax() * scale);
+                }
+            } else if (metric instanceof Gauge<?>) {
+                Object value = ((Gauge<?>) metric).getValue();
+                if (value instanceof Number) {
+                    double number = ((Number) value).doubleValue();
+                    if (Double.compare(number, this.value) != 0 && !Double.isNaN(number)) {
+                        this.value = number;
+                        gauge(names[0], number);
+                    }
+                }
+            }
+        }
+    }
+
+    private final class Listener implements MetricRegistryListener {
+
+        @Override
+        public void onGaugeAdded(String name, Gauge<?> gauge) {
+            add(name, gauge);
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            add(name, counter);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            add(name, histogram);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            add(name, meter);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            add(name, timer);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            remove(name);
+        }
+    }
+}
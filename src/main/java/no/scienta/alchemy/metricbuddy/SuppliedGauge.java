@@ -0,0 +1,167 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A gauge reporting the value of the last supplier passed to a {@link Gauge} method, or null until then.  Gauges
+ * with a refresh interval are evaluated on a single shared background thread, and reads only return the last value,
+ * so expensive suppliers are never evaluated by readers, or more than once per interval.  Refreshing stops when the
+ * gauge is removed from its registry, which a listener reports, or is no longer reachable.
+ */
+public final class SuppliedGauge implements com.codahale.metrics.Gauge<Number> {
+
+    private final long refreshMillis;
+
+    private final MetricRegistry registry;
+
+    private final String name;
+
+    private volatile Supplier<Number> supplier;
+
+    private volatile Number value;
+
+    private Refresh refresh;
+
+    /**
+     * @param refreshMillis Refresh interval, or 0 to evaluate the supplier on every read
+     * @param registry Registry the gauge is registered in
+     * @param name Name of the gauge in the registry
+     */
+    SuppliedGauge(long refreshMillis, MetricRegistry registry, String name) {
+        if (refreshMillis < 0L) {
+            throw new IllegalArgumentException("Expected non-negative refresh interval: " + refreshMillis);
+        }
+        this.refreshMillis = refreshMillis;
+        this.registry = registry;
+        this.name = name;
+    }
+
+    /**
+     * @param supplier Supplier of the value
+     */
+    public void supply(LongSupplier supplier) {
+        supply(supplier == null ? null : (Supplier<Number>) supplier::getAsLong);
+    }
+
+    /**
+     * @param supplier Supplier of the value
+     */
+    public void supply(DoubleSupplier supplier) {
+        supply(supplier == null ? null : (Supplier<Number>) supplier::getAsDouble);
+    }
+
+    @Override
+    public Number getValue() {
+        if (refreshMillis > 0L) {
+            return value;
+        }
+        Supplier<Number> supplier = this.supplier;
+        return supplier == null ? null : supplier.get();
+    }
+
+    private void supply(Supplier<Number> supplier) {
+        this.supplier = supplier;
+        if (refreshMillis > 0L) {
+            schedule();
+        }
+    }
+
+    private synchronized void schedule() {
+        if (refresh == null) {
+            refresh = new Refresh(this);
+            registry.addListener(refresh);
+            refresh.future =
+                    Refresher.SCHEDULER.scheduleWithFixedDelay(refresh, 0L, refreshMillis, TimeUnit.MILLISECONDS);
+            if (registry.getGauges((registered, metric) -> metric == this).isEmpty()) {
+                refresh.cancel();
+            }
+        }
+    }
+
+    /**
+     * Keeps the last value if the supplier fails, and keeps refreshing.
+     */
+    private void refresh() {
+        Supplier<Number> supplier = this.supplier;
+        try {
+            value = supplier == null ? null : supplier.get();
+        } catch (Throwable ignore) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + (refreshMillis > 0L ? "refresh=" + refreshMillis + "ms " : "") +
+                value + "]";
+    }
+
+    /**
+     * Refreshes the gauge while it is reachable, and cancels itself when it is not, or when the registry removes it.
+     */
+    private static final class Refresh extends MetricRegistryListener.Base implements Runnable {
+
+        private final WeakReference<SuppliedGauge> gauge;
+
+        private final MetricRegistry registry;
+
+        private final String name;
+
+        private volatile ScheduledFuture<?> future;
+
+        private volatile boolean cancelled;
+
+        private Refresh(SuppliedGauge gauge) {
+            this.gauge = new WeakReference<>(gauge);
+            this.registry = gauge.registry;
+            this.name = gauge.name;
+        }
+
+        @Override
+        public void run() {
+            SuppliedGauge gauge = this.gauge.get();
+            if (gauge != null && !cancelled) {
+                gauge.refresh();
+            } else {
+                cancel();
+            }
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            if (this.name.equals(name)) {
+                cancel();
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            registry.removeListener(this);
+            ScheduledFuture<?> future = this.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Holds the shared scheduler, started when the first cached gauge is supplied.
+     */
+    private static final class Refresher {
+
+        private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-gauges");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
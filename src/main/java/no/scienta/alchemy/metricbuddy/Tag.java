@@ -0,0 +1,26 @@
+package no.scienta.alchemy.metricbuddy;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an enum or String parameter of a collector method as a tag, recording to one metric per tag value.  The tag
+ * name and value are appended to the metric name.
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Tag {
+
+    /**
+     * @return Tag name
+     */
+    String value();
+
+    /**
+     * @return The maximum number of String values to keep metrics for.  Further values are recorded as
+     * {@value Tagged#OTHER}.
+     */
+    int cardinality() default 100;
+}
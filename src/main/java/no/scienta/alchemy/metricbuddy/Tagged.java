@@ -0,0 +1,114 @@
+package no.scienta.alchemy.metricbuddy;
+
+import com.codahale.metrics.MetricRegistry;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The metrics of a {@link Tag tagged} collector method, one per tag value.  Enum values resolve through an array
+ * indexed by ordinal, built up front.  String values resolve through a cache bounded by the tag's cardinality, beyond
+ * which values are recorded as {@value #OTHER}.
+ *
+ * @param <M> Metric type
+ */
+public final class Tagged<M> {
+
+    static final String OTHER = "other";
+
+    private final Function<String, M> metrics;
+
+    private final String name;
+
+    private final Object[] ordinals;
+
+    private final Map<String, M> values = new ConcurrentHashMap<>();
+
+    private final int cardinality;
+
+    private final M other;
+
+    private volatile boolean full;
+
+    Tagged(Function<String, M> metrics, String name, Method method) {
+        int index = tagParameter(method);
+        Tag tag = method.getParameters()[index].getAnnotation(Tag.class);
+        Class<?> tagType = method.getParameterTypes()[index];
+        this.metrics = metrics;
+        this.name = MetricRegistry.name(name, tag.value());
+        this.cardinality = tag.cardinality();
+        this.ordinals = tagType.isEnum()
+                ? Stream.of(tagType.getEnumConstants()).map(value -> metric(((Enum<?>) value).name())).toArray()
+                : null;
+        this.other = metric(OTHER);
+    }
+
+    /**
+     * @param value Tag value
+     * @return Metric for the value
+     */
+    @SuppressWarnings("unchecked")
+    public M get(Enum<?> value) {
+        return value == null ? other : (M) ordinals[value.ordinal()];
+    }
+
+    /**
+     * @param value Tag value
+     * @return Metric for the value, or the {@value #OTHER} metric if the cardinality is exceeded
+     */
+    public M get(String value) {
+        if (value == null) {
+            return other;
+        }
+        M metric = values.get(value);
+        return metric != null ? metric
+                : full ? other
+                : added(value);
+    }
+
+    private synchronized M added(String value) {
+        M metric = values.get(value);
+        if (metric != null) {
+            return metric;
+        }
+        if (values.size() >= cardinality) {
+            full = true;
+            return other;
+        }
+        M added = metric(value);
+        values.put(value, added);
+        return added;
+    }
+
+    private M metric(String value) {
+        return metrics.apply(MetricRegistry.name(name, value));
+    }
+
+    /**
+     * @param method Collector method
+     * @return Index of the {@link Tag} parameter, or -1
+     */
+    static int tagParameter(Method method) {
+        Parameter[] parameters = method.getParameters();
+        return IntStream.range(0, parameters.length)
+                .filter(i -> parameters[i].isAnnotationPresent(Tag.class))
+                .findFirst()
+                .orElse(-1);
+    }
+
+    /**
+     * @param method Collector method
+     * @return Types of the parameters which are not tags
+     */
+    static Class<?>[] valueTypes(Method method) {
+        return Stream.of(method.getParameters())
+                .filter(parameter -> !parameter.isAnnotationPresent(Tag.class))
+                .map(Parameter::getType)
+                .toArray(Class<?>[]::new);
+    }
+}
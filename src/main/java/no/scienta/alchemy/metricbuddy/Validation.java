@@ -3,7 +3,10 @@ package no.scienta.alchemy.metricbuddy;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.function.DoubleSupplier;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -17,16 +20,55 @@ final class Validation {
         return meterType;
     }
 
+    /**
+     * @param samplesPerSecond Target samples per second of adaptive sampling
+     * @return The rate, if it is positive
+     */
+    static int validSampleRate(int samplesPerSecond) {
+        if (samplesPerSecond < 1) {
+            throw new IllegalArgumentException("Expected positive sample rate: " + samplesPerSecond);
+        }
+        return samplesPerSecond;
+    }
+
     private static void vet(Method method) {
         Class<? extends Annotation> metricType = metricType(method);
+        validateTag(method);
+        validateGroup(method);
         validators.get(metricType).apply(method);
     }
 
+    private static void validateGroup(Method method) {
+        String group = MetricGroups.group(method);
+        if (!group.isEmpty() && group.trim().isEmpty()) {
+            throw new IllegalArgumentException("Group name should not be blank: " + method);
+        }
+    }
+
+    private static void validateTag(Method method) {
+        long tags = Stream.of(method.getParameters()).filter(parameter -> parameter.isAnnotationPresent(Tag.class)).count();
+        if (tags > 1) {
+            throw new IllegalArgumentException("Method should have at most one tag parameter: " + method);
+        }
+        int tag = Tagged.tagParameter(method);
+        if (tag >= 0) {
+            Class<?> tagType = method.getParameterTypes()[tag];
+            if (tagType != String.class && !tagType.isEnum()) {
+                throw new IllegalArgumentException("Tag parameter should be an enum or a String: " + method);
+            }
+            if (method.getParameters()[tag].getAnnotation(Tag.class).cardinality() < 1) {
+                throw new IllegalArgumentException("Tag cardinality should be positive: " + method);
+            }
+        }
+    }
+
     private static Map<Class<? extends Annotation>, Function<Method, Void>> validators() {
         Map<Class<? extends Annotation>, Function<Method, Void>> map = new HashMap<>();
         map.put(Time.class, Validation::validateTimer);
         map.put(Inc.class, Validation::validateCounter);
+        map.put(Meter.class, Validation::validateMeter);
         map.put(Histo.class, Validation::validateHistogram);
+        map.put(Gauge.class, Validation::validateGauge);
         return Collections.unmodifiableMap(map);
     }
 
@@ -36,35 +78,129 @@ final class Validation {
         if (method.getReturnType() != void.class) {
             throw new IllegalArgumentException("Counter method should return void: " + method);
         }
-        if (method.getParameterCount() == 1 && method.getParameterTypes()[0] != long.class ||
-                method.getParameterCount() > 1) {
+        Class<?>[] values = Tagged.valueTypes(method);
+        if (values.length == 1 && values[0] != long.class || values.length > 1) {
             throw new IllegalArgumentException("Counter method should take no parameters or one long parameter: " + method);
         }
         return null;
     }
 
+    private static Void validateMeter(Method method) {
+        if (method.getReturnType() != void.class) {
+            throw new IllegalArgumentException("Meter method should return void: " + method);
+        }
+        Class<?>[] values = Tagged.valueTypes(method);
+        if (values.length == 1 && values[0] != long.class || values.length > 1) {
+            throw new IllegalArgumentException(
+                    "Meter method should take no parameters or one long parameter: " + method);
+        }
+        return null;
+    }
+
+    private static void validateHdr(Method method, int precision, long highest) {
+        if (precision < 0 || precision > 5) {
+            throw new IllegalArgumentException("Precision should be from 1 to 5 significant digits: " + method);
+        }
+        if (highest != 0L && highest < 2L) {
+            throw new IllegalArgumentException("Highest trackable value should be at least 2: " + method);
+        }
+    }
+
+    private static void validateSampling(Method method, int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("Sample interval should be positive: " + method);
+        }
+    }
+
+    private static void validateWindow(Method method, int windowSeconds) {
+        if (windowSeconds < 0) {
+            throw new IllegalArgumentException("Window should not be negative: " + method);
+        }
+    }
+
     private static Void validateHistogram(Method method) {
+        Histo histo = method.getAnnotation(Histo.class);
+        if (histo != null) {
+            validateHdr(method, histo.precision(), histo.highest());
+            validateSampling(method, histo.sampleEvery());
+            validateWindow(method, histo.windowSeconds());
+        }
         if (method.getReturnType() != void.class) {
             throw new IllegalArgumentException("Histogram method should return void: " + method);
         }
-        if (method.getParameterCount() > 1 || method.getParameterTypes()[0] != long.class) {
-            throw new IllegalArgumentException("Histogram method should take one long parameter: " + method);
+        Class<?>[] values = Tagged.valueTypes(method);
+        if (values.length != 1 || values[0] != long.class && values[0] != long[].class) {
+            throw new IllegalArgumentException(
+                    "Histogram method should take one long parameter, or a long[] of values: " + method);
+        }
+        return null;
+    }
+
+    private static Void validateGauge(Method method) {
+        if (method.getAnnotation(Gauge.class).refreshMillis() < 0L) {
+            throw new IllegalArgumentException("Refresh interval should not be negative: " + method);
+        }
+        if (method.getReturnType() != void.class) {
+            throw new IllegalArgumentException("Gauge method should return void: " + method);
+        }
+        Class<?>[] values = Tagged.valueTypes(method);
+        if (values.length != 1 || values[0] != LongSupplier.class && values[0] != DoubleSupplier.class) {
+            throw new IllegalArgumentException("Gauge method should take one " + LongSupplier.class.getSimpleName() +
+                    " or " + DoubleSupplier.class.getSimpleName() + " parameter: " + method);
         }
         return null;
     }
 
     private static Void validateTimer(Method method) {
+        Time time = method.getAnnotation(Time.class);
+        if (time != null) {
+            validateHdr(method, time.precision(), time.highest());
+            validateSampling(method, time.sampleEvery());
+            validateWindow(method, time.windowSeconds());
+        }
+        Class<?>[] values = Tagged.valueTypes(method);
+        if (values.length == 1 && (values[0] == Supplier.class || values[0] == Runnable.class)) {
+            return validateTimedExecution(method, values[0]);
+        }
+        if (time != null && !time.failures().isEmpty()) {
+            throw new IllegalArgumentException("Failure counter is for timed execution only: " + method);
+        }
+        if (method.getReturnType() == long.class || method.getReturnType() == void.class) {
+            return validateStartStopTimer(method);
+        }
         if (method.getReturnType() != MetricsCollectors.Timer.class) {
-            throw new IllegalArgumentException("Timer method should return " + MetricsCollectorsImpl.Timer.class + ": " + method);
+            throw new IllegalArgumentException("Timer method should return " + MetricsCollectorsImpl.Timer.class +
+                    ", or long start time: " + method);
         }
-        if (method.getParameterCount() > 0) {
+        if (Tagged.valueTypes(method).length > 0) {
             throw new IllegalArgumentException("Timer method should take no parameters: " + method);
         }
         return null;
     }
 
+    private static Void validateTimedExecution(Method method, Class<?> work) {
+        if (work == Runnable.class && method.getReturnType() != void.class) {
+            throw new IllegalArgumentException("Timed execution of a Runnable should return void: " + method);
+        }
+        if (work == Supplier.class && method.getReturnType().isPrimitive()) {
+            throw new IllegalArgumentException("Timed execution of a Supplier should return its result: " + method);
+        }
+        return null;
+    }
+
+    private static Void validateStartStopTimer(Method method) {
+        if (method.getReturnType() == long.class && method.getParameterCount() > 0) {
+            throw new IllegalArgumentException("Timer start method should take no parameters: " + method);
+        }
+        Class<?>[] values = Tagged.valueTypes(method);
+        if (method.getReturnType() == void.class && (values.length != 1 || values[0] != long.class)) {
+            throw new IllegalArgumentException("Timer stop method should take one long start time: " + method);
+        }
+        return null;
+    }
+
     private static Class<? extends Annotation> metricType(Method method) {
-        List<? extends Annotation> annotations = Stream.of(Inc.class, Histo.class, Time.class)
+        List<? extends Annotation> annotations = Stream.of(Inc.class, Meter.class, Histo.class, Time.class, Gauge.class)
                 .map(method::getAnnotation)
                 .filter(Objects::nonNull)
                 .map(Annotation.class::cast)
@@ -78,7 +214,7 @@ final class Validation {
         if (annotations.size() > 1) {
             throw new IllegalArgumentException("Found method with multiple annotations " + annotations + ": " + method);
         }
-        return Stream.of(Inc.class, Histo.class, Time.class)
+        return Stream.of(Inc.class, Meter.class, Histo.class, Time.class, Gauge.class)
                 .filter(annoType -> annoType.isInstance(annotations.get(0)))
                 .findFirst()
                 .orElseThrow(() -> new IllegalStateException("No valid annotation type: " + annotations.get(0)));
@@ -0,0 +1,68 @@
+package no.scienta.alchemy.metricbuddy.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+import com.codahale.metrics.MetricRegistry;
+import no.scienta.alchemy.metricbuddy.*;
+import no.scienta.alchemy.metricbuddy.Meter;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import org.junit.Test;
+
+/**
+ * The agent instruments every class loaded after it is installed, for the rest of the JVM's life.  Surefire runs each
+ * test class in a JVM of its own, so this is the only test class which sees it.
+ */
+public class MetricsAgentTest {
+
+    /**
+     * An ordinary class, instrumented by the agent.  Not loaded before the agent is installed.
+     */
+    public static class AgentInstrumented {
+
+        private final String name;
+
+        public AgentInstrumented(String name) {
+            this.name = name;
+        }
+
+        @Inc
+        public String greet() {
+            return "Hello, " + name;
+        }
+
+        @Meter @OverrideName("calls")
+        public void call() {
+        }
+
+        @Time
+        public long work(long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("Negative: " + millis);
+            }
+            return millis * 2;
+        }
+    }
+
+    @Test
+    public void testAgent() {
+        MetricRegistry registry = new MetricRegistry();
+        MetricsAgent.install(ByteBuddyAgent.install(), new MetricsCollectorsImpl(registry).withSnakeCaseNaming());
+        AgentInstrumented instrumented = new AgentInstrumented("agent");
+        assertThat(instrumented.greet(), is("Hello, agent"));
+        assertThat(instrumented.greet(), is("Hello, agent"));
+        instrumented.call();
+        assertThat(instrumented.work(2), is(4L));
+        try {
+            instrumented.work(-1);
+            fail("Expected exception");
+        } catch (IllegalArgumentException expected) {
+            // timed anyway
+        }
+
+        String prefix = AgentInstrumented.class.getName();
+        assertThat(registry.getCounters().get(MetricRegistry.name(prefix, "greet")).getCount(), is(2L));
+        assertThat(registry.getMeters().get(MetricRegistry.name(prefix, "calls")).getCount(), is(1L));
+        assertThat(registry.getTimers().get(MetricRegistry.name(prefix, "work")).getCount(), is(2L));
+    }
+}
@@ -1,13 +1,43 @@
 package no.scienta.alchemy.metricbuddy.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.*;
 
 import com.codahale.metrics.*;
 import no.scienta.alchemy.metricbuddy.*;
+import no.scienta.alchemy.metricbuddy.Gauge;
 import no.scienta.alchemy.metricbuddy.Meter;
 import org.junit.After;
 import org.junit.Before;
@@ -61,7 +91,34 @@ public class MetricsCollectorsTest {
         @Histo @OverrideName("bigness")
         void testSize(long milliseconds);
 
+        @Histo
+        void testSizes(long[] sizes);
+
         MetricsCollectors.Timer testTimer();
+
+        @Histo(precision = 3)
+        void testLatency(long micros);
+
+        @Time
+        long testTimed();
+
+        @Time
+        void testTimed(long startTime);
+    }
+
+    public enum Outcome {
+        OK, FAILED
+    }
+
+    @MetricsCollector(defaultMetric = Inc.class)
+    public interface TaggedMetrics {
+
+        void requests(@Tag("outcome") Outcome outcome);
+
+        @Meter
+        void bytes(@Tag("client") String client, long bytes);
+
+        void users(@Tag(value = "user", cardinality = 2) String user);
     }
 
     @Test
@@ -71,6 +128,145 @@ public class MetricsCollectorsTest {
         assertSame("Metrics instance should be the same for the same class", byClass, mtm());
     }
 
+    @Test
+    public void testSeveralCollectorsPerSource() {
+        MetricsTestMetrics metrics = mtm();
+        TaggedMetrics tagged = metricsCollectors.metricsCollector(this, TaggedMetrics.class);
+        assertSame(metrics, mtm());
+        assertSame(tagged, metricsCollectors.metricsCollector(MetricsCollectorsTest.class, TaggedMetrics.class));
+
+        metrics.testRun();
+        tagged.requests(Outcome.OK);
+        assertCounterValue("test_run", 1L);
+        assertCounterValue("requests.outcome.OK", 1L);
+    }
+
+    @Test
+    public void testSelfMetrics() {
+        mtm();
+        metricsCollectors.metricsCollector(this, TaggedMetrics.class);
+        metricsCollectors.withHdrHistograms(2).metricsCollector(Outcome.class, TaggedMetrics.class);
+
+        long generated = registry.getCounters().get("metricsbuddy.classes.generated").getCount();
+        long reused = registry.getCounters().get("metricsbuddy.classes.reused").getCount();
+        assertThat(generated + reused, is(3L));
+        assertTrue(reused >= 1L);
+        assertThat(registry.getTimers().get("metricsbuddy.classes.generation").getCount(), is(generated));
+        assertThat(registry.getTimers().get("metricsbuddy.classes.validation").getCount(), is(generated));
+        assertThat(registry.getGauges().get("metricsbuddy.collectors.live").getValue(), is(3));
+        assertThat(registry.getGauges().get("metricsbuddy.metrics").getValue(), is(registry.getMetrics().size()));
+
+        new MetricsCollectorsImpl(registry).metricsCollector(Outcome.class, MetricsTestMetrics.class);
+        assertThat("Instances sharing a registry should count all live collectors",
+                registry.getGauges().get("metricsbuddy.collectors.live").getValue(), is(4));
+
+        registry.remove(MetricRegistry.name(MetricsCollectorsTest.class, "test_run"));
+        assertThat(registry.getGauges().get("metricsbuddy.metrics").getValue(), is(registry.getMetrics().size()));
+    }
+
+    @Test
+    public void testGeneratedClassesShared() {
+        Class<?> snake = new MetricsCollectorsImpl().withSnakeCaseNaming()
+                .metricsCollector(Outcome.class, MetricsTestMetrics.class).getClass();
+        Class<?> otherSnake = new MetricsCollectorsImpl().withSnakeCaseNaming().withHdrHistograms(2)
+                .metricsCollector(Outcome.class, MetricsTestMetrics.class).getClass();
+        MetricRegistry pathRegistry = new MetricRegistry();
+        MetricsTestMetrics path = new MetricsCollectorsImpl(pathRegistry).withPathNaming()
+                .metricsCollector(Outcome.class, MetricsTestMetrics.class);
+        assertSame(snake, otherSnake);
+        assertSame("Names are resolved when bound, so name strategies share classes", snake, path.getClass());
+
+        path.testRun();
+        new MetricsCollectorsImpl(registry).withSnakeCaseNaming()
+                .metricsCollector(Outcome.class, MetricsTestMetrics.class).testRun();
+        String snakeName = MetricRegistry.name(Outcome.class, "test_run");
+        assertThat(registry.getCounters().get(snakeName).getCount(), is(1L));
+        assertFalse(pathRegistry.getCounters().containsKey(snakeName));
+        assertThat(pathRegistry.getCounters().get(MetricRegistry.name(Outcome.class, "test.run")).getCount(), is(1L));
+    }
+
+    public interface IsolatedMetrics {
+
+        @Inc
+        void hits();
+
+        @Meter
+        void marks();
+    }
+
+    @Test
+    public void testGeneratedClassesUnload() throws Exception {
+        WeakReference<ClassLoader> loader = isolatedCollector();
+        for (int i = 0; i < 50 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        assertThat(loader.get(), nullValue());
+    }
+
+    @Test
+    public void testBatchedClassesUnload() throws Exception {
+        WeakReference<ClassLoader> loader = isolatedBatch(metricsCollectors);
+        for (int i = 0; i < 50 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        assertThat(loader.get(), nullValue());
+    }
+
+    private static WeakReference<ClassLoader> isolatedCollector() throws ClassNotFoundException {
+        ClassLoader isolating = isolating();
+        Class<?> isolated = isolating.loadClass(IsolatedMetrics.class.getName());
+        assertNotSame(IsolatedMetrics.class, isolated);
+        Object collector = new MetricsCollectorsImpl().withSnakeCaseNaming().metricsCollector(isolated, isolated);
+        assertSame(isolating, collector.getClass().getClassLoader().getParent());
+        return new WeakReference<>(isolating);
+    }
+
+    private static WeakReference<ClassLoader> isolatedBatch(MetricsCollectors collectors)
+            throws ClassNotFoundException {
+        ClassLoader isolating = isolating();
+        Class<?> isolated = isolating.loadClass(IsolatedMetrics.class.getName());
+        try (Batch<?> batch = collectors.batch(isolated, isolated)) {
+            assertSame(isolating, batch.metrics().getClass().getClassLoader().getParent());
+        }
+        return new WeakReference<>(isolating);
+    }
+
+    private static ClassLoader isolating() {
+        return new ClassLoader(MetricsCollectorsTest.class.getClassLoader()) {
+            @Override
+            protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (!name.equals(IsolatedMetrics.class.getName())) {
+                    return super.loadClass(name, resolve);
+                }
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded != null) {
+                    return loaded;
+                }
+                try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] chunk = new byte[4096];
+                    for (int read = in.read(chunk); read > 0; read = in.read(chunk)) {
+                        bytes.write(chunk, 0, read);
+                    }
+                    return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testMetricsBoundUpFront() {
+        mtm();
+        assertCounterValue("test_run", 0L);
+        assertCounterValue("baloney", 0L);
+        assertHistogramValue("bigness", 0L, 0.0D);
+        assertThat(get(registry.getTimers(), "test_timer"), notNullValue());
+    }
+
     @Test
     public void testSimpleCounter() {
         mtm().testRun();
@@ -114,6 +310,316 @@ public class MetricsCollectorsTest {
         assertHistogramValue("bigness", 2L, 40.0D);
     }
 
+    @Test
+    public void testBulkHistogram() {
+        mtm().testSizes(new long[]{30L, 50L, 70L});
+        assertHistogramValue("test_sizes", 3L, 50.0D);
+    }
+
+    @Test
+    public void testHdrHistogram() {
+        for (long i = 1; i <= 1000; i++) {
+            mtm().testLatency(i);
+        }
+        Snapshot snapshot = get(registry.getHistograms(), "test_latency").getSnapshot();
+        assertThat(snapshot.size(), is(1000));
+        assertEquals(990.0D, snapshot.get99thPercentile(), 1.0D);
+        assertThat(snapshot.getMax(), is(1000L));
+
+        assertThat(get(registry.getHistograms(), "test_latency").getSnapshot().size(), is(1000));
+
+        for (int i = 0; i < 100_000; i++) {
+            mtm().testLatency(500L);
+        }
+        long[] values = get(registry.getHistograms(), "test_latency").getSnapshot().getValues();
+        assertThat(values.length, is(1000));
+        assertThat(values[values.length - 1], is(1000L));
+    }
+
+    @Test
+    public void testHdrTimers() {
+        MetricsTestMetrics hdr = metricsCollectors.withHdrHistograms(2).metricsCollector(this, MetricsTestMetrics.class);
+        hdr.testTimed(hdr.testTimed());
+        hdr.testTimer().done();
+
+        assertThat(get(registry.getTimers(), "test_timed").getSnapshot().size(), is(1));
+        assertThat(get(registry.getTimers(), "test_timer").getSnapshot().size(), is(1));
+        assertThat("Snapshots should not drain each other",
+                get(registry.getTimers(), "test_timer").getSnapshot().size(), is(1));
+
+        hdr.testTimer().done();
+        assertThat(get(registry.getTimers(), "test_timer").getSnapshot().size(), is(2));
+    }
+
+    @MetricsCollector
+    public interface SampledMetrics {
+
+        @Time(sampleEvery = 4)
+        long sampledTime();
+
+        @Time(sampleEvery = 4)
+        void sampledTime(long startTime);
+
+        @Time(sampleEvery = 4)
+        MetricsCollectors.Timer sampledTimer();
+
+        @Histo(sampleEvery = 4)
+        void sampledSize(long size);
+    }
+
+    @Test
+    public void testSampling() {
+        SampledMetrics sampled = metricsCollectors.metricsCollector(this, SampledMetrics.class);
+        for (int i = 0; i < 10; i++) {
+            sampled.sampledTime(sampled.sampledTime());
+            sampled.sampledTimer().done();
+            sampled.sampledSize(i);
+        }
+
+        assertThat(get(registry.getTimers(), "sampled_time").getCount(), is(10L));
+        assertThat(get(registry.getTimers(), "sampled_time").getSnapshot().size(), is(3));
+        assertThat(get(registry.getTimers(), "sampled_timer").getCount(), is(10L));
+        assertThat(get(registry.getTimers(), "sampled_timer").getSnapshot().size(), is(3));
+        assertThat(get(registry.getHistograms(), "sampled_size").getCount(), is(10L));
+        assertThat(get(registry.getHistograms(), "sampled_size").getSnapshot().getValues(), is(new long[]{0L, 4L, 8L}));
+    }
+
+    @Test
+    public void testSamplingPerThread() throws InterruptedException {
+        SampledMetrics sampled = metricsCollectors.metricsCollector(this, SampledMetrics.class);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int call = 0; call < 8; call++) {
+                    sampled.sampledSize(call);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(get(registry.getHistograms(), "sampled_size").getCount(), is(32L));
+        assertThat(get(registry.getHistograms(), "sampled_size").getSnapshot().size(), is(8));
+    }
+
+    @Test
+    public void testBatchSampling() {
+        try (Batch<SampledMetrics> batch = metricsCollectors.batch(this, SampledMetrics.class)) {
+            for (int i = 0; i < 10; i++) {
+                batch.metrics().sampledTime(batch.metrics().sampledTime());
+                batch.metrics().sampledTimer().done();
+            }
+            assertThat(get(registry.getTimers(), "sampled_time").getSnapshot().size(), is(0));
+        }
+
+        assertThat(get(registry.getTimers(), "sampled_time").getCount(), is(10L));
+        assertThat(get(registry.getTimers(), "sampled_time").getSnapshot().size(), is(3));
+        assertThat(get(registry.getTimers(), "sampled_timer").getCount(), is(10L));
+        assertThat(get(registry.getTimers(), "sampled_timer").getSnapshot().size(), is(3));
+    }
+
+    @Test
+    public void testAdaptiveSampling() {
+        MetricsTestMetrics sampled = metricsCollectors.withAdaptiveSampling(1000)
+                .metricsCollector(this, MetricsTestMetrics.class);
+        for (int i = 0; i < 10; i++) {
+            sampled.testTimed(sampled.testTimed());
+        }
+
+        assertThat(get(registry.getTimers(), "test_timed").getCount(), is(10L));
+        assertThat(get(registry.getTimers(), "test_timed").getSnapshot().size(), is(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badAdaptiveSampleRate() {
+        metricsCollectors.withAdaptiveSampling(0);
+    }
+
+    @SuppressWarnings("unused")
+    interface BadMetrics7 {
+        @Histo(sampleEvery = 0)
+        void size(long size);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badSampleInterval() {
+        fail(metricsCollectors.metricsCollector(this, BadMetrics7.class) + " should not exist!");
+    }
+
+    public interface WindowedMetrics {
+
+        @Histo(windowSeconds = 1)
+        void size(long size);
+
+        @Histo
+        void length(long length);
+
+        @Histo(windowSeconds = 1, highest = 1000L)
+        void capped(long capped);
+    }
+
+    @Test
+    public void testSlidingWindow() throws InterruptedException {
+        WindowedMetrics metrics = metricsCollectors.metricsCollector(this, WindowedMetrics.class);
+        for (long i = 1; i <= 100; i++) {
+            metrics.size(i);
+        }
+        metrics.size(1000L);
+        Snapshot snapshot = get(registry.getHistograms(), "size").getSnapshot();
+        assertThat(snapshot.size(), is(101));
+        assertEquals(50.0D, snapshot.getMedian(), 3.0D);
+        assertEquals(1000.0D, snapshot.getMax(), 60.0D);
+        assertEquals(59.9D, snapshot.getMean(), 0.1D);
+
+        Thread.sleep(2100L);
+        assertThat(get(registry.getHistograms(), "size").getSnapshot().size(), is(0));
+        assertThat(get(registry.getHistograms(), "size").getCount(), is(101L));
+    }
+
+    @Test
+    public void testSlidingWindowHighest() {
+        WindowedMetrics metrics = metricsCollectors.metricsCollector(this, WindowedMetrics.class);
+        metrics.capped(10L);
+        metrics.capped(1_000_000L);
+        Snapshot snapshot = get(registry.getHistograms(), "capped").getSnapshot();
+        assertThat(snapshot.size(), is(2));
+        assertEquals(1000.0D, snapshot.getMax(), 60.0D);
+        assertEquals(505.0D, snapshot.getMean(), 0.1D);
+    }
+
+    @Test
+    public void testSlidingWindowDefault() {
+        WindowedMetrics metrics = metricsCollectors.withSlidingWindows(Duration.ofSeconds(30))
+                .metricsCollector(this, WindowedMetrics.class);
+        metrics.length(1000L);
+        assertThat(get(registry.getHistograms(), "length").getSnapshot().getMedian(), is(991.0D));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badSlidingWindow() {
+        metricsCollectors.withSlidingWindows(Duration.ofMillis(500L));
+    }
+
+    public interface TimedMetrics {
+
+        @Time
+        <T> T work(Supplier<T> work);
+
+        @Time @OverrideName("work")
+        void run(Runnable work);
+
+        @Time(failures = "parse_failures")
+        Integer parse(Supplier<Integer> work);
+    }
+
+    @Test
+    public void testTimedExecution() {
+        TimedMetrics metrics = metricsCollectors.metricsCollector(this, TimedMetrics.class);
+        assertThat(metrics.work(() -> "done"), is("done"));
+        metrics.run(() -> {
+        });
+        assertThat(metrics.parse(() -> Integer.parseInt("42")), is(42));
+        IllegalStateException failure = new IllegalStateException();
+        try {
+            metrics.run(() -> {
+                throw failure;
+            });
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        try {
+            metrics.parse(() -> Integer.parseInt("forty-two"));
+            fail("Expected exception");
+        } catch (NumberFormatException expected) {
+            // counted
+        }
+
+        assertTimerValue("work", 3L, 0.0D);
+        assertTimerValue("parse", 2L, 0.0D);
+        assertCounterValue("parse_failures", 1L);
+    }
+
+    public interface GaugeMetrics {
+
+        @Gauge
+        void queueDepth(LongSupplier depth);
+
+        @Gauge(refreshMillis = 10L)
+        void offHeap(DoubleSupplier bytes);
+    }
+
+    @Test
+    public void testGauges() throws InterruptedException {
+        GaugeMetrics metrics = metricsCollectors.metricsCollector(this, GaugeMetrics.class);
+        assertThat(gaugeValue("queue_depth"), nullValue());
+
+        AtomicLong depth = new AtomicLong(3L);
+        metrics.queueDepth(depth::get);
+        assertThat(gaugeValue("queue_depth"), is(3L));
+        depth.set(5L);
+        assertThat(gaugeValue("queue_depth"), is(5L));
+
+        AtomicInteger evaluations = new AtomicInteger();
+        Thread reader = Thread.currentThread();
+        AtomicInteger readerEvaluations = new AtomicInteger();
+        metrics.offHeap(() -> {
+            if (Thread.currentThread() == reader) {
+                readerEvaluations.incrementAndGet();
+            }
+            return evaluations.incrementAndGet() * 1024.0D;
+        });
+        while (evaluations.get() < 2) {
+            Thread.sleep(10L);
+        }
+        assertThat(gaugeValue("off_heap"), notNullValue());
+        assertThat(gaugeValue("off_heap"), notNullValue());
+        assertThat("Readers should not evaluate cached gauges", readerEvaluations.get(), is(0));
+
+        registry.remove(MetricRegistry.name(MetricsCollectorsTest.class, "off_heap"));
+        Thread.sleep(50L);
+        int evaluated = evaluations.get();
+        Thread.sleep(50L);
+        assertThat("Removed gauges should not be refreshed", evaluations.get(), is(evaluated));
+    }
+
+    interface BadMetrics10 {
+        @Gauge
+        void depth(long depth);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badGaugeParameter() {
+        fail(metricsCollectors.metricsCollector(this, BadMetrics10.class) + " should not exist!");
+    }
+
+    interface BadMetrics8 {
+        @Time
+        long run(Runnable work);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badTimedExecution() {
+        fail(metricsCollectors.metricsCollector(this, BadMetrics8.class) + " should not exist!");
+    }
+
+    interface BadMetrics9 {
+        @Time(failures = "failures")
+        long start();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badFailureCounter() {
+        fail(metricsCollectors.metricsCollector(this, BadMetrics9.class) + " should not exist!");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badHdrPrecision() {
+        metricsCollectors.withHdrHistograms(6);
+    }
+
     @Test
     public void testTimer() throws InterruptedException {
         MetricsCollectors.Timer timer = mtm().testTimer();
@@ -123,6 +629,15 @@ public class MetricsCollectorsTest {
         assertTimerValue("test_timer", 1, 99.0);
     }
 
+    @Test
+    public void testStartStopTimer() throws InterruptedException {
+        long startTime = mtm().testTimed();
+        Thread.sleep(100);
+        mtm().testTimed(startTime);
+
+        assertTimerValue("test_timed", 1, 100_000_000.0);
+    }
+
     @Test
     public void testMeter() {
         mtm().testMeter();
@@ -137,6 +652,737 @@ public class MetricsCollectorsTest {
         assertMeterValue("test_metering", 3, 3.0);
     }
 
+    @Test
+    public void testBufferedMeter() {
+        MetricsTestMetrics buffered = metricsCollectors.withBufferedRecording(Duration.ofHours(1))
+                .metricsCollector(this, MetricsTestMetrics.class);
+        buffered.testMeter();
+        buffered.testMetering(2);
+
+        assertMeterValue("test_meter", 1, 1.0);
+        assertMeterValue("test_metering", 2, 2.0);
+    }
+
+    @Test
+    public void testBufferedFlush() {
+        MetricsCollectors bufferedCollectors = metricsCollectors.withBufferedRecording(Duration.ofHours(1));
+        bufferedCollectors.metricsCollector(this, MetricsTestMetrics.class).testMetering(3);
+        bufferedCollectors.flush();
+
+        assertThat(registry.getMeters().get(MetricRegistry.name(MetricsCollectorsTest.class, "test_metering")).getCount(),
+                is(3L));
+    }
+
+    @Test
+    public void testBufferedFlusherShared() throws InterruptedException {
+        WeakReference<MetricsCollectors> buffered =
+                new WeakReference<>(metricsCollectors.withBufferedRecording(Duration.ofMillis(10)));
+        metricsCollectors.withBufferedRecording(Duration.ofMillis(10));
+        for (int i = 0; i < 50 && buffered.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        assertThat(buffered.get(), nullValue());
+        assertThat(threads("metrics-flusher"), is(1L));
+    }
+
+    @Test
+    public void testBufferedMeterReleased() throws Exception {
+        MetricsCollectors bufferedCollectors = metricsCollectors.withBufferedRecording(Duration.ofMillis(10));
+        WeakReference<com.codahale.metrics.Meter> meter = removedBufferedMeter(bufferedCollectors);
+        for (int i = 0; i < 50 && meter.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        assertThat(meter.get(), nullValue());
+        bufferedCollectors.flush();
+    }
+
+    private WeakReference<com.codahale.metrics.Meter> removedBufferedMeter(MetricsCollectors bufferedCollectors)
+            throws Exception {
+        Class<?> isolated = isolating().loadClass(IsolatedMetrics.class.getName());
+        isolated.getMethod("marks").invoke(bufferedCollectors.metricsCollector(isolated, isolated));
+        String name = registry.getMeters().firstKey();
+        WeakReference<com.codahale.metrics.Meter> meter = new WeakReference<>(registry.getMeters().get(name));
+        registry.remove(name);
+        return meter;
+    }
+
+    @Test
+    public void testSharedMemoryCounters() throws IOException {
+        Path file = Files.createTempFile("metrics", ".shm");
+        try {
+            MetricsCollectors sharedCollectors = metricsCollectors.withSharedMemory(file, 8);
+            MetricsTestMetrics shared = sharedCollectors.metricsCollector(this, MetricsTestMetrics.class);
+            SharedCountersReader reader = SharedCountersReader.attach(file);
+            shared.testRun();
+            shared.testSteps(4);
+            shared.testMetering(3);
+
+            assertCounterValue("test_run", 1L);
+            assertMeterValue("test_metering", 3L, 0.0);
+            assertThat(reader.value(MetricRegistry.name(MetricsCollectorsTest.class, "test_run")), is(1L));
+            assertThat(reader.value(MetricRegistry.name(MetricsCollectorsTest.class, "test_steps")), is(4L));
+            assertThat(reader.value(MetricRegistry.name(MetricsCollectorsTest.class, "test_metering")), is(3L));
+
+            shared.testSteps(2);
+            assertThat(reader.value(MetricRegistry.name(MetricsCollectorsTest.class, "test_steps")), is(6L));
+
+            sharedCollectors.close();
+            shared.testSteps(1);
+            assertCounterValue("test_steps", 7L);
+            assertThat(reader.value(MetricRegistry.name(MetricsCollectorsTest.class, "test_steps")), is(6L));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSharedMemoryFull() throws IOException {
+        Path file = Files.createTempFile("metrics", ".shm");
+        try {
+            metricsCollectors.withSharedMemory(file, 2).metricsCollector(this, MetricsTestMetrics.class);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testMetricStore() {
+        MetricStore store = new MetricStore();
+        store.registerIn(registry);
+        MetricsCollectors storeCollectors = metricsCollectors.withMetricStore(store);
+        MetricsTestMetrics metrics = storeCollectors.metricsCollector(this, MetricsTestMetrics.class);
+        TaggedMetrics tagged = storeCollectors.metricsCollector(this, TaggedMetrics.class);
+        metrics.testRun();
+        metrics.testSteps(4);
+        metrics.testSteps(2);
+        metrics.testMetering(3);
+        metrics.testLength(5);
+        tagged.requests(Outcome.OK);
+
+        assertThat(store.count(MetricRegistry.name(MetricsCollectorsTest.class, "test_run")), is(1L));
+        assertThat(store.count(MetricRegistry.name(MetricsCollectorsTest.class, "test_steps")), is(6L));
+        assertThat(store.count(MetricRegistry.name(MetricsCollectorsTest.class, "test_metering")), is(3L));
+        assertThat(store.count(MetricRegistry.name(MetricsCollectorsTest.class, "requests.outcome.OK")), is(1L));
+        assertHistogramValue("test_length", 1L, 5.0D);
+
+        Counting metering = store.metrics().get(MetricRegistry.name(MetricsCollectorsTest.class, "test_metering"));
+        assertThat(metering, instanceOf(Metered.class));
+        assertThat(metering.getCount(), is(3L));
+        assertThat(store.metrics().get(MetricRegistry.name(MetricsCollectorsTest.class, "test_metering")),
+                sameInstance(metering));
+
+        assertCounterValue("test_run", 1L);
+        assertCounterValue("test_steps", 6L);
+        assertMeterValue("test_metering", 3L, 0.0);
+
+        MetricRegistry later = new MetricRegistry();
+        store.registerIn(later);
+        metrics.testSteps(1);
+        assertThat(later.getCounters().get(MetricRegistry.name(MetricsCollectorsTest.class, "test_steps")).getCount(),
+                is(7L));
+    }
+
+    @Test
+    public void testDeltaSnapshots() {
+        MetricStore store = new MetricStore();
+        MetricsTestMetrics metrics = metricsCollectors.withMetricStore(store)
+                .metricsCollector(this, MetricsTestMetrics.class);
+        metrics.testSteps(4);
+        metrics.testMetering(3);
+        String steps = MetricRegistry.name(MetricsCollectorsTest.class, "test_steps");
+        String metering = MetricRegistry.name(MetricsCollectorsTest.class, "test_metering");
+
+        try (MetricStore.Cursor cursor = store.cursor()) {
+            DeltaSnapshot first = cursor.next();
+            assertThat(first.size(), is(2));
+            assertThat(first.deltas().get(steps), is(4L));
+            assertThat(first.deltas().get(metering), is(3L));
+
+            assertThat(cursor.next().size(), is(0));
+
+            metrics.testSteps(2);
+            metrics.testSteps(1);
+            DeltaSnapshot second = cursor.next();
+            assertThat(second.size(), is(1));
+            assertThat(second.name(0), is(steps));
+            assertThat(second.isMeter(0), is(false));
+            assertThat(second.count(0), is(7L));
+            assertThat(second.delta(0), is(3L));
+
+            try (MetricStore.Cursor late = store.cursor()) {
+                metrics.testMetering(1);
+                assertThat(cursor.next().deltas().get(metering), is(1L));
+                assertThat(late.next().deltas().get(metering), is(4L));
+                assertThat(late.next().size(), is(0));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentDeltaSnapshots() throws InterruptedException {
+        MetricStore store = new MetricStore();
+        MetricsTestMetrics metrics = metricsCollectors.withMetricStore(store)
+                .metricsCollector(this, MetricsTestMetrics.class);
+        String steps = MetricRegistry.name(MetricsCollectorsTest.class, "test_steps");
+        try (MetricStore.Cursor cursor = store.cursor()) {
+            cursor.next();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    for (int call = 0; call < 50000; call++) {
+                        metrics.testSteps(1);
+                    }
+                });
+                threads[i].start();
+            }
+            long total = 0L;
+            int snapshots = 0;
+            while (snapshots < 3000 || threads[0].isAlive() || threads[1].isAlive()
+                    || threads[2].isAlive() || threads[3].isAlive()) {
+                metrics.testSteps(1);
+                Long delta = cursor.next().deltas().get(steps);
+                total += delta == null ? 0L : delta;
+                snapshots++;
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Long delta = cursor.next().deltas().get(steps);
+            total += delta == null ? 0L : delta;
+
+            assertThat(total, is(200000L + snapshots));
+            assertThat(store.count(steps), is(total));
+        }
+    }
+
+    @Test
+    public void testMetricHistory() throws IOException {
+        Path file = Files.createTempFile("metrics", ".history");
+        try (MetricHistory history = metricsCollectors.metricHistory(file, 64 * 1024, Duration.ofHours(1))) {
+            MetricsTestMetrics metrics = metricsCollectors.metricsCollector(this, MetricsTestMetrics.class);
+            AtomicLong level = new AtomicLong(7L);
+            registry.register("level", (com.codahale.metrics.Gauge<Double>) () -> level.get() / 2.0D);
+            String steps = MetricRegistry.name(MetricsCollectorsTest.class, "test_steps");
+            String length = MetricRegistry.name(MetricsCollectorsTest.class, "test_length");
+            metrics.testSteps(4);
+            metrics.testLength(5);
+            history.record();
+            metrics.testSteps(2);
+            history.record();
+            level.set(8L);
+            history.record();
+
+            List<MetricHistoryReader.Frame> frames = MetricHistoryReader.open(file).frames();
+            assertThat(frames.size(), is(3));
+            assertThat(frames.get(0).values().get(steps), is(4L));
+            assertThat(frames.get(0).values().get(length + ".count"), is(1L));
+            assertThat(frames.get(0).values().get(length + ".max"), is(5L));
+            assertThat(frames.get(0).values().get("level"), is(3.5D));
+            assertThat(frames.get(1).values().size(), is(1));
+            assertThat(frames.get(1).values().get(steps), is(6L));
+            assertThat(frames.get(2).values().size(), is(1));
+            assertThat(frames.get(2).values().get("level"), is(4.0D));
+
+            for (int i = 0; i < 10_000; i++) {
+                metrics.testSteps(1);
+                history.record();
+            }
+            MetricHistoryReader reader = MetricHistoryReader.open(file);
+            List<MetricHistoryReader.Frame> all = reader.frames();
+            assertTrue(all.size() > 1000 && all.size() < 10_000);
+            assertThat(all.get(all.size() - 1).values().get(steps), is(10_006L));
+            assertThat(all.get(0).values().get("level"), is(4.0D));
+            List<MetricHistoryReader.Frame> last = reader.frames(Duration.ofMinutes(1));
+            assertThat(last.get(0).values().get(length + ".count"), is(1L));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testMetricHistoryKeyframes() throws IOException {
+        Path file = Files.createTempFile("metrics", ".history");
+        try (MetricHistory history = metricsCollectors.metricHistory(file, 64 * 1024, Duration.ofHours(1))) {
+            registry.register("broken", (com.codahale.metrics.Gauge<Long>) () -> {
+                throw new IllegalStateException("broken");
+            });
+            List<Counter> counters = new ArrayList<>();
+            for (int i = 0; i < 600; i++) {
+                counters.add(registry.counter("c" + i));
+            }
+            for (int i = 0; i < 200; i++) {
+                counters.forEach(Counter::inc);
+                history.record();
+            }
+            MetricHistoryReader reader = MetricHistoryReader.open(file);
+            List<MetricHistoryReader.Frame> frames = reader.frames();
+            assertTrue(frames.size() > 10 && frames.size() < 60);
+            assertThat(frames.get(frames.size() - 1).values().get("c599"), is(200L));
+            assertFalse(frames.get(0).values().containsKey("broken"));
+            assertThat(reader.failedReads(), is(200));
+            assertThat(reader.droppedFrames(), is(0));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testMetricHistoryTornFrame() throws IOException {
+        Path file = Files.createTempFile("metrics", ".history");
+        try (MetricHistory history = metricsCollectors.metricHistory(file, 64 * 1024, Duration.ofHours(1))) {
+            List<Counter> counters = new ArrayList<>();
+            for (int i = 0; i < 600; i++) {
+                counters.add(registry.counter("c" + i));
+            }
+            for (int i = 0; i < 200; i++) {
+                counters.forEach(Counter::inc);
+                history.record();
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+            int ringStart = 64 + buffer.getInt(8);
+            int ringSize = buffer.getInt(12);
+            long head = buffer.getLong(32);
+            long tail = head - ringSize;
+            long boundary = head;
+            while (true) {
+                long length = 0L;
+                for (int i = 0; i < 4; i++) {
+                    length |= (buffer.get(ringStart + (int) ((boundary - 4 + i) % ringSize)) & 0xFFL) << 8 * i;
+                }
+                if (boundary - 4 - length < tail + ringSize / 4) {
+                    break;
+                }
+                boundary -= 4 + length;
+            }
+            // A frame written up to the boundary, torn into well-formed frames of an unknown metric
+            byte[] garbage = {1, 0, 1, (byte) 0xE8, 7, 0, 6, 0, 0, 0};
+            for (long position = tail; position < boundary; position++) {
+                buffer.put(ringStart + (int) (position % ringSize), (byte) 0);
+            }
+            for (long start = boundary - garbage.length; start >= tail; start -= garbage.length) {
+                for (int i = 0; i < garbage.length; i++) {
+                    buffer.put(ringStart + (int) ((start + i) % ringSize), garbage[i]);
+                }
+            }
+            buffer.putLong(48, boundary + ringSize);
+        }
+        try {
+            List<MetricHistoryReader.Frame> frames = MetricHistoryReader.open(file).frames();
+            assertFalse(frames.isEmpty());
+            long previous = 0L;
+            for (MetricHistoryReader.Frame frame : frames) {
+                long value = frame.values().get("c0").longValue();
+                assertTrue(value > previous && value <= 200L);
+                previous = value;
+            }
+            assertThat(previous, is(200L));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testStatsdEmitter() throws IOException {
+        try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             StatsdEmitter emitter = metricsCollectors.statsdEmitter(
+                     (InetSocketAddress) receiver.getLocalSocketAddress(), Duration.ofHours(1))) {
+            receiver.setSoTimeout(5000);
+            MetricsTestMetrics metrics = metricsCollectors.metricsCollector(this, MetricsTestMetrics.class);
+            for (int i = 0; i < 10_000; i++) {
+                metrics.testSteps(1);
+            }
+            metrics.testLength(5);
+            emitter.flush();
+            String packet = receive(receiver);
+            String prefix = MetricsCollectorsTest.class.getName();
+            assertThat(packet, containsString(prefix + ".test_steps:10000|c\n"));
+            assertThat(packet, containsString(prefix + ".test_length.count:1|c\n"));
+            assertThat(packet, containsString(prefix + ".test_length.max:5|g\n"));
+            assertThat(emitter.packets(), is(1L));
+
+            metrics.testSteps(3);
+            emitter.flush();
+            assertThat(receive(receiver), is(prefix + ".test_steps:3|c\n"));
+
+            for (int i = 0; i < 500; i++) {
+                registry.counter("a.rather.long.metric.name.to.fill.packets." + i).inc();
+            }
+            emitter.flush();
+            int lines = 0;
+            for (long i = 2; i < emitter.packets(); i++) {
+                String filled = receive(receiver);
+                assertTrue(filled.length() <= StatsdEmitter.DEFAULT_PACKET_SIZE);
+                lines += filled.split("a\\.rather").length - 1;
+            }
+            assertThat(lines, is(500));
+            assertTrue(emitter.packets() < 50L);
+            assertThat(emitter.failures(), is(0L));
+
+            registry.register("broken", (com.codahale.metrics.Gauge<Long>) () -> {
+                throw new IllegalStateException("broken");
+            });
+            metrics.testSteps(2);
+            emitter.flush();
+            assertThat(receive(receiver), containsString(prefix + ".test_steps:2|c\n"));
+            assertThat(emitter.failures(), is(1L));
+        }
+    }
+
+    private static String receive(DatagramSocket receiver) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+        receiver.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testIdleEviction() throws InterruptedException {
+        MetricsTestMetrics metrics = metricsCollectors.withIdleEviction(Duration.ofMillis(200), 100)
+                .metricsCollector(this, MetricsTestMetrics.class);
+        String steps = MetricRegistry.name(MetricsCollectorsTest.class, "test_steps");
+        String run = MetricRegistry.name(MetricsCollectorsTest.class, "test_run");
+        metrics.testSteps(1);
+        for (int i = 0; i < 20; i++) {
+            metrics.testRun();
+            Thread.sleep(50L);
+        }
+        assertThat(registry.getCounters().get(steps), nullValue());
+        assertThat(registry.getCounters().get(run), notNullValue());
+
+        metrics.testSteps(2);
+        for (int i = 0; i < 100 && registry.getCounters().get(steps) == null; i++) {
+            Thread.sleep(10L);
+        }
+        assertCounterValue("test_steps", 3L);
+    }
+
+    @Test
+    public void testEvictionRevival() throws IOException, InterruptedException {
+        try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             StatsdEmitter emitter = metricsCollectors.statsdEmitter(
+                     (InetSocketAddress) receiver.getLocalSocketAddress(), Duration.ofHours(1))) {
+            receiver.setSoTimeout(5000);
+            long sweepers = threads("metrics-eviction");
+            MetricsCollectors evicting = metricsCollectors.withIdleEviction(Duration.ofMillis(40), 100);
+            MetricsTestMetrics metrics = evicting.metricsCollector(this, MetricsTestMetrics.class);
+            String steps = MetricRegistry.name(MetricsCollectorsTest.class, "test_steps");
+            metrics.testSteps(5);
+            emitter.flush();
+            assertThat(receive(receiver), containsString(steps + ":5|c\n"));
+
+            Thread.sleep(500L);
+            assertThat(registry.getCounters().get(steps), nullValue());
+            metrics.testSteps(2);
+            for (int i = 0; i < 200 && registry.getCounters().get(steps) == null; i++) {
+                Thread.sleep(10L);
+            }
+            assertCounterValue("test_steps", 7L);
+            emitter.flush();
+            assertThat(receive(receiver), containsString(steps + ":2|c\n"));
+
+            assertThat(threads("metrics-eviction"), is(sweepers + 1L));
+            evicting.close();
+            for (int i = 0; i < 100 && threads("metrics-eviction") > sweepers; i++) {
+                Thread.sleep(10L);
+            }
+            assertThat(threads("metrics-eviction"), is(sweepers));
+        }
+    }
+
+    @Test
+    public void testEvictionLimit() {
+        metricsCollectors.withIdleEviction(Duration.ofHours(1), 3).metricsCollector(this, MetricsTestMetrics.class);
+        long registered = registry.getNames().stream()
+                .filter(name -> name.startsWith(MetricsCollectorsTest.class.getName()))
+                .count();
+        assertThat(registered, is(3L));
+    }
+
+    @Test
+    public void testBatch() {
+        Batch<MetricsTestMetrics> batch = metricsCollectors.batch(this, MetricsTestMetrics.class);
+        try (Batch<MetricsTestMetrics> nested = metricsCollectors.batch(this, MetricsTestMetrics.class)) {
+            assertThat(nested, sameInstance(batch));
+            for (int i = 0; i < 3; i++) {
+                nested.metrics().testRun();
+                nested.metrics().testSteps(5L);
+            }
+            nested.metrics().testLength(10L);
+            nested.metrics().testSizes(new long[]{2L, 6L});
+        }
+        batch.metrics().testMetering(4L);
+        assertCounterValue("test_run", 0L);
+        assertHistogramValue("test_length", 0L, 0.0D);
+
+        batch.close();
+        assertCounterValue("test_run", 3L);
+        assertCounterValue("test_steps", 15L);
+        assertMeterValue("test_metering", 4L, 0.0D);
+        assertHistogramValue("test_length", 1L, 10.0D);
+        assertHistogramValue("test_sizes", 2L, 4.0D);
+
+        batch.metrics().testRun();
+        assertCounterValue("test_run", 4L);
+    }
+
+    @Test
+    public void testBatchKeptAcrossCollections() throws InterruptedException {
+        WeakReference<Batch<MetricsTestMetrics>> batch;
+        try (Batch<MetricsTestMetrics> first = metricsCollectors.batch(this, MetricsTestMetrics.class)) {
+            batch = new WeakReference<>(first);
+        }
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        try (Batch<MetricsTestMetrics> again = metricsCollectors.batch(this, MetricsTestMetrics.class)) {
+            assertThat(again, sameInstance(batch.get()));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void badBatchClose() {
+        Batch<MetricsTestMetrics> batch = metricsCollectors.batch(this, MetricsTestMetrics.class);
+        batch.close();
+        batch.close();
+    }
+
+    public interface GroupedMetrics {
+
+        @Inc(group = "verbose")
+        void verbose();
+
+        @Inc
+        void always();
+
+        @Time(group = "verbose")
+        MetricsCollectors.Timer verboseTimer();
+
+        @Time(group = "verbose") @OverrideName("verbose_timer")
+        long verboseStart();
+
+        @Time(group = "verbose") @OverrideName("verbose_timer")
+        void verboseStop(long startTime);
+
+        @Time(group = "verbose")
+        <T> T verboseWork(Supplier<T> work);
+
+        @Histo(group = "verbose")
+        void sizes(@Tag("kind") String kind, long size);
+    }
+
+    @Test
+    public void testMetricGroups() {
+        GroupedMetrics metrics = metricsCollectors.metricsCollector(this, GroupedMetrics.class);
+        assertFalse(metricsCollectors.groupEnabled("verbose"));
+        for (int i = 0; i < 100_000; i++) {
+            metrics.verbose();
+        }
+        metrics.always();
+        metrics.verboseTimer().done();
+        metrics.verboseStop(metrics.verboseStart());
+        assertThat(metrics.verboseWork(() -> 42), is(42));
+        metrics.sizes("small", 3L);
+        assertCounterValue("verbose", 0L);
+        assertCounterValue("always", 1L);
+        assertTimerValue("verbose_timer", 0L, 0.0D);
+        assertThat(registry.getHistograms().get(MetricRegistry.name(MetricsCollectorsTest.class, "sizes.kind.small")),
+                nullValue());
+
+        metricsCollectors.enableGroup("verbose");
+        try {
+            assertTrue(metricsCollectors.groupEnabled("verbose"));
+            metrics.verbose();
+            metrics.verboseTimer().done();
+            metrics.verboseStop(metrics.verboseStart());
+            assertThat(metrics.verboseWork(() -> 42), is(42));
+            metrics.sizes("small", 3L);
+            assertCounterValue("verbose", 1L);
+            assertThat(registry.timer(MetricRegistry.name(MetricsCollectorsTest.class, "verbose_timer")).getCount(),
+                    is(2L));
+            assertHistogramValue("sizes.kind.small", 1L, 3.0D);
+        } finally {
+            metricsCollectors.disableGroup("verbose");
+        }
+        metrics.verbose();
+        assertCounterValue("verbose", 1L);
+    }
+
+    interface BadMetrics11 {
+        @Inc(group = " ")
+        void blank();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badGroupName() {
+        metricsCollectors.metricsCollector(this, BadMetrics11.class);
+    }
+
+    @Test
+    public void testAsyncRecording() {
+        MetricsCollectors asyncCollectors = metricsCollectors.withAsyncRecording(1024, MetricsCollectors.Backpressure.BLOCK);
+        MetricsTestMetrics metrics = asyncCollectors.metricsCollector(this, MetricsTestMetrics.class);
+        metrics.testSteps(3);
+        metrics.testMetering(2);
+        metrics.testLength(5);
+        metrics.testTimed(metrics.testTimed());
+        asyncCollectors.flush();
+
+        assertCounterValue("test_steps", 3L);
+        assertMeterValue("test_metering", 2L, 0.0);
+        assertHistogramValue("test_length", 1L, 5.0D);
+        assertTimerValue("test_timed", 1L, 0.0D);
+        assertThat(registry.getGauges().get("metricsbuddy.async.occupancy").getValue(), is(0));
+    }
+
+    @Test
+    public void testAsyncDropsWhenFull() {
+        MetricsCollectors asyncCollectors = metricsCollectors.withAsyncRecording(2, MetricsCollectors.Backpressure.DROP);
+        MetricsTestMetrics metrics = asyncCollectors.metricsCollector(this, MetricsTestMetrics.class);
+        for (int i = 0; i < 10_000; i++) {
+            metrics.testRun();
+        }
+        asyncCollectors.flush();
+
+        long dropped = registry.getCounters().get("metricsbuddy.async.dropped").getCount();
+        assertCounterValue("test_run", 10_000L - dropped);
+    }
+
+    @Test
+    public void testAsyncClose() {
+        long consumers = threads("metrics-consumer");
+        MetricsCollectors first = metricsCollectors.withAsyncRecording(1024, MetricsCollectors.Backpressure.BLOCK);
+        com.codahale.metrics.Gauge<?> occupancy = registry.getGauges().get("metricsbuddy.async.occupancy");
+        MetricsCollectors second = metricsCollectors.withAsyncRecording(1024, MetricsCollectors.Backpressure.BLOCK);
+        assertThat(registry.getGauges().get("metricsbuddy.async.occupancy"), sameInstance(occupancy));
+        assertThat(threads("metrics-consumer"), is(consumers + 2));
+
+        MetricsTestMetrics metrics = first.metricsCollector(this, MetricsTestMetrics.class);
+        metrics.testSteps(3);
+        first.close();
+        second.close();
+        assertThat(threads("metrics-consumer"), is(consumers));
+        assertCounterValue("test_steps", 3L);
+
+        metrics.testSteps(2);
+        first.flush();
+        assertCounterValue("test_steps", 5L);
+    }
+
+    private static long threads(String name) {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals(name))
+                .count();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badAsyncCapacity() {
+        metricsCollectors.withAsyncRecording(1000, MetricsCollectors.Backpressure.DROP);
+    }
+
+    @Test
+    public void testPrometheusExport() throws IOException {
+        MetricsTestMetrics metrics = metricsCollectors.metricsCollector(this, MetricsTestMetrics.class);
+        try (PrometheusExporter exporter = metricsCollectors.prometheusExporter()) {
+            metrics.testSteps(3);
+            metrics.testMetering(2);
+            metrics.testLength(5);
+            metrics.testTimed(metrics.testTimed());
+            registry.register("broken", (com.codahale.metrics.Gauge<Long>) () -> {
+                throw new IllegalStateException("broken");
+            });
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            exporter.writeTo(out);
+            String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+            String prefix = MetricsCollectorsTest.class.getName().replace('.', '_') + "_";
+
+            assertThat(text, containsString("# TYPE " + prefix + "test_steps gauge\n" + prefix + "test_steps 3\n"));
+            assertThat(text, containsString(prefix + "test_metering_total 2\n"));
+            assertThat(text, containsString(prefix + "test_length{quantile=\"0.5\"} 5\n"));
+            assertThat(text, containsString(prefix + "test_length_count 1\n"));
+            assertThat(text, containsString(prefix + "test_timed_count 1\n"));
+            assertFalse(text.contains("broken"));
+            assertThat(exporter.failures(), is(1L));
+        }
+    }
+
+    @Test
+    public void testPrometheusEndpoint() throws IOException {
+        metricsCollectors.metricsCollector(this, MetricsTestMetrics.class).testRun();
+        try (PrometheusExporter exporter = metricsCollectors.prometheusExporter()
+                .start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            InetSocketAddress address = exporter.address();
+            HttpURLConnection connection = (HttpURLConnection)
+                    new URL("http://" + address.getHostString() + ":" + address.getPort() + "/metrics").openConnection();
+            assertThat(connection.getResponseCode(), is(200));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] bytes = new byte[1024];
+                for (int read = in.read(bytes); read >= 0; read = in.read(bytes)) {
+                    out.write(bytes, 0, read);
+                }
+            }
+            assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8), containsString("test_run 1\n"));
+        }
+    }
+
+    @Test
+    public void testEnumTag() {
+        TaggedMetrics metrics = metricsCollectors.metricsCollector(this, TaggedMetrics.class);
+        assertCounterValue("requests.outcome.FAILED", 0L);
+
+        metrics.requests(Outcome.OK);
+        metrics.requests(Outcome.OK);
+        metrics.requests(Outcome.FAILED);
+        metrics.requests(null);
+
+        assertCounterValue("requests.outcome.OK", 2L);
+        assertCounterValue("requests.outcome.FAILED", 1L);
+        assertCounterValue("requests.outcome.other", 1L);
+    }
+
+    @Test
+    public void testStringTag() {
+        TaggedMetrics metrics = metricsCollectors.metricsCollector(this, TaggedMetrics.class);
+        metrics.bytes("foo", 10L);
+        metrics.bytes("bar", 20L);
+        metrics.bytes("foo", 5L);
+
+        assertMeterValue("bytes.client.foo", 15L, 0.0);
+        assertMeterValue("bytes.client.bar", 20L, 0.0);
+    }
+
+    @Test
+    public void testTagCardinality() {
+        TaggedMetrics metrics = metricsCollectors.metricsCollector(this, TaggedMetrics.class);
+        metrics.users("a");
+        metrics.users("b");
+        metrics.users("c");
+        metrics.users("a");
+        metrics.users("d");
+
+        assertCounterValue("users.user.a", 2L);
+        assertCounterValue("users.user.b", 1L);
+        assertCounterValue("users.user.other", 2L);
+        assertThat(get(registry.getCounters(), "users.user.c"), nullValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badTagType() {
+        fail(metricsCollectors.metricsCollector(this, BadMetrics6.class) + " should not exist!");
+    }
+
+    @SuppressWarnings("unused")
+    interface BadMetrics6 {
+        @Inc
+        void count(@Tag("size") long size);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void badTimerReturnType() {
         fail(metricsCollectors.metricsCollector(this, BadMetrics1.class) + " should not exist!");
@@ -181,6 +1427,50 @@ public class MetricsCollectorsTest {
         String count();
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void badTimerStopArgumentList() {
+        fail(metricsCollectors.metricsCollector(this, BadMetrics5.class) + " should not exist!");
+    }
+
+    @SuppressWarnings("unused")
+    interface BadMetrics5 {
+        @Time
+        void timer(int startTime);
+    }
+
+    public interface MeterMetrics {
+        @Meter
+        void hit();
+
+        @Meter
+        void hits(long hits);
+    }
+
+    @Test
+    public void testMeterValidation() {
+        MeterMetrics metrics = metricsCollectors.metricsCollector(this, MeterMetrics.class);
+        metrics.hit();
+        metrics.hits(3);
+
+        assertMeterValue("hit", 1, 1.0);
+        assertMeterValue("hits", 3, 3.0);
+    }
+
+    @SuppressWarnings("unused")
+    interface BadMetrics12 {
+        @Histo
+        void size();
+    }
+
+    @Test
+    public void badHistoArgumentList() {
+        try {
+            fail(metricsCollectors.metricsCollector(this, BadMetrics12.class) + " should not exist!");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("Histogram method should take one long parameter"));
+        }
+    }
+
     private MetricsTestMetrics mtm() {
         return metricsCollectors.metricsCollector(this, MetricsTestMetrics.class);
     }
@@ -193,6 +1483,12 @@ public class MetricsCollectorsTest {
         assertEquals(h.getSnapshot().getMean(), mean, 0.05D);
     }
 
+    private Object gaugeValue(String gauge) {
+        com.codahale.metrics.Gauge<?> g = get(registry.getGauges(), gauge);
+        assertThat(g, notNullValue());
+        return g.getValue();
+    }
+
     private void assertCounterValue(String counter, long value) {
         SortedMap<String, Counter> counters = registry.getCounters();
         Counter c = get(counters, counter);